@@ -1,8 +1,10 @@
 #version 130
 
+// scene origin minus the cell's local origin; vertex positions are relative to the cell's local origin
 uniform vec3 originOffset;
 uniform mat4 mvp;
 
+// normalized unsigned byte colors are expanded to floats by the vertex fetch
 in float altitude;
 in float intensity;
 
@@ -13,4 +15,6 @@ out float vertIntensity;
 void main(){
    gl_Position = mvp * vec4(gl_Vertex.xyz - originOffset, 1.0);
    vertColor = gl_Color;
+   vertAltitude = altitude;
+   vertIntensity = intensity;
 }
\ No newline at end of file
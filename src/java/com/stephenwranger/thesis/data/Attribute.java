@@ -35,6 +35,10 @@ public class Attribute {
       return this.type.get(buffer, index * stride + this.offset);
    }
    
+   public double getDouble(final ByteBuffer buffer, final int index, final int stride) {
+      return this.type.getDouble(buffer, index * stride + this.offset);
+   }
+   
    public byte[] getBytes(final ByteBuffer buffer, final int index, final int stride) {
       return this.type.getBytes(buffer, index * stride + this.offset, this.size);
    }
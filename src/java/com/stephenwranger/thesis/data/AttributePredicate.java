@@ -0,0 +1,137 @@
+package com.stephenwranger.thesis.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import com.stephenwranger.thesis.query.QueryRegion;
+
+/**
+ * Accepts points whose value of an attribute is within an inclusive range. Cells are classified against their stored
+ * {@link CellSummary} (using {@link QueryRegion#OUTSIDE}, {@link QueryRegion#INSIDE} and {@link QueryRegion#PARTIAL})
+ * so whole cells can be skipped or accepted and only cells that straddle the range are filtered point by point.
+ * Lists of predicates are combined with a logical and.
+ */
+public class AttributePredicate {
+   public final Attribute attribute;
+   public final double    min;
+   public final double    max;
+
+   public AttributePredicate(final Attribute attribute, final double min, final double max) {
+      this.attribute = attribute;
+      this.min = min;
+      this.max = max;
+   }
+
+   public static AttributePredicate atLeast(final Attribute attribute, final double min) {
+      return new AttributePredicate(attribute, min, Double.POSITIVE_INFINITY);
+   }
+
+   public static AttributePredicate atMost(final Attribute attribute, final double max) {
+      return new AttributePredicate(attribute, Double.NEGATIVE_INFINITY, max);
+   }
+
+   public boolean test(final double value) {
+      return (value >= this.min) && (value <= this.max);
+   }
+
+   /**
+    * Classifies the points described by the given summary.
+    *
+    * @param summary
+    *           the summary or null if unknown
+    * @return
+    */
+   public int classify(final AttributeSummary summary) {
+      if (summary == null) {
+         return QueryRegion.PARTIAL;
+      } else if ((summary.getCount() == 0) || (summary.getMax() < this.min) || (summary.getMin() > this.max)) {
+         return QueryRegion.OUTSIDE;
+      } else if ((summary.getMin() >= this.min) && (summary.getMax() <= this.max)) {
+         return QueryRegion.INSIDE;
+      }
+
+      return QueryRegion.PARTIAL;
+   }
+
+   /**
+    * Classifies a cell's own points (or those of its whole subtree) against all of the given predicates.
+    *
+    * @param predicates
+    * @param summary
+    *           the cell's summary or null if unknown
+    * @param isSubtree
+    *           true to classify the cell's subtree rather than only its own points
+    * @return
+    */
+   public static int classify(final List<AttributePredicate> predicates, final CellSummary summary, final boolean isSubtree) {
+      int result = QueryRegion.INSIDE;
+
+      for (final AttributePredicate predicate : predicates) {
+         final AttributeSummary attributeSummary = (summary == null) ? null : isSubtree ? summary.getSubtree(predicate.attribute) : summary.getCell(predicate.attribute);
+         final int classification = predicate.classify(attributeSummary);
+
+         if (classification == QueryRegion.OUTSIDE) {
+            return QueryRegion.OUTSIDE;
+         } else if (classification == QueryRegion.PARTIAL) {
+            result = QueryRegion.PARTIAL;
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Returns true if the given point passes all of the given predicates.
+    *
+    * @param predicates
+    * @param cursor
+    * @return
+    */
+   public static boolean test(final List<AttributePredicate> predicates, final PointCursor cursor) {
+      for (final AttributePredicate predicate : predicates) {
+         if (!predicate.test(cursor.getDouble(predicate.attribute))) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Returns the raw point data of only those points in the given buffer that pass all of the given predicates.
+    *
+    * @param predicates
+    * @param buffer
+    * @param stride
+    * @return
+    */
+   public static byte[] filter(final List<AttributePredicate> predicates, final byte[] buffer, final int stride) {
+      final ByteBuffer points = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+      final byte[] filtered = new byte[buffer.length];
+      final int pointCount = buffer.length / stride;
+      int length = 0;
+
+      for (int i = 0; i < pointCount; i++) {
+         boolean isAccepted = true;
+
+         for (int j = 0; (j < predicates.size()) && isAccepted; j++) {
+            final AttributePredicate predicate = predicates.get(j);
+            isAccepted = predicate.test(predicate.attribute.getDouble(points, i, stride));
+         }
+
+         if (isAccepted) {
+            System.arraycopy(buffer, i * stride, filtered, length, stride);
+            length += stride;
+         }
+      }
+
+      return (length == buffer.length) ? buffer : Arrays.copyOf(filtered, length);
+   }
+
+   @Override
+   public String toString() {
+      return this.min + " <= " + this.attribute.name + " <= " + this.max;
+   }
+}
@@ -0,0 +1,161 @@
+package com.stephenwranger.thesis.data;
+
+import java.util.Arrays;
+
+/**
+ * Count, min, max, sum, sum of squares and a coarse histogram of the values of one attribute over a set of points.
+ * Histograms span the attribute's global range (from attributes.csv) so summaries of different cells can be merged.
+ */
+public class AttributeSummary {
+   public static final int HISTOGRAM_BINS = 16;
+
+   private final double    rangeMin;
+   private final double    rangeMax;
+   private final long[]    histogram  = new long[AttributeSummary.HISTOGRAM_BINS];
+   private long            count      = 0;
+   private double          min        = Double.POSITIVE_INFINITY;
+   private double          max        = Double.NEGATIVE_INFINITY;
+   private double          sum        = 0;
+   private double          sumSquares = 0;
+
+   public AttributeSummary(final Attribute attribute) {
+      this(attribute.min, attribute.max);
+   }
+
+   /**
+    * @param rangeMin
+    *           the lowest value of the histogram's range
+    * @param rangeMax
+    *           the highest value of the histogram's range
+    */
+   public AttributeSummary(final double rangeMin, final double rangeMax) {
+      this.rangeMin = rangeMin;
+      this.rangeMax = rangeMax;
+   }
+
+   public void add(final double value) {
+      this.count++;
+      this.min = Math.min(this.min, value);
+      this.max = Math.max(this.max, value);
+      this.sum += value;
+      this.sumSquares += value * value;
+      this.histogram[this.getBin(value)]++;
+   }
+
+   /**
+    * Merges the given summary (over the same histogram range) into this one.
+    *
+    * @param other
+    */
+   public void add(final AttributeSummary other) {
+      this.count += other.count;
+      this.min = Math.min(this.min, other.min);
+      this.max = Math.max(this.max, other.max);
+      this.sum += other.sum;
+      this.sumSquares += other.sumSquares;
+
+      for (int i = 0; i < this.histogram.length; i++) {
+         this.histogram[i] += other.histogram[i];
+      }
+   }
+
+   public long getCount() {
+      return this.count;
+   }
+
+   public double getMin() {
+      return this.min;
+   }
+
+   public double getMax() {
+      return this.max;
+   }
+
+   public double getSum() {
+      return this.sum;
+   }
+
+   public double getSumSquares() {
+      return this.sumSquares;
+   }
+
+   public double getMean() {
+      return (this.count == 0) ? Double.NaN : this.sum / this.count;
+   }
+
+   public double getVariance() {
+      if (this.count == 0) {
+         return Double.NaN;
+      }
+
+      final double mean = this.getMean();
+
+      return Math.max((this.sumSquares / this.count) - (mean * mean), 0);
+   }
+
+   /**
+    * Returns the point count of every histogram bin; bin i covers [{@link #getBinMin(int)}, {@link #getBinMin(int)} +
+    * bin width).
+    *
+    * @return
+    */
+   public long[] getHistogram() {
+      return this.histogram.clone();
+   }
+
+   public double getBinMin(final int bin) {
+      return this.rangeMin + (((this.rangeMax - this.rangeMin) * bin) / AttributeSummary.HISTOGRAM_BINS);
+   }
+
+   /**
+    * Returns the values as written by {@link CellSummary}: count, min, max, sum, sum of squares and the histogram
+    * counts separated by semicolons.
+    *
+    * @return
+    */
+   public String toCsv() {
+      final StringBuilder sb = new StringBuilder();
+      sb.append(this.count).append(",").append(this.min).append(",").append(this.max).append(",").append(this.sum).append(",").append(this.sumSquares).append(",");
+
+      for (int i = 0; i < this.histogram.length; i++) {
+         sb.append((i == 0) ? "" : ";").append(this.histogram[i]);
+      }
+
+      return sb.toString();
+   }
+
+   /**
+    * Reads the values written by {@link #toCsv()} starting at the given field.
+    *
+    * @param fields
+    * @param offset
+    */
+   void fromCsv(final String[] fields, final int offset) {
+      this.count = Long.parseLong(fields[offset]);
+      this.min = Double.parseDouble(fields[offset + 1]);
+      this.max = Double.parseDouble(fields[offset + 2]);
+      this.sum = Double.parseDouble(fields[offset + 3]);
+      this.sumSquares = Double.parseDouble(fields[offset + 4]);
+
+      final String[] bins = fields[offset + 5].split(";");
+
+      for (int i = 0; i < Math.min(bins.length, this.histogram.length); i++) {
+         this.histogram[i] = Long.parseLong(bins[i]);
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "count: " + this.count + ", min: " + this.min + ", max: " + this.max + ", mean: " + this.getMean() + ", variance: " + this.getVariance() + ", histogram: " + Arrays.toString(this.histogram);
+   }
+
+   private int getBin(final double value) {
+      if (this.rangeMax <= this.rangeMin) {
+         return 0;
+      }
+
+      final int bin = (int) (((value - this.rangeMin) / (this.rangeMax - this.rangeMin)) * AttributeSummary.HISTOGRAM_BINS);
+
+      return Math.max(0, Math.min(AttributeSummary.HISTOGRAM_BINS - 1, bin));
+   }
+}
@@ -118,6 +118,42 @@ public enum AttributeType {
       return Double.NaN;
    }
    
+   /**
+    * Same as {@link #get(ByteBuffer, int)} without boxing the value.
+    * 
+    * @param buffer the buffer to read from
+    * @param byteIndex the byte index of the value
+    * @return the value as a double
+    */
+   public double getDouble(final ByteBuffer buffer, final int byteIndex) {
+      switch(this) {
+         case BYTE:
+            return buffer.get(byteIndex);
+         case SHORT:
+            return buffer.getShort(byteIndex);
+         case INT:
+            return buffer.getInt(byteIndex);
+         case FLOAT:
+            return buffer.getFloat(byteIndex);
+         case LONG:
+            return buffer.getLong(byteIndex);
+         case DOUBLE:
+            return buffer.getDouble(byteIndex);
+         case UNSIGNED_BYTE:
+            return buffer.get(byteIndex) & 0xff;
+         case UNSIGNED_SHORT:
+            return buffer.getShort(byteIndex) & 0xffff;
+         case UNSIGNED_INT:
+            return buffer.getInt(byteIndex) & 0xffffffffL;
+         case UNSIGNED_LONG:
+            return buffer.getLong(byteIndex);
+         case BYTE_ARRAY:
+            throw new UnsupportedOperationException("Use AttributeType.getBytes() for BYTE_ARRAY type");
+      }
+      
+      return Double.NaN;
+   }
+   
    public byte[] getBytes(final ByteBuffer buffer, final int byteIndex, final int count) {
       final byte[] bytes = new byte[count];
       buffer.position(byteIndex);
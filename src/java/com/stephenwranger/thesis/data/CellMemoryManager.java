@@ -0,0 +1,306 @@
+package com.stephenwranger.thesis.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Keeps the point data held by loaded {@link TreeCell}s under a heap budget. Cells are registered once loaded and
+ * touched whenever they are used; when over budget the coldest cells (least recently used, deepest first among equally
+ * old cells) are cleared so they have to be loaded again. Cells used in the current frame are kept whole (queries and
+ * selection read their points) even if that leaves the held data over budget. Heap pool usage threshold notifications
+ * trigger the same eviction in every manager down to half of its currently held data before the heap runs out; the
+ * thresholds are JVM wide so they are set once for all managers.
+ * <p>
+ * A render loop drives the budget checks via {@link #nextFrame()} and {@link #maintain()}; without one (eg, a
+ * connection only used by queries) the loader drives them via {@link #maintainUnlessRendered()} every time cells finish
+ * loading.
+ * <p>
+ * Cells that hold a gpu segment can only be released on the render thread so those are queued and handed out via
+ * {@link #drainEvictions(Consumer)}.
+ */
+public class CellMemoryManager {
+   public static final long                         MEMORY_BUDGET_MB     = Long.getLong("cellMemoryBudgetMB", Math.min(Runtime.getRuntime().maxMemory() / 1024L / 1024L, 1024L * 1024L) * 2L / 5L);
+   public static final double                       HEAP_THRESHOLD       = Double.parseDouble(System.getProperty("cellMemoryHeapThreshold", "0.85"));
+
+   private static final long                        BYTES_PER_MB         = 1024L * 1024L;
+   // budget is only checked this often unless a low memory notification arrives
+   private static final long                        CHECK_INTERVAL_NANOS = 250L * 1000L * 1000L;
+
+   private static final Comparator<Entry<TreeCell, Long>> COLDEST_FIRST  = new Comparator<Entry<TreeCell, Long>>() {
+                                                                            @Override
+                                                                            public int compare(final Entry<TreeCell, Long> o1, final Entry<TreeCell, Long> o2) {
+                                                                               final int result = Long.compare(o1.getValue(), o2.getValue());
+
+                                                                               // deeper cells cover less and are cheaper to reload
+                                                                               return (result == 0) ? Integer.compare(o2.getKey().path.length(), o1.getKey().path.length()) : result;
+                                                                            }
+                                                                         };
+
+   // every open manager; all of them are told when the heap runs low
+   private static final List<CellMemoryManager>     MANAGERS             = new CopyOnWriteArrayList<>();
+   private static boolean                           isListening          = false;
+
+   // access ordered; value is the last frame the cell was used in
+   private final LinkedHashMap<TreeCell, Long>     cells                = new LinkedHashMap<>(256, 0.75f, true);
+   private final ConcurrentLinkedQueue<TreeCell>   evictions            = new ConcurrentLinkedQueue<>();
+
+   private long                                     budget               = CellMemoryManager.MEMORY_BUDGET_MB * CellMemoryManager.BYTES_PER_MB;
+   private long                                     frame                = 0;
+   private long                                     lastCheck            = 0;
+   private long                                     heldBytes            = 0;
+   private long                                     evictionCount        = 0;
+   private long                                     lowMemoryCount       = 0;
+   private boolean                                  isRendered           = false;
+   private volatile boolean                         isLowMemory          = false;
+
+   public CellMemoryManager() {
+      CellMemoryManager.listen();
+      CellMemoryManager.MANAGERS.add(this);
+   }
+
+   public void close() {
+      CellMemoryManager.MANAGERS.remove(this);
+   }
+
+   /**
+    * Sets the heap usage thresholds and starts listening for their notifications the first time a manager is created.
+    */
+   private static void listen() {
+      synchronized (CellMemoryManager.MANAGERS) {
+         if (CellMemoryManager.isListening) {
+            return;
+         }
+
+         CellMemoryManager.isListening = true;
+      }
+
+      for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         final long max = pool.getUsage().getMax();
+
+         if ((pool.getType() == MemoryType.HEAP) && (max > 0)) {
+            // collection usage is measured after a gc so it isn't triggered by garbage that is about to be collected
+            if (pool.isCollectionUsageThresholdSupported()) {
+               pool.setCollectionUsageThreshold((long) (max * CellMemoryManager.HEAP_THRESHOLD));
+            } else if (pool.isUsageThresholdSupported()) {
+               pool.setUsageThreshold((long) (max * CellMemoryManager.HEAP_THRESHOLD));
+            }
+         }
+      }
+
+      final NotificationListener listener = new NotificationListener() {
+         @Override
+         public void handleNotification(final Notification notification, final Object handback) {
+            final String type = notification.getType();
+
+            if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type) || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+               for (final CellMemoryManager manager : CellMemoryManager.MANAGERS) {
+                  manager.isLowMemory = true;
+               }
+            }
+         }
+      };
+
+      ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+   }
+
+   /**
+    * Registers the given cells as loaded.
+    *
+    * @param loaded
+    */
+   public synchronized void loaded(final Collection<TreeCell> loaded) {
+      for (final TreeCell cell : loaded) {
+         this.cells.put(cell, this.frame);
+      }
+   }
+
+   /**
+    * Starts a new frame; cells touched in the current frame are never cleared. Called by render loops only; from then on
+    * {@link #maintainUnlessRendered()} leaves the budget checks to them.
+    */
+   public synchronized void nextFrame() {
+      this.isRendered = true;
+      this.frame++;
+   }
+
+   /**
+    * Checks the budget as in {@link #maintain()} if no render loop ever started a frame; called by the loader before it
+    * registers newly loaded cells so every load counts as a frame and only the cells it is about to add are protected.
+    */
+   public synchronized void maintainUnlessRendered() {
+      if (!this.isRendered) {
+         this.frame++;
+         this.maintain();
+      }
+   }
+
+   /**
+    * Marks the given cells as used in the current frame.
+    *
+    * @param used
+    */
+   public synchronized void touch(final Collection<TreeCell> used) {
+      for (final TreeCell cell : used) {
+         if (this.cells.containsKey(cell)) {
+            this.cells.put(cell, this.frame);
+         }
+      }
+   }
+
+   /**
+    * Clears the given cell so it has to be loaded again; if it holds a gpu segment it is queued for
+    * {@link #drainEvictions(Consumer)} instead.
+    *
+    * @param cell
+    */
+   public synchronized void evict(final TreeCell cell) {
+      this.cells.remove(cell);
+
+      if (cell.getSegmentPoolIndex() == -1) {
+         cell.clearData();
+      } else {
+         this.evictions.add(cell);
+      }
+   }
+
+   /**
+    * Records that the given cell's data was cleared for some other reason than this manager (eg, culling).
+    *
+    * @param cell
+    */
+   public synchronized void removed(final TreeCell cell) {
+      this.cells.remove(cell);
+   }
+
+   /**
+    * Checks the held data against the budget (at most every quarter second unless the heap is running low) and evicts
+    * cells as needed. Cells without a gpu segment are cleared immediately; the others are queued for
+    * {@link #drainEvictions(Consumer)}. Should be called from the render thread so gpu segments can't be assigned
+    * while this runs.
+    */
+   public synchronized void maintain() {
+      final long now = System.nanoTime();
+      final boolean isLowMemory = this.isLowMemory;
+
+      if (!isLowMemory && ((now - this.lastCheck) < CellMemoryManager.CHECK_INTERVAL_NANOS)) {
+         return;
+      }
+
+      this.lastCheck = now;
+      this.heldBytes = 0;
+
+      for (final TreeCell cell : this.cells.keySet()) {
+         this.heldBytes += cell.getDataSize();
+      }
+
+      final long target = isLowMemory ? Math.min(this.budget, this.heldBytes / 2) : this.budget;
+
+      if (isLowMemory) {
+         this.isLowMemory = false;
+         this.lowMemoryCount++;
+      }
+
+      if (this.heldBytes <= target) {
+         return;
+      }
+
+      final List<Entry<TreeCell, Long>> candidates = new ArrayList<>();
+
+      for (final Entry<TreeCell, Long> entry : this.cells.entrySet()) {
+         if (entry.getValue() != this.frame) {
+            candidates.add(entry);
+         }
+      }
+
+      candidates.sort(CellMemoryManager.COLDEST_FIRST);
+
+      final List<TreeCell> cleared = new ArrayList<>();
+
+      for (final Entry<TreeCell, Long> entry : candidates) {
+         if (this.heldBytes <= target) {
+            break;
+         }
+
+         final TreeCell cell = entry.getKey();
+         this.heldBytes -= cell.getDataSize();
+         cleared.add(cell);
+
+         if (cell.getSegmentPoolIndex() == -1) {
+            cell.clearData();
+         } else {
+            this.evictions.add(cell);
+         }
+      }
+
+      for (final TreeCell cell : cleared) {
+         this.cells.remove(cell);
+      }
+
+      this.evictionCount += cleared.size();
+   }
+
+   /**
+    * Hands every queued cell that still holds a gpu segment to the given consumer which must release the segment and
+    * then clear the cell's data.
+    *
+    * @param evictor
+    */
+   public void drainEvictions(final Consumer<TreeCell> evictor) {
+      TreeCell cell = null;
+
+      while ((cell = this.evictions.poll()) != null) {
+         evictor.accept(cell);
+      }
+   }
+
+   public synchronized long getBudget() {
+      return this.budget;
+   }
+
+   public synchronized void setBudget(final long budget) {
+      this.budget = budget;
+      this.lastCheck = 0;
+   }
+
+   public synchronized int getCellCount() {
+      return this.cells.size();
+   }
+
+   /**
+    * Returns the bytes of point data held as of the last budget check.
+    *
+    * @return
+    */
+   public synchronized long getHeldBytes() {
+      return this.heldBytes;
+   }
+
+   public synchronized long getEvictionCount() {
+      return this.evictionCount;
+   }
+
+   public synchronized long getLowMemoryCount() {
+      return this.lowMemoryCount;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "Cell Memory: " + (this.heldBytes / CellMemoryManager.BYTES_PER_MB) + " / " + (this.budget / CellMemoryManager.BYTES_PER_MB) + " MB (" + this.cells.size() + " cells)\nCell Evictions: "
+            + this.evictionCount + ", Low Memory: " + this.lowMemoryCount;
+   }
+}
@@ -0,0 +1,136 @@
+package com.stephenwranger.thesis.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link AttributeSummary}s of every numeric attribute over the points of a single cell and over the points of the cell
+ * and all of its descendants (its subtree). Written by the tree builder next to each cell's data as
+ * &lt;name&gt;.summary so queries can answer aggregates for whole subtrees, or skip them, without reading their points.
+ */
+public class CellSummary {
+   public static final String                  HEADER        = "scope,attribute,count,min,max,sum,sumSquares,histogram";
+   public static final String                  EXTENSION     = ".summary";
+
+   private static final String                 CELL_SCOPE    = "cell";
+   private static final String                 SUBTREE_SCOPE = "subtree";
+
+   private final Map<String, AttributeSummary> cell          = new LinkedHashMap<>();
+   private final Map<String, AttributeSummary> subtree       = new LinkedHashMap<>();
+
+   public CellSummary(final DataAttributes attributes) {
+      for (final Attribute attribute : attributes) {
+         if (attribute.type != AttributeType.BYTE_ARRAY) {
+            this.cell.put(attribute.name, new AttributeSummary(attribute));
+            this.subtree.put(attribute.name, new AttributeSummary(attribute));
+         }
+      }
+   }
+
+   /**
+    * Adds the given point to both the cell and subtree summaries.
+    *
+    * @param point
+    */
+   public void add(final Point point) {
+      for (final Attribute attribute : point.getAttributes()) {
+         final AttributeSummary summary = this.cell.get(attribute.name);
+
+         if (summary != null) {
+            final double value = point.getValue(attribute).doubleValue();
+            summary.add(value);
+            this.subtree.get(attribute.name).add(value);
+         }
+      }
+   }
+
+   /**
+    * Adds the subtree summary of the given child cell to this cell's subtree summary.
+    *
+    * @param child
+    */
+   public void addChild(final CellSummary child) {
+      for (final Map.Entry<String, AttributeSummary> entry : child.subtree.entrySet()) {
+         final AttributeSummary summary = this.subtree.get(entry.getKey());
+
+         if (summary != null) {
+            summary.add(entry.getValue());
+         }
+      }
+   }
+
+   /**
+    * Returns the summary of the given attribute over this cell's points or null if it isn't summarized.
+    *
+    * @param attribute
+    * @return
+    */
+   public AttributeSummary getCell(final Attribute attribute) {
+      return this.cell.get(attribute.name);
+   }
+
+   /**
+    * Returns the summary of the given attribute over the points of this cell and all of its descendants or null if it
+    * isn't summarized.
+    *
+    * @param attribute
+    * @return
+    */
+   public AttributeSummary getSubtree(final Attribute attribute) {
+      return this.subtree.get(attribute.name);
+   }
+
+   public Map<String, AttributeSummary> getSubtreeSummaries() {
+      return Collections.unmodifiableMap(this.subtree);
+   }
+
+   public void write(final Writer writer) throws IOException {
+      writer.write(CellSummary.HEADER);
+
+      for (final Map.Entry<String, AttributeSummary> entry : this.cell.entrySet()) {
+         writer.write("\n" + CellSummary.CELL_SCOPE + "," + entry.getKey() + "," + entry.getValue().toCsv());
+      }
+
+      for (final Map.Entry<String, AttributeSummary> entry : this.subtree.entrySet()) {
+         writer.write("\n" + CellSummary.SUBTREE_SCOPE + "," + entry.getKey() + "," + entry.getValue().toCsv());
+      }
+   }
+
+   /**
+    * Reads a summary written by {@link #write(Writer)}.
+    *
+    * @param reader
+    * @param attributes
+    * @return the summary or null if the reader doesn't start with a summary header
+    * @throws IOException
+    */
+   public static CellSummary read(final BufferedReader reader, final DataAttributes attributes) throws IOException {
+      final String header = reader.readLine();
+
+      if (!CellSummary.HEADER.equals(header)) {
+         return null;
+      }
+
+      final CellSummary summary = new CellSummary(attributes);
+      String line = null;
+
+      while ((line = reader.readLine()) != null) {
+         final String[] fields = line.split(",");
+
+         if (fields.length == 8) {
+            final Map<String, AttributeSummary> scope = CellSummary.CELL_SCOPE.equals(fields[0]) ? summary.cell : summary.subtree;
+            final AttributeSummary attributeSummary = scope.get(fields[1]);
+
+            if (attributeSummary != null) {
+               attributeSummary.fromCsv(fields, 2);
+            }
+         }
+      }
+
+      return summary;
+   }
+}
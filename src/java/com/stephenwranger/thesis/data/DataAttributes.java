@@ -18,6 +18,13 @@ public class DataAttributes implements Iterable<Attribute> {
    public static final String         A_ATTRIBUTE_NAME     = "Altitude";
    public static final String         I_ATTRIBUTE_NAME     = "Intensity";
 
+   /**
+    * Bytes per point in the gpu vertex format: X,Y,Z as floats relative to the cell's local origin (12), R,G,B,A as
+    * normalized unsigned bytes (4), and Altitude and Intensity as floats (4 + 4). Altitude stays a float as half
+    * precision would step by 2 m above 2048 m and by 4 m above 4096 m.
+    */
+   public static final int            GPU_SIZE             = 24;
+
    private static final String[]       USED_ATTRIBUTE_NAMES = new String[] { DataAttributes.X_ATTRIBUTE_NAME, DataAttributes.Y_ATTRIBUTE_NAME, DataAttributes.Z_ATTRIBUTE_NAME, DataAttributes.R_ATTRIBUTE_NAME,
          DataAttributes.G_ATTRIBUTE_NAME, DataAttributes.B_ATTRIBUTE_NAME, DataAttributes.A_ATTRIBUTE_NAME, DataAttributes.I_ATTRIBUTE_NAME };
 
@@ -73,7 +80,7 @@ public class DataAttributes implements Iterable<Attribute> {
    }
 
    public int getGpuSize() {
-      return DataAttributes.USED_ATTRIBUTE_NAMES.length * 4;
+      return DataAttributes.GPU_SIZE;
    }
 
    @Override
@@ -82,7 +89,8 @@ public class DataAttributes implements Iterable<Attribute> {
    }
 
    /**
-    * Will load into buffer X,Y,Z,R,G,B,Altitude,Intensity as float values.
+    * Will load into buffer X,Y,Z as floats relative to the given origin, R,G,B,A as unsigned bytes, and Altitude and
+    * Intensity as floats (see {@link #GPU_SIZE}).
     *
     * @param buffer
     * @param pointIndex
@@ -92,7 +100,7 @@ public class DataAttributes implements Iterable<Attribute> {
          final Attribute attribute = this.usedAttributes[i];
          final boolean normalize = DataAttributes.normalize[i];
          double value = 0.0;
-         
+
          if (attribute != null) {
             value = attribute.getValue(pointData, pointIndex, this.stride).doubleValue();
 
@@ -118,7 +126,17 @@ public class DataAttributes implements Iterable<Attribute> {
             }
          }
 
-         buffer.putFloat((float) value);
+         if (i <= 2) {
+            buffer.putFloat((float) value);
+         } else if (i <= 5) {
+            buffer.put((byte) Math.max(0, Math.min(255, (int) (value * 256.0))));
+
+            if (i == 5) {
+               buffer.put((byte) 255); // alpha
+            }
+         } else {
+            buffer.putFloat((float) value);
+         }
       }
    }
 
@@ -0,0 +1,196 @@
+package com.stephenwranger.thesis.data;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared between a {@link TreeServerConnection}'s processors and decoders; published over JMX through
+ * {@link TreeServerConnectionMXBean}.
+ */
+public class LoaderStatistics {
+   private static final int           SAMPLE_COUNT        = 1024;
+   private static final int           RATE_WINDOW_SECONDS = 10;
+   private static final double        NANOS_PER_MILLI     = 1000.0 * 1000.0;
+   private static final long          NANOS_PER_SECOND    = 1000L * 1000L * 1000L;
+
+   private final AtomicLong           requested           = new AtomicLong();
+   private final AtomicLong           prefetched          = new AtomicLong();
+   private final AtomicLong           completed           = new AtomicLong();
+   private final AtomicLong           bytesRead           = new AtomicLong();
+   private final AtomicInteger        inFlight            = new AtomicInteger();
+   private final LatencySamples       fetchLatency        = new LatencySamples(LoaderStatistics.SAMPLE_COUNT);
+   private final LatencySamples       decodeLatency       = new LatencySamples(LoaderStatistics.SAMPLE_COUNT);
+
+   // bytes read per second over the last RATE_WINDOW_SECONDS seconds
+   private final long[]               rateBytes           = new long[LoaderStatistics.RATE_WINDOW_SECONDS];
+   private final long[]               rateSeconds         = new long[LoaderStatistics.RATE_WINDOW_SECONDS];
+
+   public void addRequested(final int count) {
+      this.requested.addAndGet(count);
+   }
+
+   public void addPrefetched(final int count) {
+      this.prefetched.addAndGet(count);
+   }
+
+   /**
+    * Called when a processor starts reading the given number of cells.
+    *
+    * @param count
+    */
+   public void fetchStarted(final int count) {
+      this.inFlight.addAndGet(count);
+   }
+
+   /**
+    * Records the time taken to read a single cell and the number of bytes read.
+    *
+    * @param nanoseconds
+    * @param bytes
+    */
+   public void fetched(final long nanoseconds, final long bytes) {
+      this.fetchLatency.add(nanoseconds);
+      this.bytesRead.addAndGet(bytes);
+
+      final long second = System.nanoTime() / LoaderStatistics.NANOS_PER_SECOND;
+      final int index = (int) (second % LoaderStatistics.RATE_WINDOW_SECONDS);
+
+      synchronized (this.rateBytes) {
+         if (this.rateSeconds[index] != second) {
+            this.rateSeconds[index] = second;
+            this.rateBytes[index] = 0;
+         }
+
+         this.rateBytes[index] += bytes;
+      }
+   }
+
+   public void decoded(final long nanoseconds) {
+      this.decodeLatency.add(nanoseconds);
+   }
+
+   /**
+    * Called once the given number of cells have been fully loaded and are available for upload.
+    *
+    * @param count
+    */
+   public void completed(final int count) {
+      this.inFlight.addAndGet(-count);
+      this.completed.addAndGet(count);
+   }
+
+   public long getRequested() {
+      return this.requested.get();
+   }
+
+   public long getPrefetched() {
+      return this.prefetched.get();
+   }
+
+   public long getCompleted() {
+      return this.completed.get();
+   }
+
+   public int getInFlight() {
+      return this.inFlight.get();
+   }
+
+   public long getBytesRead() {
+      return this.bytesRead.get();
+   }
+
+   public double getBytesPerSecond() {
+      final long second = System.nanoTime() / LoaderStatistics.NANOS_PER_SECOND;
+      long total = 0;
+
+      synchronized (this.rateBytes) {
+         for (int i = 0; i < LoaderStatistics.RATE_WINDOW_SECONDS; i++) {
+            if ((second - this.rateSeconds[i]) < LoaderStatistics.RATE_WINDOW_SECONDS) {
+               total += this.rateBytes[i];
+            }
+         }
+      }
+
+      return total / (double) LoaderStatistics.RATE_WINDOW_SECONDS;
+   }
+
+   /**
+    * Returns the given percentile (0-100) of the most recent per-cell fetch times in milliseconds.
+    *
+    * @param percentile
+    * @return
+    */
+   public double getFetchLatencyMillis(final double percentile) {
+      return this.fetchLatency.getPercentile(percentile) / LoaderStatistics.NANOS_PER_MILLI;
+   }
+
+   /**
+    * Returns the given percentile (0-100) of the most recent per-cell decode times in milliseconds.
+    *
+    * @param percentile
+    * @return
+    */
+   public double getDecodeLatencyMillis(final double percentile) {
+      return this.decodeLatency.getPercentile(percentile) / LoaderStatistics.NANOS_PER_MILLI;
+   }
+
+   /**
+    * Resets all cumulative counters and latency samples; the in flight count is left as is since it reflects live
+    * state.
+    */
+   public void reset() {
+      this.requested.set(0);
+      this.prefetched.set(0);
+      this.completed.set(0);
+      this.bytesRead.set(0);
+      this.fetchLatency.clear();
+      this.decodeLatency.clear();
+
+      synchronized (this.rateBytes) {
+         Arrays.fill(this.rateBytes, 0);
+         Arrays.fill(this.rateSeconds, 0);
+      }
+   }
+
+   /**
+    * Fixed size ring buffer of the most recent samples.
+    */
+   private static class LatencySamples {
+      private final long[] samples;
+      private int          next  = 0;
+      private int          count = 0;
+
+      public LatencySamples(final int size) {
+         this.samples = new long[size];
+      }
+
+      public synchronized void add(final long sample) {
+         this.samples[this.next] = sample;
+         this.next = (this.next + 1) % this.samples.length;
+         this.count = Math.min(this.count + 1, this.samples.length);
+      }
+
+      public synchronized void clear() {
+         this.next = 0;
+         this.count = 0;
+      }
+
+      public double getPercentile(final double percentile) {
+         final long[] sorted;
+
+         synchronized (this) {
+            if (this.count == 0) {
+               return 0.0;
+            }
+
+            sorted = Arrays.copyOf(this.samples, this.count);
+         }
+
+         Arrays.sort(sorted);
+         final int index = (int) Math.ceil((percentile / 100.0) * sorted.length) - 1;
+
+         return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+      }
+   }
+}
@@ -0,0 +1,109 @@
+package com.stephenwranger.thesis.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+
+/**
+ * A view of a single point of a {@link TreeCell} that is moved from point to point by the streams returned by
+ * {@link TreeCell#points()} and {@link TreeStructure#points()} instead of copying every point; it is only valid within
+ * the stream operation it was handed to. Use {@link #toPoint()} to keep a copy.
+ */
+public class PointCursor {
+   private final TreeStructure tree;
+   private final int           stride;
+
+   private TreeCell            cell   = null;
+   private ByteBuffer          buffer = null;
+   private int                 offset = 0;
+   private int                 index  = -1;
+
+   PointCursor(final TreeStructure tree) {
+      this.tree = tree;
+      this.stride = tree.getAttributes().stride;
+   }
+
+   /**
+    * Moves this cursor to the given point.
+    *
+    * @param cell
+    * @param buffer
+    *           the buffer holding the point
+    * @param bufferIndex
+    *           the index of the point (in strides) within the buffer
+    * @param index
+    *           the index of the point within the cell
+    */
+   void set(final TreeCell cell, final ByteBuffer buffer, final int bufferIndex, final int index) {
+      this.cell = cell;
+      this.buffer = buffer;
+      this.offset = bufferIndex;
+      this.index = index;
+   }
+
+   public TreeCell getCell() {
+      return this.cell;
+   }
+
+   /**
+    * Returns the index of the current point within its cell.
+    *
+    * @return
+    */
+   public int getIndex() {
+      return this.index;
+   }
+
+   public double getX() {
+      return this.tree.xAttribute.getDouble(this.buffer, this.offset, this.stride);
+   }
+
+   public double getY() {
+      return this.tree.yAttribute.getDouble(this.buffer, this.offset, this.stride);
+   }
+
+   public double getZ() {
+      return this.tree.zAttribute.getDouble(this.buffer, this.offset, this.stride);
+   }
+
+   public Tuple3d getXYZ(final Tuple3d output) {
+      final Tuple3d outValue = (output == null) ? new Tuple3d() : output;
+      outValue.x = this.getX();
+      outValue.y = this.getY();
+      outValue.z = this.getZ();
+
+      return outValue;
+   }
+
+   public double getDouble(final Attribute attribute) {
+      return attribute.getDouble(this.buffer, this.offset, this.stride);
+   }
+
+   public Number getValue(final Attribute attribute) {
+      return attribute.getValue(this.buffer, this.offset, this.stride);
+   }
+
+   /**
+    * Returns a copy of the current point.
+    *
+    * @return
+    */
+   public Point toPoint() {
+      final int start = this.offset * this.stride;
+
+      if (this.buffer.hasArray()) {
+         final int arrayStart = this.buffer.arrayOffset() + start;
+
+         return new Point(this.tree.getAttributes(), Arrays.copyOfRange(this.buffer.array(), arrayStart, arrayStart + this.stride));
+      } else {
+         final byte[] bytes = new byte[this.stride];
+
+         for (int i = 0; i < this.stride; i++) {
+            bytes[i] = this.buffer.get(start + i);
+         }
+
+         return new Point(this.tree.getAttributes(), bytes);
+      }
+   }
+}
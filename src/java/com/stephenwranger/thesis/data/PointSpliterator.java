@@ -0,0 +1,174 @@
+package com.stephenwranger.thesis.data;
+
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the points of a range of cells; splits at cell boundaries (balanced by point count) and, once a
+ * single cell is left, within that cell. Every point is handed out through the same {@link PointCursor} per
+ * spliterator so nothing is allocated per point.
+ */
+class PointSpliterator implements Spliterator<PointCursor> {
+   // a single cell's points are not split any finer than this
+   private static final int  MIN_SPLIT_POINTS = 4096;
+
+   private final TreeStructure tree;
+   private final TreeCell[]  cells;
+   // point counts of all cells before each index; shared by all splits
+   private final long[]      offsets;
+   private final PointCursor cursor;
+
+   private int               cellIndex;
+   private int               cellEnd;
+   private int               pointIndex;
+   // -1 for all points of the current cell
+   private int               pointEnd;
+   private boolean           isOpen           = false;
+   private ByteBuffer        buffer           = null;
+   private PointIndex[]      indices          = null;
+
+   public PointSpliterator(final TreeStructure tree, final TreeCell[] cells) {
+      this(tree, cells, PointSpliterator.getOffsets(cells), 0, cells.length, 0, -1);
+   }
+
+   private PointSpliterator(final TreeStructure tree, final TreeCell[] cells, final long[] offsets, final int cellIndex, final int cellEnd, final int pointIndex, final int pointEnd) {
+      this.tree = tree;
+      this.cells = cells;
+      this.offsets = offsets;
+      this.cellIndex = cellIndex;
+      this.cellEnd = cellEnd;
+      this.pointIndex = pointIndex;
+      this.pointEnd = pointEnd;
+      this.cursor = new PointCursor(tree);
+   }
+
+   @Override
+   public boolean tryAdvance(final Consumer<? super PointCursor> action) {
+      while (this.cellIndex < this.cellEnd) {
+         if (!this.isOpen) {
+            this.open();
+         }
+
+         if (this.pointIndex < this.pointEnd) {
+            this.advance();
+            action.accept(this.cursor);
+
+            return true;
+         }
+
+         this.next();
+      }
+
+      return false;
+   }
+
+   @Override
+   public void forEachRemaining(final Consumer<? super PointCursor> action) {
+      while (this.cellIndex < this.cellEnd) {
+         if (!this.isOpen) {
+            this.open();
+         }
+
+         while (this.pointIndex < this.pointEnd) {
+            this.advance();
+            action.accept(this.cursor);
+         }
+
+         this.next();
+      }
+   }
+
+   @Override
+   public Spliterator<PointCursor> trySplit() {
+      if ((this.cellEnd - this.cellIndex) > 1) {
+         // first cell after the current one at which about half of the remaining points are left
+         final long half = (this.offsets[this.cellIndex] + this.offsets[this.cellEnd]) / 2;
+         int mid = this.cellIndex + 1;
+
+         while ((mid < (this.cellEnd - 1)) && (this.offsets[mid] < half)) {
+            mid++;
+         }
+
+         final PointSpliterator split = new PointSpliterator(this.tree, this.cells, this.offsets, mid, this.cellEnd, 0, -1);
+         this.cellEnd = mid;
+
+         return split;
+      } else if (this.cellIndex < this.cellEnd) {
+         if (!this.isOpen) {
+            this.open();
+         }
+
+         if ((this.pointEnd - this.pointIndex) >= (PointSpliterator.MIN_SPLIT_POINTS * 2)) {
+            final int mid = (this.pointIndex + this.pointEnd) >>> 1;
+            final PointSpliterator split = new PointSpliterator(this.tree, this.cells, this.offsets, this.cellIndex, this.cellEnd, mid, this.pointEnd);
+            this.pointEnd = mid;
+
+            return split;
+         }
+      }
+
+      return null;
+   }
+
+   @Override
+   public long estimateSize() {
+      if (this.cellIndex >= this.cellEnd) {
+         return 0;
+      } else if (this.isOpen) {
+         return (this.pointEnd - this.pointIndex) + (this.offsets[this.cellEnd] - this.offsets[this.cellIndex + 1]);
+      } else {
+         return this.offsets[this.cellEnd] - this.offsets[this.cellIndex];
+      }
+   }
+
+   @Override
+   public int characteristics() {
+      return Spliterator.NONNULL;
+   }
+
+   /**
+    * Reads the current cell's data; points of cells cleared in the meantime are skipped.
+    */
+   private void open() {
+      final TreeCell cell = this.cells[this.cellIndex];
+      this.buffer = cell.getPointData();
+      this.indices = (this.buffer == null) ? cell.getPointIndices() : null;
+
+      final int count = (this.buffer == null) ? this.indices.length : this.buffer.capacity() / this.tree.getAttributes().stride;
+      this.pointEnd = (this.pointEnd == -1) ? count : Math.min(this.pointEnd, count);
+      this.isOpen = true;
+   }
+
+   private void advance() {
+      final TreeCell cell = this.cells[this.cellIndex];
+
+      if (this.buffer == null) {
+         final PointIndex pointIndex = this.indices[this.pointIndex];
+         this.cursor.set(cell, this.tree.getPoint(pointIndex).getRawData(), 0, pointIndex.index);
+      } else {
+         this.cursor.set(cell, this.buffer, this.pointIndex, this.pointIndex);
+      }
+
+      this.pointIndex++;
+   }
+
+   private void next() {
+      this.cellIndex++;
+      this.pointIndex = 0;
+      this.pointEnd = -1;
+      this.isOpen = false;
+      this.buffer = null;
+      this.indices = null;
+   }
+
+   private static long[] getOffsets(final TreeCell[] cells) {
+      final long[] offsets = new long[cells.length + 1];
+
+      for (int i = 0; i < cells.length; i++) {
+         offsets[i + 1] = offsets[i] + cells[i].getPointCount();
+      }
+
+      return offsets;
+   }
+}
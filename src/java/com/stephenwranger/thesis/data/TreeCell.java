@@ -10,6 +10,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.stephenwranger.graphics.bounds.BoundingBox;
 import com.stephenwranger.graphics.bounds.BoundingVolume;
@@ -28,6 +30,9 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
    public final String                        path;
    private final TreeStructure                tree;
    private final BoundingVolume               bounds;
+   private final double                       boundingRadius;
+   private final double[]                     corners;
+   private final double                       volume;
    private final DataAttributes               attributes;
    private final int                          stride;
    private final Map<Integer, BoundingVolume> childBounds   = new HashMap<>();
@@ -43,9 +48,15 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
    // used only when reading tree from filesystem or http
    private byte[]                             pointBuffer   = null;
    private ByteBuffer                         gpuBuffer     = null;
+   private int                                loadedCount   = -1;
    private String[]                           children      = null;
-   private Status                             status        = Status.EMPTY;
+   private boolean                            isDecoded     = false;
+   private Tuple3d                            localOrigin   = null;
+   private volatile Status                    status        = Status.EMPTY;
+   private volatile int                       generation    = 0;
    private BoundingBox                        pointBounds;
+   private volatile CellSummary               summary       = null;
+   private volatile boolean                   isSummaryRead = false;
 
    protected TreeCell(final TreeStructure tree, final String path) {
       this.tree = tree;
@@ -53,6 +64,9 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
       this.cellSplit = tree.getCellSplit().clone();
 
       this.bounds = tree.getBoundingVolume(this.path);
+      this.boundingRadius = TreeCell.getBoundingRadius(this.bounds);
+      this.corners = TreeCell.getCorners(this.bounds);
+      this.volume = TreeCell.getVolume(this.bounds, this.boundingRadius);
       this.attributes = tree.getAttributes();
       this.stride = this.attributes.stride;
 
@@ -100,16 +114,117 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
       return insertedInto;
    }
 
-   public void clearData() {
+   public synchronized void clearData() {
       this.pointBuffer = null;
+      this.gpuBuffer = null;
+      this.loadedCount = -1;
       this.children = null;
+      this.isDecoded = false;
       this.status = Status.EMPTY;
    }
 
+   /**
+    * Converts the raw point data set via {@link #setRawData(byte[], String[])} into the final gpu vertex format relative
+    * to this cell's local origin and marks this cell as complete. Does nothing if the cell was cleared in the meantime.
+    */
+   public synchronized void decode() {
+      this.decodeBuffer();
+      this.setComplete();
+   }
+
+   /**
+    * Same as {@link #decode()} but leaves the cell pending; used to publish a group of cells together via
+    * {@link #setComplete()}.
+    */
+   public synchronized void decodeBuffer() {
+      if ((this.pointBuffer != null) && (this.status == Status.PENDING)) {
+         this.loadGpuBuffer();
+      }
+   }
+
+   /**
+    * Marks this cell as complete if it was decoded and not cleared in the meantime.
+    */
+   public synchronized void setComplete() {
+      if ((this.pointBuffer != null) && this.isDecoded && (this.status == Status.PENDING)) {
+         this.generation++;
+         this.status = Status.COMPLETE;
+         this.notifyAll();
+      }
+   }
+
+   /**
+    * Blocks until this cell is complete or the given time has passed.
+    *
+    * @param timeoutMillis
+    * @return true if the cell is complete
+    * @throws InterruptedException
+    */
+   public synchronized boolean awaitComplete(final long timeoutMillis) throws InterruptedException {
+      final long end = System.currentTimeMillis() + timeoutMillis;
+      long remaining = timeoutMillis;
+
+      while ((this.status != Status.COMPLETE) && (remaining > 0)) {
+         this.wait(remaining);
+         remaining = end - System.currentTimeMillis();
+      }
+
+      return this.status == Status.COMPLETE;
+   }
+
    public BoundingVolume getBoundingVolume() {
       return this.bounds;
    }
 
+   /**
+    * Returns a number that changes every time this cell completes loading; anything derived from a complete cell's data
+    * (eg, its child list) is stale once this differs from when it was derived.
+    *
+    * @return
+    */
+   public int getGeneration() {
+      return this.generation;
+   }
+
+   /**
+    * Returns the point all gpu vertex positions of this cell are relative to (the center of its point bounds) or null if
+    * the cell has not been decoded; the returned tuple must not be modified.
+    *
+    * @return
+    */
+   public Tuple3d getLocalOrigin() {
+      return this.localOrigin;
+   }
+
+   /**
+    * Returns the radius of a sphere around {@link BoundingVolume#getCenter()} that fully contains this cell's bounding
+    * volume.
+    *
+    * @return
+    */
+   public double getBoundingRadius() {
+      return this.boundingRadius;
+   }
+
+   /**
+    * Returns the x, y, z of every corner of this cell's bounding volume in a single array (3 values per corner); the
+    * returned array must not be modified.
+    *
+    * @return
+    */
+   public double[] getCorners() {
+      return this.corners;
+   }
+
+   /**
+    * Returns the volume of this cell's bounding volume in cubic meters.
+    *
+    * @return
+    */
+   public double getVolume() {
+      return this.volume;
+   }
+
    @Override
    public int getBufferIndex() {
       return this.bufferIndex;
@@ -159,12 +274,125 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
       }
    }
 
+   /**
+    * Returns the absolute x, y, z of every point in this cell in a single array (3 values per point) or null if this
+    * cell holds no point data.
+    *
+    * @return
+    */
+   public synchronized double[] getPositions() {
+      if (this.pointBuffer != null) {
+         final int pointCount = this.getPointCount();
+         final double[] positions = new double[pointCount * 3];
+         final ByteBuffer temp = ByteBuffer.wrap(this.pointBuffer).order(ByteOrder.LITTLE_ENDIAN);
+
+         for (int i = 0; i < pointCount; i++) {
+            positions[i * 3] = this.tree.xAttribute.getValue(temp, i, this.stride).doubleValue();
+            positions[(i * 3) + 1] = this.tree.yAttribute.getValue(temp, i, this.stride).doubleValue();
+            positions[(i * 3) + 2] = this.tree.zAttribute.getValue(temp, i, this.stride).doubleValue();
+         }
+
+         return positions;
+      } else if (!this.points.isEmpty()) {
+         final double[] positions = new double[this.points.size() * 3];
+         int offset = 0;
+
+         for (final PointIndex pointIndex : this.points) {
+            this.tree.getPoint(pointIndex).getXYZ(this.tree, this.tempTuple);
+            positions[offset++] = this.tempTuple.x;
+            positions[offset++] = this.tempTuple.y;
+            positions[offset++] = this.tempTuple.z;
+         }
+
+         return positions;
+      }
+
+      return null;
+   }
+
+   /**
+    * Returns a little endian view of the loaded raw point data or null if this cell holds no loaded data.
+    *
+    * @return
+    */
+   synchronized ByteBuffer getPointData() {
+      return (this.pointBuffer == null) ? null : ByteBuffer.wrap(this.pointBuffer).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /**
+    * Returns a snapshot of the indices of the points added while building the tree.
+    *
+    * @return
+    */
+   synchronized PointIndex[] getPointIndices() {
+      return this.points.toArray(new PointIndex[this.points.size()]);
+   }
+
+   /**
+    * Returns a stream over the points of this cell through a reusable {@link PointCursor}; see
+    * {@link TreeStructure#points()}.
+    *
+    * @return
+    */
+   public Stream<PointCursor> points() {
+      return StreamSupport.stream(new PointSpliterator(this.tree, new TreeCell[] { this }), false);
+   }
+
+   /**
+    * Returns the attribute summaries read via {@link TreeServerConnection#getSummary(TreeCell)} or null if they were not
+    * read (or don't exist).
+    *
+    * @return
+    */
+   public CellSummary getSummary() {
+      return this.summary;
+   }
+
+   public boolean isSummaryRead() {
+      return this.isSummaryRead;
+   }
+
+   public void setSummary(final CellSummary summary) {
+      this.summary = summary;
+      this.isSummaryRead = true;
+   }
+
    public BoundingBox getPointBounds() {
       return this.pointBounds;
    }
 
    public int getPointCount() {
-      return (this.pointBuffer == null) ? this.points.size() : this.pointBuffer.length / this.stride;
+      return (this.loadedCount == -1) ? this.points.size() : this.loadedCount;
+   }
+
+   /**
+    * Returns the number of bytes of point data (raw and gpu format) currently held by this cell.
+    *
+    * @return
+    */
+   public long getDataSize() {
+      final byte[] raw = this.pointBuffer;
+      final ByteBuffer gpu = this.gpuBuffer;
+
+      return ((raw == null) ? 0 : raw.length) + ((gpu == null) ? 0 : gpu.capacity());
+   }
+
+   /**
+    * Returns true if this cell is complete and still has the data needed by {@link #loadBuffer(Tuple3d, ByteBuffer)}.
+    *
+    * @return
+    */
+   public synchronized boolean isUploadable() {
+      return this.isComplete() && ((this.gpuBuffer != null) || (this.pointBuffer != null));
+   }
+
+   /**
+    * Drops the gpu format copy of the point data (eg, once uploaded); it is rebuilt from the raw data if needed again.
+    */
+   public synchronized void releaseGpuBuffer() {
+      if (this.pointBuffer != null) {
+         this.gpuBuffer = null;
+      }
    }
 
    @Override
@@ -202,6 +430,10 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
       return this.status == Status.EMPTY;
    }
 
+   public boolean isPending() {
+      return this.status == Status.PENDING;
+   }
+
    @Override
    public Iterator<Point> iterator() {
       if (this.pointBuffer == null) {
@@ -244,26 +476,43 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
    }
 
    /**
-    * Will load into buffer X,Y,Z,R,G,B,Altitude,Intensity as float values.
+    * Will load into buffer the compact vertex format written by {@link DataAttributes#loadBuffer}; X,Y,Z are always
+    * relative to {@link #getLocalOrigin()} so the given origin is ignored.
     *
     * @param buffer
     */
    @Override
-   public void loadBuffer(final Tuple3d origin, final ByteBuffer buffer) {
-      this.loadGpuBuffer(origin);
+   public synchronized void loadBuffer(final Tuple3d origin, final ByteBuffer buffer) {
+      // normally already decoded by a decoder thread; rebuilt here if released after a previous upload
+      if (!this.isDecoded || (this.gpuBuffer == null)) {
+         this.loadGpuBuffer();
+      }
+
       buffer.put(this.gpuBuffer);
       this.gpuBuffer.rewind();
    }
 
    public void setData(final byte[] buffer, final String[] children) {
+      this.setRawData(buffer, children);
+      this.decode();
+   }
+
+   /**
+    * Sets the fetched point data and child list without decoding it; the cell remains pending until
+    * {@link #decode(Tuple3d)} is called.
+    *
+    * @param buffer
+    * @param children
+    */
+   public synchronized void setRawData(final byte[] buffer, final String[] children) {
       this.pointBuffer = buffer;
+      this.loadedCount = (buffer == null) ? -1 : buffer.length / this.stride;
       this.children = children;
+      this.isDecoded = false;
       this.points.clear();
       this.pointsByChild.clear();
 
-      this.loadGpuBuffer(new Tuple3d(0, 0, 0));
-
-      this.status = Status.COMPLETE;
+      this.status = Status.PENDING;
    }
 
    public void setPending() {
@@ -281,7 +530,54 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
       return "[TreeCell: " + this.path + ", point count: " + this.getPointCount() + ", status: " + this.status + "]";
    }
 
-   private void loadGpuBuffer(final Tuple3d origin) {
+   private static double getBoundingRadius(final BoundingVolume bounds) {
+      if (bounds instanceof BoundingBox) {
+         final BoundingBox box = (BoundingBox) bounds;
+
+         return box.getMin().distance(box.getMax()) / 2.0;
+      } else if (bounds instanceof TrianglePrismVolume) {
+         final TrianglePrismVolume prism = (TrianglePrismVolume) bounds;
+         final Tuple3d center = prism.getCenter();
+         double radius = 0.0;
+
+         for (final Tuple3d corner : prism.getTopFace().getCorners()) {
+            radius = Math.max(radius, center.distance(corner));
+         }
+
+         for (final Tuple3d corner : prism.getBottomFace().getCorners()) {
+            radius = Math.max(radius, center.distance(corner));
+         }
+
+         return radius;
+      } else {
+         return bounds.getSpannedDistance(null) / 2.0;
+      }
+   }
+
+   private static double[] getCorners(final BoundingVolume bounds) {
+      final Tuple3d[] corners = bounds.getCorners();
+      final double[] values = new double[corners.length * 3];
+
+      for (int i = 0; i < corners.length; i++) {
+         values[i * 3] = corners[i].x;
+         values[(i * 3) + 1] = corners[i].y;
+         values[(i * 3) + 2] = corners[i].z;
+      }
+
+      return values;
+   }
+
+   private static double getVolume(final BoundingVolume bounds, final double boundingRadius) {
+      if (bounds instanceof BoundingBox) {
+         return ((BoundingBox) bounds).getVolume();
+      } else if (bounds instanceof TrianglePrismVolume) {
+         return ((TrianglePrismVolume) bounds).getVolume();
+      } else {
+         return (4.0 / 3.0) * Math.PI * boundingRadius * boundingRadius * boundingRadius;
+      }
+   }
+
+   private void loadGpuBuffer() {
       final int pointCount = this.getPointCount();
 
       if ((this.gpuBuffer == null) || (this.gpuBuffer.capacity() != (this.attributes.getGpuSize() * pointCount))) {
@@ -294,20 +590,32 @@ public abstract class TreeCell implements Iterable<Point>, SegmentObject {
       final Tuple3d max = new Tuple3d(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
 
       final ByteBuffer temp = ByteBuffer.wrap(this.pointBuffer).order(ByteOrder.LITTLE_ENDIAN);
-      final Tuple3d xyz = new Tuple3d();
+
+      // first pass only finds the point bounds; their center is used as the local origin so the float offsets stay
+      // small (and precise) regardless of where the cell is in the world
+      for (int i = 0; i < pointCount; i++) {
+         final double x = this.tree.xAttribute.getValue(temp, i, this.stride).doubleValue();
+         final double y = this.tree.yAttribute.getValue(temp, i, this.stride).doubleValue();
+         final double z = this.tree.zAttribute.getValue(temp, i, this.stride).doubleValue();
+
+         min.x = Math.min(min.x, x);
+         min.y = Math.min(min.y, y);
+         min.z = Math.min(min.z, z);
+
+         max.x = Math.max(max.x, x);
+         max.y = Math.max(max.y, y);
+         max.z = Math.max(max.z, z);
+      }
+
+      final Tuple3d origin = (pointCount == 0) ? new Tuple3d(this.bounds.getCenter()) : new Tuple3d((min.x + max.x) / 2.0, (min.y + max.y) / 2.0, (min.z + max.z) / 2.0);
 
       for (int i = 0; i < pointCount; i++) {
-         this.attributes.loadBuffer(origin, this.gpuBuffer, temp, i, xyz);
-         min.x = Math.min(min.x, xyz.x);
-         min.y = Math.min(min.y, xyz.y);
-         min.z = Math.min(min.z, xyz.z);
-
-         max.x = Math.max(max.x, xyz.x);
-         max.y = Math.max(max.y, xyz.y);
-         max.z = Math.max(max.z, xyz.z);
+         this.attributes.loadBuffer(origin, this.gpuBuffer, temp, i, null);
       }
 
       this.pointBounds = new BoundingBox(min, max);
+      this.localOrigin = origin;
+      this.isDecoded = true;
 
       this.gpuBuffer.rewind();
    }
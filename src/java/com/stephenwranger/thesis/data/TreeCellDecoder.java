@@ -0,0 +1,62 @@
+package com.stephenwranger.thesis.data;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Worker that converts fetched {@link TreeCell} data into the final gpu vertex format relative to each cell's local
+ * origin so the render thread only has to copy the result into its vertex buffer. Cells are queued in sibling
+ * groups and the whole group is marked complete together once every cell in it has been decoded.
+ */
+public class TreeCellDecoder extends Thread {
+   private final BlockingQueue<List<TreeCell>> decodeQueue;
+   private final TreeServerConnection          connection;
+
+   private volatile boolean                    isRunning = true;
+
+   public TreeCellDecoder(final TreeServerConnection connection, final BlockingQueue<List<TreeCell>> decodeQueue) {
+      this.connection = connection;
+      this.decodeQueue = decodeQueue;
+
+      this.setDaemon(true);
+   }
+
+   @Override
+   public void run() {
+      while (this.isRunning) {
+         try {
+            final List<TreeCell> siblings = this.decodeQueue.take();
+
+            final LoaderStatistics statistics = this.connection.getStatistics();
+
+            for (final TreeCell treeCell : siblings) {
+               final long startTime = System.nanoTime();
+               treeCell.decodeBuffer();
+               statistics.decoded(System.nanoTime() - startTime);
+            }
+
+            final CellMemoryManager memory = this.connection.getMemoryManager();
+
+            // headless connections have no render loop to keep them under budget
+            memory.maintainUnlessRendered();
+            // registered before completing so anyone clearing a cell once it completes also unregisters it
+            memory.loaded(siblings);
+
+            for (final TreeCell treeCell : siblings) {
+               treeCell.setComplete();
+            }
+
+            statistics.completed(siblings.size());
+         } catch (final InterruptedException e) {
+            if (this.isRunning) {
+               e.printStackTrace();
+            }
+         }
+      }
+   }
+
+   public void close() {
+      this.isRunning = false;
+      this.interrupt();
+   }
+}
@@ -1,31 +1,98 @@
 package com.stephenwranger.thesis.data;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.stephenwranger.thesis.data.TreeServerProcessor.ConnectionType;
+import com.stephenwranger.thesis.icosatree.Icosatree;
+import com.stephenwranger.thesis.octree.Octree;
 
-public class TreeServerConnection {
-   private final List<TreeServerProcessor> processors    = new ArrayList<>();
-   private int                             nextProcessor = 0;
+public class TreeServerConnection implements TreeServerConnectionMXBean {
+   private final List<TreeServerProcessor>          processors    = new ArrayList<>();
+   private final Map<TreeCell, TreeServerProcessor> prefetched    = new HashMap<>();
+   private final List<TreeCellDecoder>              decoders      = new ArrayList<>();
+   private final BlockingQueue<List<TreeCell>>      decodeQueue   = new LinkedBlockingQueue<>();
+   private final LoaderStatistics                   statistics    = new LoaderStatistics();
+   private final CellMemoryManager                  memory        = new CellMemoryManager();
+   private final TreeStructure                      tree;
+   private final String                             basePath;
+   private final ConnectionType                     connectionType;
+   private ObjectName                               objectName    = null;
 
    public TreeServerConnection(final TreeStructure tree, final String basePath, final ConnectionType connectionType) {
+      this.tree = tree;
+      this.basePath = basePath;
+      this.connectionType = connectionType;
+
       final int numProcessors = Math.max(Runtime.getRuntime().availableProcessors() - 2, 1);
+      final int numDecoders = Integer.getInteger("decodeThreads", Math.max(Runtime.getRuntime().availableProcessors() / 2, 1));
 
       for (int i = 0; i < numProcessors; i++) {
-         this.processors.add(new TreeServerProcessor(tree, basePath, connectionType));
+         this.processors.add(new TreeServerProcessor(tree, basePath, connectionType, this.decodeQueue, this.statistics));
+      }
+
+      for (int i = 0; i < numDecoders; i++) {
+         this.decoders.add(new TreeCellDecoder(this, this.decodeQueue));
       }
 
       for (final TreeServerProcessor processor : this.processors) {
          processor.start();
       }
+
+      for (final TreeCellDecoder decoder : this.decoders) {
+         decoder.start();
+      }
+
+      try {
+         final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         this.objectName = new ObjectName("com.stephenwranger.thesis:type=TreeServerConnection,name=" + ObjectName.quote(basePath));
+
+         if (!server.isRegistered(this.objectName)) {
+            server.registerMBean(this, this.objectName);
+         } else {
+            this.objectName = null;
+         }
+      } catch (final JMException e) {
+         e.printStackTrace();
+         this.objectName = null;
+      }
    }
 
    public synchronized void close() {
+      this.memory.close();
+
       for (final TreeServerProcessor processor : this.processors) {
          processor.close();
       }
 
+      for (final TreeCellDecoder decoder : this.decoders) {
+         decoder.close();
+      }
+
+      if (this.objectName != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+         } catch (final JMException e) {
+            e.printStackTrace();
+         }
+
+         this.objectName = null;
+      }
+
       for (final TreeServerProcessor processor : this.processors) {
          try {
             processor.join();
@@ -35,16 +102,298 @@ public class TreeServerConnection {
       }
    }
 
+   @Override
+   public long getBytesRead() {
+      return this.statistics.getBytesRead();
+   }
+
+   @Override
+   public double getBytesPerSecond() {
+      return this.statistics.getBytesPerSecond();
+   }
+
+   @Override
+   public long getCompletedCount() {
+      return this.statistics.getCompleted();
+   }
+
+   @Override
+   public double getDecodeLatencyMillis50() {
+      return this.statistics.getDecodeLatencyMillis(50);
+   }
+
+   @Override
+   public double getDecodeLatencyMillis90() {
+      return this.statistics.getDecodeLatencyMillis(90);
+   }
+
+   @Override
+   public double getDecodeLatencyMillis99() {
+      return this.statistics.getDecodeLatencyMillis(99);
+   }
+
+   @Override
+   public double getDecodeLatencyMillisMax() {
+      return this.statistics.getDecodeLatencyMillis(100);
+   }
+
+   @Override
+   public int getDecoderCount() {
+      return this.decoders.size();
+   }
+
+   @Override
+   public double getFetchLatencyMillis50() {
+      return this.statistics.getFetchLatencyMillis(50);
+   }
+
+   @Override
+   public double getFetchLatencyMillis90() {
+      return this.statistics.getFetchLatencyMillis(90);
+   }
+
+   @Override
+   public double getFetchLatencyMillis99() {
+      return this.statistics.getFetchLatencyMillis(99);
+   }
+
+   @Override
+   public double getFetchLatencyMillisMax() {
+      return this.statistics.getFetchLatencyMillis(100);
+   }
+
+   @Override
+   public int getInFlightCount() {
+      return this.statistics.getInFlight();
+   }
+
+   @Override
+   public long getPrefetchedCount() {
+      return this.statistics.getPrefetched();
+   }
+
+   @Override
+   public int getProcessorCount() {
+      return this.processors.size();
+   }
+
+   @Override
+   public int getQueuedDecodeCount() {
+      return this.decodeQueue.size();
+   }
+
+   @Override
+   public int getQueuedPrefetchCount() {
+      int count = 0;
+
+      for (final TreeServerProcessor processor : this.processors) {
+         count += processor.getPrefetchCount();
+      }
+
+      return count;
+   }
+
+   @Override
+   public int getQueuedRequestCount() {
+      int count = 0;
+
+      for (final TreeServerProcessor processor : this.processors) {
+         count += processor.getRequestCount();
+      }
+
+      return count;
+   }
+
+   @Override
+   public long getRequestedCount() {
+      return this.statistics.getRequested();
+   }
+
+   /**
+    * Returns the manager that keeps the data of loaded cells under the heap budget.
+    *
+    * @return
+    */
+   public CellMemoryManager getMemoryManager() {
+      return this.memory;
+   }
+
+   /**
+    * Returns the attribute summaries of the given cell, reading them on first use; they are kept with the cell even
+    * when its point data is cleared.
+    *
+    * @param treeCell
+    * @return the summary or null if the tree was exported without summaries
+    */
+   public CellSummary getSummary(final TreeCell treeCell) {
+      if (!treeCell.isSummaryRead()) {
+         final String filename = TreeServerProcessor.getCellFilename(treeCell, CellSummary.EXTENSION);
+         CellSummary summary = null;
+
+         switch (this.connectionType) {
+            case FILESYSTEM:
+               summary = TreeServerProcessor.getSummary(new File(this.basePath, filename), this.tree.getAttributes());
+               break;
+            case HTTP:
+               try {
+                  summary = TreeServerProcessor.getSummary(new URL(this.basePath + "/" + filename), this.tree.getAttributes());
+               } catch (final IOException e) {
+                  e.printStackTrace();
+               }
+               break;
+         }
+
+         treeCell.setSummary(summary);
+      }
+
+      return treeCell.getSummary();
+   }
+
+   /**
+    * Sets the attribute predicates all points loaded from now on have to pass; see
+    * {@link TreeServerProcessor#setPredicates(List)}. Every complete cell is evicted through the
+    * {@link CellMemoryManager} so all cells are loaded again under the same predicates (cells holding a gpu segment are
+    * only cleared once the renderer drains its evictions).
+    * <p>
+    * The predicates change the data of the tree's cells themselves so this connection (and its tree) must be dedicated
+    * to the one consumer that wants them: queries sharing it would read the filtered cells and their summary based
+    * pruning would no longer describe the loaded points. Queries that only need filtered results should use their own
+    * predicates (eg, {@link com.stephenwranger.thesis.query.TreeQuery#addPredicate}) instead. Cells still being loaded
+    * when this is called may complete under the previous predicates so it is best called before any cells are
+    * requested.
+    *
+    * @param predicates
+    */
+   public void setPredicates(final List<AttributePredicate> predicates) {
+      for (final TreeServerProcessor processor : this.processors) {
+         processor.setPredicates(predicates);
+      }
+
+      this.tree.cells().filter(TreeCell::isComplete).forEach(this.memory::evict);
+   }
+
+   public LoaderStatistics getStatistics() {
+      return this.statistics;
+   }
+
+   @Override
+   public void resetStatistics() {
+      this.statistics.reset();
+   }
+
+   /**
+    * Requests the given cell; if the cell is already waiting in a prefetch queue, it is moved up to the request queue.
+    *
+    * @param treeCell
+    */
    public synchronized void request(final TreeCell treeCell) {
-      if (treeCell.isEmpty()) {
-         treeCell.setPending();
+      this.request(Collections.singletonList(treeCell));
+   }
+
+   /**
+    * Requests all of the given cells; siblings are always sent to the same processor so they can be fetched together.
+    * Any cells already waiting in a prefetch queue are moved up to the request queue.
+    *
+    * @param treeCells
+    */
+   public synchronized void request(final Collection<TreeCell> treeCells) {
+      final Map<TreeServerProcessor, List<TreeCell>> batches = new HashMap<>();
+
+      for (final TreeCell treeCell : treeCells) {
+         if (treeCell.isEmpty()) {
+            treeCell.setPending();
+
+            final TreeServerProcessor processor = this.getProcessor(treeCell);
+            List<TreeCell> batch = batches.get(processor);
 
-         final int index = this.nextProcessor;
-         this.nextProcessor = (this.nextProcessor + 1) % this.processors.size();
+            if (batch == null) {
+               batch = new ArrayList<>();
+               batches.put(processor, batch);
+            }
+
+            batch.add(treeCell);
+         } else if (treeCell.isPending()) {
+            final TreeServerProcessor processor = this.prefetched.remove(treeCell);
+
+            if (processor != null) {
+               processor.promotePrefetchCell(treeCell);
+            }
+         }
+      }
 
-         new Thread(() -> {
-            this.processors.get(index).addRequestedCell(treeCell);
-         }).start();
+      for (final Map.Entry<TreeServerProcessor, List<TreeCell>> entry : batches.entrySet()) {
+         this.statistics.addRequested(entry.getValue().size());
+         entry.getKey().addRequestedCells(entry.getValue());
       }
    }
+
+   /**
+    * Queues the given cells at a lower priority than any cells added via {@link #request(TreeCell)}.
+    *
+    * @param treeCells
+    */
+   public synchronized void prefetch(final Collection<TreeCell> treeCells) {
+      // anything no longer pending has already been fetched (or cleared) and no longer needs tracking
+      this.prefetched.keySet().removeIf((cell) -> !cell.isPending());
+
+      for (final TreeCell treeCell : treeCells) {
+         if (treeCell.isEmpty()) {
+            treeCell.setPending();
+
+            final TreeServerProcessor processor = this.getProcessor(treeCell);
+
+            this.prefetched.put(treeCell, processor);
+            this.statistics.addPrefetched(1);
+            processor.addPrefetchCell(treeCell);
+         }
+      }
+   }
+
+   /**
+    * Creates an empty {@link Icosatree} or {@link Octree} (depending on the root's child paths) for the tree exported to
+    * the given path.
+    *
+    * @param basePath
+    * @param connectionType
+    * @return the tree or null if its root information couldn't be read
+    */
+   public static TreeStructure initializeTree(final String basePath, final ConnectionType connectionType) {
+      DataAttributes attributes = null;
+      String[] children = null;
+      TreeStructure tree = null;
+      int maxPoints = -1;
+
+      try {
+         switch (connectionType) {
+            case FILESYSTEM:
+               children = TreeServerProcessor.getChildren(new File(basePath, "root.txt"));
+               attributes = TreeServerProcessor.getAttributes(new File(basePath, "attributes.csv"));
+               maxPoints = TreeServerProcessor.getMaxPoints(new File(basePath, "root.txt"));
+               break;
+            case HTTP:
+               children = TreeServerProcessor.getChildren(new URL(basePath + "/root.txt"));
+               attributes = TreeServerProcessor.getAttributes(new URL(basePath + "/attributes.csv"));
+               maxPoints = TreeServerProcessor.getMaxPoints(new URL(basePath + "/root.txt"));
+               break;
+         }
+      } catch (final IOException e) {
+         e.printStackTrace();
+      }
+
+      if ((attributes != null) && (children != null) && (children.length > 0)) {
+         if (Character.isAlphabetic(children[0].charAt(0))) {
+            tree = new Icosatree(attributes, maxPoints);
+         } else {
+            tree = new Octree(attributes, maxPoints);
+         }
+      }
+
+      return tree;
+   }
+
+   private TreeServerProcessor getProcessor(final TreeCell treeCell) {
+      final String parentPath = TreeServerProcessor.getParentPath(treeCell);
+
+      return this.processors.get(Math.floorMod(parentPath.hashCode(), this.processors.size()));
+   }
 }
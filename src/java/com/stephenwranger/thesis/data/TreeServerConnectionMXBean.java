@@ -0,0 +1,59 @@
+package com.stephenwranger.thesis.data;
+
+/**
+ * JMX view of a {@link TreeServerConnection}; registered under
+ * <code>com.stephenwranger.thesis:type=TreeServerConnection,name=&lt;base path&gt;</code>.
+ */
+public interface TreeServerConnectionMXBean {
+   public int getProcessorCount();
+
+   public int getDecoderCount();
+
+   /**
+    * Number of visible cells waiting to be fetched across all processors.
+    */
+   public int getQueuedRequestCount();
+
+   /**
+    * Number of prefetch cells waiting to be fetched across all processors.
+    */
+   public int getQueuedPrefetchCount();
+
+   /**
+    * Number of sibling groups that have been read and are waiting for a decoder.
+    */
+   public int getQueuedDecodeCount();
+
+   /**
+    * Number of cells currently being read or decoded (including those waiting for a decoder).
+    */
+   public int getInFlightCount();
+
+   public long getRequestedCount();
+
+   public long getPrefetchedCount();
+
+   public long getCompletedCount();
+
+   public long getBytesRead();
+
+   public double getBytesPerSecond();
+
+   public double getFetchLatencyMillis50();
+
+   public double getFetchLatencyMillis90();
+
+   public double getFetchLatencyMillis99();
+
+   public double getFetchLatencyMillisMax();
+
+   public double getDecodeLatencyMillis50();
+
+   public double getDecodeLatencyMillis90();
+
+   public double getDecodeLatencyMillis99();
+
+   public double getDecodeLatencyMillisMax();
+
+   public void resetStatistics();
+}
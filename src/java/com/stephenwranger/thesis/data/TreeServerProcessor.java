@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -11,28 +12,69 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import com.stephenwranger.thesis.query.QueryRegion;
+
 public class TreeServerProcessor extends Thread {
    public enum ConnectionType {
       FILESYSTEM, HTTP
    }
    
+   /** Orders cells by depth and then path which matches their directory order on disk and keeps siblings adjacent. */
+   public static final Comparator<TreeCell> PATH_COMPARATOR = new Comparator<TreeCell>() {
+      @Override
+      public int compare(final TreeCell o1, final TreeCell o2) {
+         final int depth = Integer.compare(o1.path.length(), o2.path.length());
+         
+         return (depth == 0) ? o1.path.compareTo(o2.path) : depth;
+      }
+   };
+   
    private final BlockingQueue<TreeCell> requests = new LinkedBlockingQueue<>();
+   private final BlockingQueue<TreeCell> prefetches = new LinkedBlockingQueue<>();
+   private final BlockingQueue<List<TreeCell>> decodeQueue;
+   private final LoaderStatistics statistics;
    private final String basePath;
    private final ConnectionType connectionType;
    private final int stride;
+   private final DataAttributes attributes;
    
-   private boolean isRunning = true;
+   private volatile boolean isRunning = true;
+   private volatile List<AttributePredicate> predicates = Collections.emptyList();
    
    public TreeServerProcessor(final TreeStructure tree, final String basePath, final ConnectionType connectionType) {
+      this(tree, basePath, connectionType, null, new LoaderStatistics());
+   }
+   
+   /**
+    * Creates a processor that only fetches cells and hands them to the given queue, grouped by parent, to be decoded;
+    * if the queue is null, cells are decoded on this thread.
+    * 
+    * @param tree
+    * @param basePath
+    * @param connectionType
+    * @param decodeQueue
+    * @param statistics
+    *           counters to update while fetching
+    */
+   public TreeServerProcessor(final TreeStructure tree, final String basePath, final ConnectionType connectionType, final BlockingQueue<List<TreeCell>> decodeQueue, final LoaderStatistics statistics) {
       this.basePath = basePath;
       this.connectionType = connectionType;
+      this.decodeQueue = decodeQueue;
+      this.statistics = statistics;
       
       this.stride = tree.getAttributes().stride;
+      this.attributes = tree.getAttributes();
+      
+      // like the decoders; headless tools must be able to exit even if close() is never reached
+      this.setDaemon(true);
    }
    
    @Override
@@ -40,26 +82,53 @@ public class TreeServerProcessor extends Thread {
       while(this.isRunning) {
          synchronized(this) {
             try {
-               this.wait();
+               // prefetches are worked through between notifications so only sleep once both queues are empty
+               // checked while holding the monitor so a close() can't slip in between the check and the wait
+               if(this.isRunning && this.requests.isEmpty() && this.prefetches.isEmpty()) {
+                  this.wait();
+               }
             } catch (final InterruptedException e) {
                e.printStackTrace();
             }
          }
          
-         if(isRunning) {
+         if(this.isRunning) {
             final List<TreeCell> toProcess = new LinkedList<>();
             this.requests.drainTo(toProcess);
+            this.fetchBatch(toProcess);
             
-            for(final TreeCell treeCell : toProcess) {
-               this.fetchRequest(treeCell);
+            // only take a single sibling group of prefetches at a time so newly visible cells are never stuck behind a
+            // long prefetch list
+            if(this.requests.isEmpty()) {
+               final TreeCell prefetch = this.prefetches.poll();
+               
+               if(prefetch != null) {
+                  final String parentPath = TreeServerProcessor.getParentPath(prefetch);
+                  final List<TreeCell> siblings = new ArrayList<>();
+                  siblings.add(prefetch);
+                  
+                  this.prefetches.removeIf((cell) -> {
+                     final boolean isSibling = parentPath.equals(TreeServerProcessor.getParentPath(cell));
+                     
+                     if(isSibling) {
+                        siblings.add(cell);
+                     }
+                     
+                     return isSibling;
+                  });
+                  
+                  this.fetchBatch(siblings);
+               }
             }
          }
       }
    }
    
    public void close() {
-      this.isRunning = false;
-      this.notify();
+      synchronized(this) {
+         this.isRunning = false;
+         this.notify();
+      }
    }
    
    public void addRequestedCell(final TreeCell treeCell) {
@@ -69,36 +138,184 @@ public class TreeServerProcessor extends Thread {
       }
    }
    
-   private void fetchRequest(final TreeCell treeCell) {
-      final String filename = treeCell.path.isEmpty() ? "root" : Character.toString(treeCell.path.charAt(treeCell.path.length() - 1));
-      final String dat = String.join("/", treeCell.path.split("")) + "/" + filename + ".dat";
-      final String txt = String.join("/", treeCell.path.split("")) + "/" + filename + ".txt";
-      byte[] buffer = null;
-      String[] children = null;
-      
-      switch(this.connectionType) {
-         case FILESYSTEM:
-            final File datFile = new File(this.basePath, dat);
-            final File txtFile = new File(this.basePath, txt);
+   /**
+    * Sets the predicates all points fetched from now on have to pass; cells whose stored summaries show that none of
+    * their points (or none of their subtree's points) can pass are not read at all and only cells that straddle a
+    * predicate are filtered point by point.
+    * 
+    * @param predicates
+    */
+   public void setPredicates(final List<AttributePredicate> predicates) {
+      this.predicates = Collections.unmodifiableList(new ArrayList<>(predicates));
+   }
+   
+   public int getRequestCount() {
+      return this.requests.size();
+   }
+   
+   public int getPrefetchCount() {
+      return this.prefetches.size();
+   }
+   
+   /**
+    * Queues all of the given cells with a single notification so they are fetched together as one batch.
+    * 
+    * @param treeCells
+    */
+   public void addRequestedCells(final Collection<TreeCell> treeCells) {
+      synchronized(this) {
+         this.requests.addAll(treeCells);
+         this.notify();
+      }
+   }
+   
+   /**
+    * Queues the given cell behind all cells added via {@link #addRequestedCell(TreeCell)}.
+    * 
+    * @param treeCell
+    */
+   public void addPrefetchCell(final TreeCell treeCell) {
+      synchronized(this) {
+         this.prefetches.add(treeCell);
+         this.notify();
+      }
+   }
+   
+   /**
+    * Moves the given cell from the prefetch queue to the request queue if it has not yet been fetched.
+    * 
+    * @param treeCell
+    * @return true if the cell was still waiting in the prefetch queue
+    */
+   public boolean promotePrefetchCell(final TreeCell treeCell) {
+      synchronized(this) {
+         if(this.prefetches.remove(treeCell)) {
+            this.requests.add(treeCell);
+            this.notify();
+            
+            return true;
+         }
+      }
+      
+      return false;
+   }
+   
+   /**
+    * Fetches the given cells sorted by their location on disk; each group of siblings is read back to back and only
+    * handed off once the whole group has been read so that a parent's children arrive as a unit.
+    * 
+    * @param treeCells
+    */
+   private void fetchBatch(final List<TreeCell> treeCells) {
+      treeCells.sort(TreeServerProcessor.PATH_COMPARATOR);
+      
+      final List<TreeCell> siblings = new ArrayList<>();
+      String parentPath = null;
+      
+      for(final TreeCell treeCell : treeCells) {
+         final String cellParentPath = TreeServerProcessor.getParentPath(treeCell);
+         
+         if(!siblings.isEmpty() && !cellParentPath.equals(parentPath)) {
+            this.fetchSiblings(siblings);
+            siblings.clear();
+         }
+         
+         parentPath = cellParentPath;
+         siblings.add(treeCell);
+      }
+      
+      if(!siblings.isEmpty()) {
+         this.fetchSiblings(siblings);
+      }
+   }
+   
+   private void fetchSiblings(final List<TreeCell> siblings) {
+      final byte[][] buffers = new byte[siblings.size()][];
+      final String[][] children = new String[siblings.size()][];
+      
+      this.statistics.fetchStarted(siblings.size());
+      
+      for(int i = 0; i < siblings.size(); i++) {
+         final long startTime = System.nanoTime();
+         final TreeCell treeCell = siblings.get(i);
+         final String dat = TreeServerProcessor.getCellFilename(treeCell, ".dat");
+         final String txt = TreeServerProcessor.getCellFilename(treeCell, ".txt");
+         final List<AttributePredicate> predicates = this.predicates;
+         int classification = QueryRegion.INSIDE;
+         
+         if(!predicates.isEmpty()) {
+            final String summaryFile = TreeServerProcessor.getCellFilename(treeCell, CellSummary.EXTENSION);
             
-            buffer = TreeServerProcessor.getData(treeCell, datFile, this.stride);
-            children = TreeServerProcessor.getChildren(txtFile);
-            break;
-         case HTTP:
             try {
-               final URL datUrl = new URL(this.basePath + "/" + dat);
-               final URL txtUrl = new URL(this.basePath + "/" + txt);
-               
-               buffer = TreeServerProcessor.getData(treeCell, datUrl, this.stride);
-               children = TreeServerProcessor.getChildren(txtUrl);
+               treeCell.setSummary((this.connectionType == ConnectionType.FILESYSTEM) ? TreeServerProcessor.getSummary(new File(this.basePath, summaryFile), this.attributes) : TreeServerProcessor.getSummary(new URL(this.basePath + "/" + summaryFile), this.attributes));
             } catch(final MalformedURLException e) {
                e.printStackTrace();
             }
             
-            break;
+            classification = AttributePredicate.classify(predicates, treeCell.getSummary(), false);
+            
+            // nothing below can pass either; complete the cell empty and without children
+            if(AttributePredicate.classify(predicates, treeCell.getSummary(), true) == QueryRegion.OUTSIDE) {
+               buffers[i] = new byte[0];
+               children[i] = new String[0];
+               this.statistics.fetched(System.nanoTime() - startTime, 0);
+               continue;
+            }
+         }
+         
+         switch(this.connectionType) {
+            case FILESYSTEM:
+               buffers[i] = (classification == QueryRegion.OUTSIDE) ? new byte[0] : TreeServerProcessor.getData(treeCell, new File(this.basePath, dat), this.stride);
+               children[i] = TreeServerProcessor.getChildren(new File(this.basePath, txt));
+               break;
+            case HTTP:
+               try {
+                  buffers[i] = (classification == QueryRegion.OUTSIDE) ? new byte[0] : TreeServerProcessor.getData(treeCell, new URL(this.basePath + "/" + dat), this.stride);
+                  children[i] = TreeServerProcessor.getChildren(new URL(this.basePath + "/" + txt));
+               } catch(final MalformedURLException e) {
+                  e.printStackTrace();
+               }
+               
+               break;
+         }
+         
+         if((classification == QueryRegion.PARTIAL) && (buffers[i] != null)) {
+            buffers[i] = AttributePredicate.filter(predicates, buffers[i], this.stride);
+         }
+         
+         this.statistics.fetched(System.nanoTime() - startTime, (buffers[i] == null) ? 0 : buffers[i].length);
       }
 
-      treeCell.setData(buffer, children);
+      if(this.decodeQueue == null) {
+         for(int i = 0; i < siblings.size(); i++) {
+            siblings.get(i).setData(buffers[i], children[i]);
+         }
+         
+         this.statistics.completed(siblings.size());
+      } else {
+         for(int i = 0; i < siblings.size(); i++) {
+            siblings.get(i).setRawData(buffers[i], children[i]);
+         }
+         
+         this.decodeQueue.add(new ArrayList<>(siblings));
+      }
+   }
+   
+   /**
+    * Returns the path of the given cell's data file relative to the tree's base path.
+    * 
+    * @param treeCell
+    * @param extension
+    * @return
+    */
+   public static String getCellFilename(final TreeCell treeCell, final String extension) {
+      final String filename = treeCell.path.isEmpty() ? "root" : Character.toString(treeCell.path.charAt(treeCell.path.length() - 1));
+      
+      return String.join("/", treeCell.path.split("")) + "/" + filename + extension;
+   }
+   
+   public static String getParentPath(final TreeCell treeCell) {
+      return treeCell.path.isEmpty() ? "" : treeCell.path.substring(0, treeCell.path.length() - 1);
    }
    
    public static byte[] getData(final TreeCell treeCell, final File file, final int stride) {
@@ -129,6 +346,27 @@ public class TreeServerProcessor extends Thread {
       return children;
    }
    
+   /**
+    * Reads the cell summary in the given file.
+    * 
+    * @param file
+    * @param attributes
+    * @return the summary or null if the file doesn't exist
+    */
+   public static CellSummary getSummary(final File file, final DataAttributes attributes) {
+      if(!file.isFile()) {
+         return null;
+      }
+      
+      try(final BufferedReader reader = new BufferedReader(new FileReader(file))) {
+         return CellSummary.read(reader, attributes);
+      } catch (final IOException e) {
+         e.printStackTrace();
+      }
+      
+      return null;
+   }
+   
    public static int getMaxPoints(final File file) {
       int maxPoints = -1;
       
@@ -200,6 +438,25 @@ public class TreeServerProcessor extends Thread {
       return children;
    }
    
+   /**
+    * Reads the cell summary at the given url.
+    * 
+    * @param url
+    * @param attributes
+    * @return the summary or null if it doesn't exist
+    */
+   public static CellSummary getSummary(final URL url, final DataAttributes attributes) {
+      try(final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()))) {
+         return CellSummary.read(reader, attributes);
+      } catch (final FileNotFoundException e) {
+         // exported without summaries
+      } catch (final IOException e) {
+         e.printStackTrace();
+      }
+      
+      return null;
+   }
+   
    public static int getMaxPoints(final URL url) {
       int maxPoints = -1;
 
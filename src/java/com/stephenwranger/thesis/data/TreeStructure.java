@@ -2,23 +2,33 @@ package com.stephenwranger.thesis.data;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 
 import com.stephenwranger.graphics.bounds.BoundingVolume;
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.query.AggregateQuery;
+import com.stephenwranger.thesis.query.NeighborSearch;
+import com.stephenwranger.thesis.query.ProfileQuery;
+import com.stephenwranger.thesis.query.QueryRegion;
+import com.stephenwranger.thesis.query.TreeQuery;
 
 public abstract class TreeStructure implements Iterable<TreeCell> {
    protected static final double MAX_RADIUS = 8388608.0;
    
-   private final Map<String, TreeCell> treeCells = new HashMap<>();
+   private final Map<String, TreeCell> treeCells = new ConcurrentHashMap<>();
    private final DataAttributes attributes;
    private final Map<PointIndex, Point> pointsCache;
    private final Comparator<TreeCell> pathLengthComparator = new Comparator<TreeCell>() {
@@ -144,6 +154,27 @@ public abstract class TreeStructure implements Iterable<TreeCell> {
       return cells.iterator();
    }
    
+   /**
+    * Returns a stream over a snapshot of all cells of this tree in no particular order; unlike {@link #iterator()} the
+    * cells are not sorted and the stream splits evenly for parallel use.
+    * 
+    * @return the cells
+    */
+   public Stream<TreeCell> cells() {
+      return Arrays.stream(this.treeCells.values().toArray(new TreeCell[0]));
+   }
+   
+   /**
+    * Returns a stream over the points of all cells of this tree (those loaded or built in memory) through a reusable
+    * {@link PointCursor} per thread; the cursor must not be kept beyond the operation it is handed to. The stream splits
+    * at cell boundaries (and within large cells) so parallel pipelines scale across cores.
+    * 
+    * @return the points
+    */
+   public Stream<PointCursor> points() {
+      return StreamSupport.stream(new PointSpliterator(this, this.treeCells.values().toArray(new TreeCell[0])), false);
+   }
+   
    public int getCellCount() {
       return this.treeCells.size();
    }
@@ -184,14 +215,8 @@ public abstract class TreeStructure implements Iterable<TreeCell> {
     * @return
     */
    public TreeCell getCell(final String childPath) {
-      TreeCell cell = this.treeCells.get(childPath);
-      
-      if(cell == null) {
-         cell = this.createTreeCell(this, childPath);
-         this.treeCells.put(cell.getPath(), cell);
-      }
-      
-      return cell;
+      // atomic so cells can be looked up from several query threads at once
+      return this.treeCells.computeIfAbsent(childPath, (path) -> this.createTreeCell(this, path));
    }
    
    /**
@@ -211,6 +236,56 @@ public abstract class TreeStructure implements Iterable<TreeCell> {
       return cell;
    }
    
+   /**
+    * Returns a stream of all points of this tree inside the given region, read through the given connection; see
+    * {@link TreeQuery}.
+    * 
+    * @param connection the connection to load cells with
+    * @param region the region to query
+    * @param maxDepth the depth of the deepest cells read or less than zero for no limit
+    * @param targetDensity the point density (points per cubic meter) at which to stop refining or zero for no limit
+    * @return the points inside the region
+    */
+   public Stream<Point> query(final TreeServerConnection connection, final QueryRegion region, final int maxDepth, final double targetDensity) {
+      return new TreeQuery(this, connection, region).setMaxDepth(maxDepth).setTargetDensity(targetDensity).stream();
+   }
+   
+   /**
+    * Returns summaries of every attribute over all points of this tree inside the given region, read through the given
+    * connection; see {@link AggregateQuery}.
+    * 
+    * @param connection the connection to load cells and summaries with
+    * @param region the region to aggregate
+    * @return the summaries keyed by attribute name
+    */
+   public Map<String, AttributeSummary> aggregate(final TreeServerConnection connection, final QueryRegion region) {
+      return new AggregateQuery(this, connection, region).run();
+   }
+   
+   /**
+    * Returns a stream of all points of this tree within the given distance of the given polyline ordered by their
+    * distance along it, read through the given connection; see {@link ProfileQuery}.
+    * 
+    * @param connection the connection to load cells with
+    * @param vertices the polyline; at least two vertices
+    * @param radius the half width of the corridor
+    * @return the points within the corridor
+    */
+   public Stream<ProfileQuery.Sample> profile(final TreeServerConnection connection, final Tuple3d[] vertices, final double radius) {
+      return new ProfileQuery(this, connection, vertices, radius).stream();
+   }
+   
+   /**
+    * Returns a new k nearest neighbour and radius search over all points of this tree, read through the given
+    * connection; see {@link NeighborSearch}.
+    * 
+    * @param connection the connection to load cells with
+    * @return the search
+    */
+   public NeighborSearch createNeighborSearch(final TreeServerConnection connection) {
+      return new NeighborSearch(this, connection);
+   }
+   
    public DataAttributes getAttributes() {
       return this.attributes;
    }
@@ -44,10 +44,17 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
 
    private static final Vector3d     UP_VECTOR         = new Vector3d(0, 1, 0);
 
+   // velocity is considered stale (camera stopped) if no update was made within this time
+   private static final long         VELOCITY_TIMEOUT  = 250L * 1000L * 1000L;
+   // weight of the newest sample in the smoothed velocity
+   private static final double       VELOCITY_WEIGHT   = 0.5;
+
    private final Scene               scene;
    private final TextRenderable      textRenderer;
    private final Tuple3d             anchor            = WGS84.geodesicToCartesian(new Tuple3d());
    private final SphericalCoordinate cameraCoordinate  = new SphericalCoordinate(SphericalNavigator.AZIMUTH_SOUTH, SphericalNavigator.ELEVATION_ZENITH, 2e7);
+   private final Tuple3d             previousCamera    = new Tuple3d();
+   private final Vector3d            cameraVelocity    = new Vector3d();
 
    private Point                     previousEvent     = null;
    private Point                     currentEvent      = null;
@@ -55,6 +62,8 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
    private boolean                   update            = true;
    private Earth                     earth             = null;
    private boolean                   isTextInfoEnabled = false;
+   private boolean                   resetVelocity     = true;
+   private long                      previousUpdate    = -1;
 
    public SphericalNavigator(final Scene scene) {
       this.scene = scene;
@@ -90,6 +99,16 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
       return new SphericalCoordinate(this.cameraCoordinate);
    }
 
+   /**
+    * Returns the smoothed velocity of the camera in meters per second; zero if the camera has not moved recently or was
+    * just relocated via {@link #moveTo(double, double, double, double, double, double)}.
+    *
+    * @return
+    */
+   public synchronized Vector3d getCameraVelocity() {
+      return new Vector3d(this.cameraVelocity);
+   }
+
    @Override
    public synchronized void mouseClicked(final MouseEvent event) {
       if (!event.isControlDown()) {
@@ -189,11 +208,16 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
       this.cameraCoordinate.setAzimuth(azimuthRadians);
       this.cameraCoordinate.setElevation(elevationRadians);
       this.cameraCoordinate.setRange(rangeMeters);
+      this.resetVelocity = true;
       this.update = true;
    }
 
    @Override
    public synchronized void preRender(final GL2 gl, final GLU glu, final GLDrawable drawable, final Scene scene) {
+      if (!this.update && (this.previousUpdate != -1) && ((System.nanoTime() - this.previousUpdate) > SphericalNavigator.VELOCITY_TIMEOUT)) {
+         this.cameraVelocity.set(0, 0, 0);
+      }
+
       if (this.update) {
          if (this.eventType != null) {
             switch (this.eventType) {
@@ -257,6 +281,7 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
 //            System.out.println("view . right: " + viewVector.angleDegrees(rightVector));
 //            System.out.println("up . right:   " + up.angleDegrees(rightVector));
             this.scene.setCameraPosition(cameraPosition, this.anchor, up);
+            this.updateVelocity(cameraPosition);
          } else {
             System.err.println("scene position not updating; invalid");
             System.err.println("cam pos:    " + cameraPosition + ", " + MathUtils.isFinite(cameraPosition));
@@ -283,6 +308,7 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
       centerLonLatAlt.z = 0.0;
       this.anchor.set(WGS84.geodesicToCartesian(centerLonLatAlt));
       this.cameraCoordinate.setRange(boundingVolume.getSpannedDistance(null) / 2.0);
+      this.resetVelocity = true;
       this.update = true;
    }
 
@@ -380,6 +406,27 @@ public class SphericalNavigator implements PreRenderable, MouseListener, MouseMo
       }
    }
 
+   private void updateVelocity(final Tuple3d cameraPosition) {
+      final long now = System.nanoTime();
+
+      if (this.resetVelocity || (this.previousUpdate == -1)) {
+         // jumps are not motion; don't extrapolate along them
+         this.cameraVelocity.set(0, 0, 0);
+         this.resetVelocity = false;
+      } else if (now > this.previousUpdate) {
+         final double seconds = (now - this.previousUpdate) / 1e9;
+         final Vector3d current = new Vector3d();
+         current.subtract(cameraPosition, this.previousCamera);
+         current.scale(SphericalNavigator.VELOCITY_WEIGHT / seconds);
+
+         this.cameraVelocity.scale(1.0 - SphericalNavigator.VELOCITY_WEIGHT);
+         this.cameraVelocity.add(current);
+      }
+
+      this.previousCamera.set(cameraPosition);
+      this.previousUpdate = now;
+   }
+
    private void updateText(final MouseEvent event) {
       final Tuple3d lla = this.getIntersection(event.getPoint());
 
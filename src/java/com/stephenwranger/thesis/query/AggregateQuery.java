@@ -0,0 +1,184 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.stephenwranger.thesis.data.Attribute;
+import com.stephenwranger.thesis.data.AttributePredicate;
+import com.stephenwranger.thesis.data.AttributeSummary;
+import com.stephenwranger.thesis.data.AttributeType;
+import com.stephenwranger.thesis.data.CellSummary;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Computes {@link AttributeSummary}s (count, min, max, mean, variance and histogram) of every attribute over all points
+ * of an exported tree inside a {@link QueryRegion}. The stored subtree summary of every cell fully inside the region is
+ * used as is; only the points of cells straddling the region's boundary (or of trees exported without summaries) are
+ * read and tested.
+ * <p>
+ * With attribute predicates, only points passing all of them are aggregated. Subtrees whose summaries show that none of
+ * their points pass are skipped and stored subtree summaries are only used if all of their points pass.
+ */
+public class AggregateQuery {
+   private final TreeStructure            tree;
+   private final TreeServerConnection     connection;
+   private final QueryRegion              region;
+   private final List<Attribute>          attributes = new ArrayList<>();
+   private final List<AttributePredicate> predicates = new ArrayList<>();
+
+   private int                            summarizedCount;
+   private int                            scannedCount;
+
+   public AggregateQuery(final TreeStructure tree, final TreeServerConnection connection, final QueryRegion region) {
+      this.tree = tree;
+      this.connection = connection;
+      this.region = region;
+
+      for (final Attribute attribute : tree.getAttributes()) {
+         if (attribute.type != AttributeType.BYTE_ARRAY) {
+            this.attributes.add(attribute);
+         }
+      }
+   }
+
+   public List<AttributePredicate> getPredicates() {
+      return Collections.unmodifiableList(this.predicates);
+   }
+
+   /**
+    * Adds a predicate all aggregated points have to pass.
+    *
+    * @param predicate
+    * @return this query
+    */
+   public AggregateQuery addPredicate(final AttributePredicate predicate) {
+      this.predicates.add(predicate);
+
+      return this;
+   }
+
+   /**
+    * Returns the summaries of all points inside the region keyed by attribute name.
+    *
+    * @return
+    */
+   public Map<String, AttributeSummary> run() {
+      final Map<String, AttributeSummary> summaries = new LinkedHashMap<>();
+      final AttributeSummary[] results = new AttributeSummary[this.attributes.size()];
+      final Deque<TreeCell> stack = new ArrayDeque<>();
+      final Deque<Boolean> insideStack = new ArrayDeque<>();
+
+      for (int i = 0; i < results.length; i++) {
+         results[i] = new AttributeSummary(this.attributes.get(i));
+         summaries.put(this.attributes.get(i).name, results[i]);
+      }
+
+      this.summarizedCount = 0;
+      this.scannedCount = 0;
+
+      final TreeCell root = this.tree.getCell("");
+      final int rootClassification = this.region.classify(root.getCorners());
+
+      if (rootClassification != QueryRegion.OUTSIDE) {
+         stack.push(root);
+         insideStack.push(rootClassification == QueryRegion.INSIDE);
+      }
+
+      while (!stack.isEmpty()) {
+         final TreeCell cell = stack.pop();
+         final boolean isInside = insideStack.pop();
+         final int filter = this.predicates.isEmpty() ? QueryRegion.INSIDE : AttributePredicate.classify(this.predicates, this.connection.getSummary(cell), true);
+
+         if (filter == QueryRegion.OUTSIDE) {
+            continue;
+         }
+
+         if (isInside && (filter == QueryRegion.INSIDE)) {
+            final CellSummary summary = this.connection.getSummary(cell);
+
+            if (summary != null) {
+               for (int i = 0; i < results.length; i++) {
+                  final AttributeSummary subtree = summary.getSubtree(this.attributes.get(i));
+
+                  if (subtree != null) {
+                     results[i].add(subtree);
+                  }
+               }
+
+               this.summarizedCount++;
+               continue;
+            }
+         }
+
+         for (final String childPath : this.scan(cell, isInside, results)) {
+            final TreeCell child = this.tree.getCell(childPath);
+            final int classification = isInside ? QueryRegion.INSIDE : this.region.classify(child.getCorners());
+
+            if (classification != QueryRegion.OUTSIDE) {
+               stack.push(child);
+               insideStack.push(classification == QueryRegion.INSIDE);
+            }
+         }
+      }
+
+      return summaries;
+   }
+
+   /**
+    * Returns the number of cells answered from their stored subtree summary by the last run.
+    *
+    * @return
+    */
+   public int getSummarizedCount() {
+      return this.summarizedCount;
+   }
+
+   /**
+    * Returns the number of cells whose points were read by the last run.
+    *
+    * @return
+    */
+   public int getScannedCount() {
+      return this.scannedCount;
+   }
+
+   /**
+    * Loads the given cell and adds all of its points inside the region to the results.
+    *
+    * @return the cell's child paths
+    */
+   private String[] scan(final TreeCell cell, final boolean isInside, final AttributeSummary[] results) {
+      final boolean isLoaded = TreeQuery.load(this.connection, cell);
+
+      if (!cell.isComplete()) {
+         return new String[0];
+      }
+
+      final String[] children = cell.getChildList();
+      final boolean isFiltered = !this.predicates.isEmpty() && (AttributePredicate.classify(this.predicates, this.connection.getSummary(cell), false) != QueryRegion.INSIDE);
+
+      this.scannedCount++;
+
+      cell.points().forEach((cursor) -> {
+         if ((isInside || this.region.contains(cursor.getX(), cursor.getY(), cursor.getZ())) && (!isFiltered || AttributePredicate.test(this.predicates, cursor))) {
+            for (int i = 0; i < results.length; i++) {
+               results[i].add(cursor.getDouble(this.attributes.get(i)));
+            }
+         }
+      });
+
+      if (isLoaded) {
+         this.connection.getMemoryManager().removed(cell);
+         cell.clearData();
+      }
+
+      return children;
+   }
+}
@@ -0,0 +1,48 @@
+package com.stephenwranger.thesis.query;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+
+/**
+ * An axis-aligned box region.
+ */
+public class BoxRegion implements QueryRegion {
+   private final double minX, minY, minZ;
+   private final double maxX, maxY, maxZ;
+
+   public BoxRegion(final Tuple3d min, final Tuple3d max) {
+      this.minX = Math.min(min.x, max.x);
+      this.minY = Math.min(min.y, max.y);
+      this.minZ = Math.min(min.z, max.z);
+      this.maxX = Math.max(min.x, max.x);
+      this.maxY = Math.max(min.y, max.y);
+      this.maxZ = Math.max(min.z, max.z);
+   }
+
+   @Override
+   public int classify(final double[] corners) {
+      double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+
+      for (int i = 0; i < corners.length; i += 3) {
+         minX = Math.min(minX, corners[i]);
+         minY = Math.min(minY, corners[i + 1]);
+         minZ = Math.min(minZ, corners[i + 2]);
+         maxX = Math.max(maxX, corners[i]);
+         maxY = Math.max(maxY, corners[i + 1]);
+         maxZ = Math.max(maxZ, corners[i + 2]);
+      }
+
+      if ((maxX < this.minX) || (minX > this.maxX) || (maxY < this.minY) || (minY > this.maxY) || (maxZ < this.minZ) || (minZ > this.maxZ)) {
+         return QueryRegion.OUTSIDE;
+      } else if ((minX >= this.minX) && (maxX <= this.maxX) && (minY >= this.minY) && (maxY <= this.maxY) && (minZ >= this.minZ) && (maxZ <= this.maxZ)) {
+         return QueryRegion.INSIDE;
+      }
+
+      return QueryRegion.PARTIAL;
+   }
+
+   @Override
+   public boolean contains(final double x, final double y, final double z) {
+      return (x >= this.minX) && (x <= this.maxX) && (y >= this.minY) && (y <= this.maxY) && (z >= this.minZ) && (z <= this.maxZ);
+   }
+}
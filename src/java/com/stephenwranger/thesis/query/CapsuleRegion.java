@@ -0,0 +1,126 @@
+package com.stephenwranger.thesis.query;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+
+/**
+ * All points within a radius of a line segment.
+ */
+public class CapsuleRegion implements QueryRegion {
+   private final double x, y, z;
+   private final double dx, dy, dz;
+   private final double lengthSquared;
+   private final double radius;
+   private final double radiusSquared;
+   private final double minX, minY, minZ;
+   private final double maxX, maxY, maxZ;
+
+   public CapsuleRegion(final Tuple3d start, final Tuple3d end, final double radius) {
+      this.x = start.x;
+      this.y = start.y;
+      this.z = start.z;
+      this.dx = end.x - start.x;
+      this.dy = end.y - start.y;
+      this.dz = end.z - start.z;
+      this.lengthSquared = (this.dx * this.dx) + (this.dy * this.dy) + (this.dz * this.dz);
+      this.radius = radius;
+      this.radiusSquared = radius * radius;
+
+      this.minX = Math.min(start.x, end.x) - radius;
+      this.minY = Math.min(start.y, end.y) - radius;
+      this.minZ = Math.min(start.z, end.z) - radius;
+      this.maxX = Math.max(start.x, end.x) + radius;
+      this.maxY = Math.max(start.y, end.y) + radius;
+      this.maxZ = Math.max(start.z, end.z) + radius;
+   }
+
+   /**
+    * Returns the position of the point on the segment closest to the given point; zero at the start and one at the end.
+    *
+    * @param x
+    * @param y
+    * @param z
+    * @return
+    */
+   public double getParameter(final double x, final double y, final double z) {
+      if (this.lengthSquared == 0) {
+         return 0;
+      }
+
+      final double t = (((x - this.x) * this.dx) + ((y - this.y) * this.dy) + ((z - this.z) * this.dz)) / this.lengthSquared;
+
+      return Math.max(0, Math.min(1, t));
+   }
+
+   /**
+    * Returns the squared distance of the given point to the segment.
+    *
+    * @param x
+    * @param y
+    * @param z
+    * @return
+    */
+   public double getDistanceSquared(final double x, final double y, final double z) {
+      final double t = this.getParameter(x, y, z);
+      final double ex = x - (this.x + (t * this.dx));
+      final double ey = y - (this.y + (t * this.dy));
+      final double ez = z - (this.z + (t * this.dz));
+
+      return (ex * ex) + (ey * ey) + (ez * ez);
+   }
+
+   /**
+    * Returns true if the given point is inside the axis-aligned bounds of this capsule; a cheap test that every point
+    * this capsule contains passes.
+    *
+    * @param x
+    * @param y
+    * @param z
+    * @return
+    */
+   public boolean isInBounds(final double x, final double y, final double z) {
+      return (x >= this.minX) && (x <= this.maxX) && (y >= this.minY) && (y <= this.maxY) && (z >= this.minZ) && (z <= this.maxZ);
+   }
+
+   @Override
+   public int classify(final double[] corners) {
+      double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+      boolean isInside = true;
+
+      for (int i = 0; i < corners.length; i += 3) {
+         isInside &= this.contains(corners[i], corners[i + 1], corners[i + 2]);
+         minX = Math.min(minX, corners[i]);
+         minY = Math.min(minY, corners[i + 1]);
+         minZ = Math.min(minZ, corners[i + 2]);
+         maxX = Math.max(maxX, corners[i]);
+         maxY = Math.max(maxY, corners[i + 1]);
+         maxZ = Math.max(maxZ, corners[i + 2]);
+      }
+
+      // the capsule is convex so it contains everything between its corners
+      if (isInside) {
+         return QueryRegion.INSIDE;
+      }
+
+      // swept bounds of the segment
+      if ((maxX < this.minX) || (minX > this.maxX) || (maxY < this.minY) || (minY > this.maxY) || (maxZ < this.minZ) || (minZ > this.maxZ)) {
+         return QueryRegion.OUTSIDE;
+      }
+
+      // bounding sphere of the corners' axis-aligned bounds
+      final double cx = (minX + maxX) * 0.5;
+      final double cy = (minY + maxY) * 0.5;
+      final double cz = (minZ + maxZ) * 0.5;
+      final double extentX = (maxX - minX) * 0.5;
+      final double extentY = (maxY - minY) * 0.5;
+      final double extentZ = (maxZ - minZ) * 0.5;
+      final double reach = this.radius + Math.sqrt((extentX * extentX) + (extentY * extentY) + (extentZ * extentZ));
+
+      return (this.getDistanceSquared(cx, cy, cz) > (reach * reach)) ? QueryRegion.OUTSIDE : QueryRegion.PARTIAL;
+   }
+
+   @Override
+   public boolean contains(final double x, final double y, final double z) {
+      return this.getDistanceSquared(x, y, z) <= this.radiusSquared;
+   }
+}
@@ -0,0 +1,76 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+
+/**
+ * Loads cells for several threads of the same query at once. Each thread acquires a cell before reading it and
+ * releases it afterwards; a cell that had to be loaded for the query is cleared once the last thread reading it
+ * released it rather than by whichever thread happened to load it.
+ */
+class CellLeases {
+   private final TreeServerConnection connection;
+   // number of threads currently reading each cell and the cells that were loaded for the query
+   private final Map<TreeCell, int[]> readers = new HashMap<>();
+   private final Set<TreeCell>        loaded  = new HashSet<>();
+
+   public CellLeases(final TreeServerConnection connection) {
+      this.connection = connection;
+   }
+
+   /**
+    * Registers the calling thread as a reader of the given cell and waits for the cell to load. If loading fails the
+    * thread is unregistered again before the exception is passed on.
+    *
+    * @param cell
+    */
+   public void acquire(final TreeCell cell) {
+      synchronized (this.readers) {
+         this.readers.computeIfAbsent(cell, (key) -> new int[1])[0]++;
+      }
+
+      final boolean isLoaded;
+
+      // outside the lock so other threads can continue while this one waits
+      try {
+         isLoaded = TreeQuery.load(this.connection, cell);
+      } catch (final RuntimeException e) {
+         this.release(cell);
+         throw e;
+      }
+
+      if (isLoaded && cell.isComplete()) {
+         synchronized (this.readers) {
+            this.loaded.add(cell);
+         }
+      }
+   }
+
+   /**
+    * Unregisters the calling thread as a reader of the given cell and clears the cell once the last reader is done if
+    * it was loaded for the query.
+    *
+    * @param cell
+    */
+   public void release(final TreeCell cell) {
+      synchronized (this.readers) {
+         final int[] count = this.readers.get(cell);
+
+         if (--count[0] > 0) {
+            return;
+         }
+
+         this.readers.remove(cell);
+
+         if (this.loaded.remove(cell)) {
+            this.connection.getMemoryManager().removed(cell);
+            cell.clearData();
+         }
+      }
+   }
+}
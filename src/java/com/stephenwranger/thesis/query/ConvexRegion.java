@@ -0,0 +1,171 @@
+package com.stephenwranger.thesis.query;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.graphics.math.Vector3d;
+
+/**
+ * A convex region bounded by planes; used for view frustums and oriented prisms (a convex polygon extruded along any
+ * direction, eg an oriented box).
+ */
+public class ConvexRegion implements QueryRegion {
+   // a, b, c, d per plane; a point is inside when ax + by + cz + d >= 0 for every plane
+   private final double[] planes;
+
+   /**
+    * @param planes
+    *           a, b, c, d of every plane (4 values per plane) with the normals pointing into the region
+    */
+   public ConvexRegion(final double[] planes) {
+      this.planes = planes.clone();
+   }
+
+   /**
+    * Creates the region covered by the given convex, planar polygon extruded along the given vector.
+    *
+    * @param base
+    *           the polygon's corners in order (either winding)
+    * @param extrusion
+    * @return
+    */
+   public static ConvexRegion prism(final Tuple3d[] base, final Tuple3d extrusion) {
+      final double[] planes = new double[(base.length + 2) * 4];
+      final Tuple3d centroid = new Tuple3d();
+
+      for (final Tuple3d corner : base) {
+         centroid.add(corner);
+      }
+
+      centroid.scale(1.0 / base.length);
+      centroid.x += extrusion.x / 2.0;
+      centroid.y += extrusion.y / 2.0;
+      centroid.z += extrusion.z / 2.0;
+
+      final Vector3d normal = new Vector3d();
+      normal.cross(ConvexRegion.getVector(base[0], base[1]), ConvexRegion.getVector(base[0], base[2]));
+
+      final Tuple3d top = new Tuple3d(base[0]);
+      top.add(extrusion);
+
+      ConvexRegion.setPlane(planes, 0, normal, base[0], centroid);
+      ConvexRegion.setPlane(planes, 1, normal, top, centroid);
+
+      for (int i = 0; i < base.length; i++) {
+         normal.cross(ConvexRegion.getVector(base[i], base[(i + 1) % base.length]), extrusion);
+         ConvexRegion.setPlane(planes, i + 2, normal, base[i], centroid);
+      }
+
+      return new ConvexRegion(planes);
+   }
+
+   /**
+    * Creates the region seen by a perspective camera.
+    *
+    * @param eye
+    * @param target
+    * @param up
+    * @param fovDegrees
+    *           vertical field of view
+    * @param aspect
+    *           width / height
+    * @param near
+    * @param far
+    * @return
+    */
+   public static ConvexRegion frustum(final Tuple3d eye, final Tuple3d target, final Tuple3d up, final double fovDegrees, final double aspect, final double near, final double far) {
+      final Vector3d forward = ConvexRegion.getVector(eye, target);
+      forward.normalize();
+      final Vector3d right = new Vector3d();
+      right.cross(forward, up);
+      right.normalize();
+      final Vector3d cameraUp = new Vector3d();
+      cameraUp.cross(right, forward);
+
+      final double tanY = Math.tan(Math.toRadians(fovDegrees) / 2.0);
+      final double tanX = tanY * aspect;
+      final double[] planes = new double[6 * 4];
+      final Tuple3d point = new Tuple3d(forward);
+
+      point.scale(near);
+      point.add(eye);
+      ConvexRegion.setPlane(planes, 0, forward.x, forward.y, forward.z, point);
+
+      point.set(forward);
+      point.scale(far);
+      point.add(eye);
+      ConvexRegion.setPlane(planes, 1, -forward.x, -forward.y, -forward.z, point);
+
+      // each side plane passes through the eye and is tilted inwards by the half angle
+      ConvexRegion.setPlane(planes, 2, right.x + (forward.x * tanX), right.y + (forward.y * tanX), right.z + (forward.z * tanX), eye);
+      ConvexRegion.setPlane(planes, 3, -right.x + (forward.x * tanX), -right.y + (forward.y * tanX), -right.z + (forward.z * tanX), eye);
+      ConvexRegion.setPlane(planes, 4, cameraUp.x + (forward.x * tanY), cameraUp.y + (forward.y * tanY), cameraUp.z + (forward.z * tanY), eye);
+      ConvexRegion.setPlane(planes, 5, -cameraUp.x + (forward.x * tanY), -cameraUp.y + (forward.y * tanY), -cameraUp.z + (forward.z * tanY), eye);
+
+      return new ConvexRegion(planes);
+   }
+
+   @Override
+   public int classify(final double[] corners) {
+      boolean isInside = true;
+
+      for (int i = 0; i < this.planes.length; i += 4) {
+         int insideCount = 0;
+
+         for (int j = 0; j < corners.length; j += 3) {
+            if (this.distance(i, corners[j], corners[j + 1], corners[j + 2]) >= 0) {
+               insideCount++;
+            }
+         }
+
+         if (insideCount == 0) {
+            return QueryRegion.OUTSIDE;
+         } else if (insideCount * 3 < corners.length) {
+            isInside = false;
+         }
+      }
+
+      return isInside ? QueryRegion.INSIDE : QueryRegion.PARTIAL;
+   }
+
+   @Override
+   public boolean contains(final double x, final double y, final double z) {
+      for (int i = 0; i < this.planes.length; i += 4) {
+         if (this.distance(i, x, y, z) < 0) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   private double distance(final int plane, final double x, final double y, final double z) {
+      return (this.planes[plane] * x) + (this.planes[plane + 1] * y) + (this.planes[plane + 2] * z) + this.planes[plane + 3];
+   }
+
+   private static Vector3d getVector(final Tuple3d from, final Tuple3d to) {
+      final Vector3d vector = new Vector3d();
+      vector.subtract(to, from);
+
+      return vector;
+   }
+
+   /**
+    * Sets the plane with the given normal through the given point, flipped if needed so the given inside point is on
+    * its positive side.
+    */
+   private static void setPlane(final double[] planes, final int index, final Vector3d normal, final Tuple3d point, final Tuple3d inside) {
+      final double d = -((normal.x * point.x) + (normal.y * point.y) + (normal.z * point.z));
+      final double sign = ((normal.x * inside.x) + (normal.y * inside.y) + (normal.z * inside.z) + d) < 0 ? -1.0 : 1.0;
+
+      ConvexRegion.setPlane(planes, index, normal.x * sign, normal.y * sign, normal.z * sign, point);
+   }
+
+   private static void setPlane(final double[] planes, final int index, final double a, final double b, final double c, final Tuple3d point) {
+      final double length = Math.sqrt((a * a) + (b * b) + (c * c));
+      final int offset = index * 4;
+
+      planes[offset] = a / length;
+      planes[offset + 1] = b / length;
+      planes[offset + 2] = c / length;
+      planes[offset + 3] = -((planes[offset] * point.x) + (planes[offset + 1] * point.y) + (planes[offset + 2] * point.z));
+   }
+}
@@ -0,0 +1,169 @@
+package com.stephenwranger.thesis.query;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.geospatial.WGS84;
+
+/**
+ * A longitude, latitude, altitude box (degrees and meters above the WGS84 ellipsoid) for querying trees stored in
+ * ECEF. Cells are pruned against a conservative convex ECEF hull of the box (a box aligned to the local east, north, up
+ * axes at the box's center plus the two meridian planes) so no points have to be converted to classify a cell; only
+ * points of cells that straddle the box boundary are converted and tested exactly.
+ * <p>
+ * The longitude range may cross the antimeridian (min longitude greater than max longitude).
+ */
+public class GeodeticRegion implements QueryRegion {
+   // samples per side of the lon/lat grid the hull is fit to
+   private static final int    HULL_SAMPLES       = 16;
+   // smallest radius of curvature of the ellipsoid, a(1 - e^2)
+   private static final double MIN_CURVATURE      = WGS84.EQUATORIAL_RADIUS * (1.0 - WGS84.FIRST_ECCENTRICITY_SQUARED);
+
+   private final double        minLon, minLat, minAlt;
+   private final double        maxLat, maxAlt;
+   private final double        lonSpan;
+   private final ConvexRegion  hull;
+
+   public GeodeticRegion(final double minLon, final double minLat, final double minAlt, final double maxLon, final double maxLat, final double maxAlt) {
+      this.minLon = minLon;
+      this.minLat = Math.min(minLat, maxLat);
+      this.minAlt = Math.min(minAlt, maxAlt);
+      this.maxLat = Math.max(minLat, maxLat);
+      this.maxAlt = Math.max(minAlt, maxAlt);
+      this.lonSpan = (maxLon < minLon) ? (maxLon - minLon) + 360.0 : maxLon - minLon;
+      this.hull = this.createHull();
+   }
+
+   @Override
+   public int classify(final double[] corners) {
+      if (this.hull.classify(corners) == QueryRegion.OUTSIDE) {
+         return QueryRegion.OUTSIDE;
+      }
+
+      // straight cell edges between corners can dip out of the curved altitude and latitude surfaces by up to
+      // r^2 / 2R (R being the smallest radius of curvature involved, at least the distance to the polar axis) so
+      // corners must be inside by at least that margin (doubled for the ellipsoid approximation)
+      double minAxisDistanceSquared = Double.MAX_VALUE;
+      double radiusSquared = 0;
+      double cx = 0, cy = 0, cz = 0;
+      final int count = corners.length / 3;
+
+      for (int i = 0; i < corners.length; i += 3) {
+         cx += corners[i] / count;
+         cy += corners[i + 1] / count;
+         cz += corners[i + 2] / count;
+         minAxisDistanceSquared = Math.min(minAxisDistanceSquared, (corners[i] * corners[i]) + (corners[i + 1] * corners[i + 1]));
+      }
+
+      for (int i = 0; i < corners.length; i += 3) {
+         final double dx = corners[i] - cx;
+         final double dy = corners[i + 1] - cy;
+         final double dz = corners[i + 2] - cz;
+         radiusSquared = Math.max(radiusSquared, (dx * dx) + (dy * dy) + (dz * dz));
+      }
+
+      final double axisDistance = Math.max(Math.sqrt(minAxisDistanceSquared), 1.0);
+      final double margin = radiusSquared / axisDistance;
+      final double latMargin = Math.toDegrees(margin / GeodeticRegion.MIN_CURVATURE);
+      final double lonMargin = Math.toDegrees(margin / axisDistance);
+      final Tuple3d xyz = new Tuple3d();
+
+      for (int i = 0; i < corners.length; i += 3) {
+         xyz.set(corners[i], corners[i + 1], corners[i + 2]);
+         final Tuple3d lonLatAlt = WGS84.cartesianToGeodesic(xyz);
+
+         if (!this.contains(lonLatAlt.x, lonLatAlt.y, lonLatAlt.z, lonMargin, latMargin, margin)) {
+            return QueryRegion.PARTIAL;
+         }
+      }
+
+      return QueryRegion.INSIDE;
+   }
+
+   @Override
+   public boolean contains(final double x, final double y, final double z) {
+      final Tuple3d lonLatAlt = WGS84.cartesianToGeodesic(new Tuple3d(x, y, z));
+
+      return this.contains(lonLatAlt.x, lonLatAlt.y, lonLatAlt.z, 0, 0, 0);
+   }
+
+   /**
+    * Returns true if the given geodetic position is inside this box shrunk by the given margins.
+    */
+   private boolean contains(final double lon, final double lat, final double alt, final double lonMargin, final double latMargin, final double altMargin) {
+      double lonOffset = (lon - this.minLon) % 360.0;
+
+      if (lonOffset < 0) {
+         lonOffset += 360.0;
+      }
+
+      // a full circle of longitude has no boundary
+      final boolean isLonInside = (this.lonSpan >= 360.0) || ((lonOffset >= lonMargin) && (lonOffset <= (this.lonSpan - lonMargin)));
+
+      return isLonInside && (lat >= (this.minLat + latMargin)) && (lat <= (this.maxLat - latMargin)) && (alt >= (this.minAlt + altMargin)) && (alt <= (this.maxAlt - altMargin));
+   }
+
+   /**
+    * Fits a box aligned to east, north, up at the center of this region around a grid of samples on its top and bottom
+    * faces (any extreme of the side faces lies on their top or bottom edge), padded by how far the curved faces can
+    * bulge out between samples. Adds the meridian planes if the longitude range is at most half the globe.
+    */
+   private ConvexRegion createHull() {
+      final double centerLon = Math.toRadians(this.minLon + (this.lonSpan / 2.0));
+      final double centerLat = Math.toRadians((this.minLat + this.maxLat) / 2.0);
+      final double[][] axes = new double[][] { { -Math.sin(centerLon), Math.cos(centerLon), 0 }, { -Math.sin(centerLat) * Math.cos(centerLon), -Math.sin(centerLat) * Math.sin(centerLon), Math.cos(centerLat) },
+            { Math.cos(centerLat) * Math.cos(centerLon), Math.cos(centerLat) * Math.sin(centerLon), Math.sin(centerLat) } };
+      final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+      final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+      final Tuple3d lonLatAlt = new Tuple3d();
+      final int samples = GeodeticRegion.HULL_SAMPLES;
+
+      for (int i = 0; i <= samples; i++) {
+         for (int j = 0; j <= samples; j++) {
+            for (final double alt : new double[] { this.minAlt, this.maxAlt }) {
+               lonLatAlt.set(this.minLon + ((this.lonSpan * i) / samples), this.minLat + (((this.maxLat - this.minLat) * j) / samples), alt);
+               final Tuple3d xyz = WGS84.geodesicToCartesian(lonLatAlt);
+
+               for (int k = 0; k < 3; k++) {
+                  final double value = (axes[k][0] * xyz.x) + (axes[k][1] * xyz.y) + (axes[k][2] * xyz.z);
+                  min[k] = Math.min(min[k], value);
+                  max[k] = Math.max(max[k], value);
+               }
+            }
+         }
+      }
+
+      // sagitta of the grid spacing on the most curved face
+      final double outerRadius = WGS84.EQUATORIAL_RADIUS + Math.max(this.maxAlt, 0);
+      final double lonSpacing = (outerRadius * Math.toRadians(this.lonSpan)) / samples;
+      final double latSpacing = (outerRadius * Math.toRadians(this.maxLat - this.minLat)) / samples;
+      final double spacingSquared = (lonSpacing * lonSpacing) + (latSpacing * latSpacing);
+      final double pad = (spacingSquared / (8.0 * Math.max(GeodeticRegion.MIN_CURVATURE + Math.min(this.minAlt, 0), 1.0))) + 0.001;
+
+      final boolean hasMeridians = this.lonSpan <= 180.0;
+      final double[] planes = new double[(hasMeridians ? 8 : 6) * 4];
+
+      for (int k = 0; k < 3; k++) {
+         final int offset = k * 8;
+
+         planes[offset] = axes[k][0];
+         planes[offset + 1] = axes[k][1];
+         planes[offset + 2] = axes[k][2];
+         planes[offset + 3] = -(min[k] - pad);
+         planes[offset + 4] = -axes[k][0];
+         planes[offset + 5] = -axes[k][1];
+         planes[offset + 6] = -axes[k][2];
+         planes[offset + 7] = max[k] + pad;
+      }
+
+      if (hasMeridians) {
+         final double minLon = Math.toRadians(this.minLon);
+         final double maxLon = Math.toRadians(this.minLon + this.lonSpan);
+
+         planes[24] = -Math.sin(minLon);
+         planes[25] = Math.cos(minLon);
+         planes[28] = Math.sin(maxLon);
+         planes[29] = -Math.cos(maxLon);
+      }
+
+      return new ConvexRegion(planes);
+   }
+}
@@ -0,0 +1,340 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * k nearest neighbour and fixed radius searches over all points of an exported tree (every level of the tree holds a
+ * distinct subset of the points). Cells are visited best-first by the distance to their axis-aligned bounds so only
+ * cells that can still hold a closer point are read; cells are loaded through the given connection the first time they
+ * are needed and their positions and child bounds are kept in primitive arrays for the following searches. A cell that
+ * had to be loaded for a search is cleared again as soon as its positions are copied and the copies are kept in a least
+ * recently used cache of at most {@link #CACHE_BUDGET_MB} so any number of searches run in bounded memory. A cell that
+ * can't be read fails the search with a RuntimeException rather than leaving its subtree out of the results.
+ * <p>
+ * Searches are thread safe; each thread should reuse its own {@link Neighbors} result.
+ */
+public class NeighborSearch {
+   public static final long                       CACHE_BUDGET_MB = Long.getLong("neighborCacheMB", 256L);
+
+   private static final long                      BYTES_PER_MB    = 1024L * 1024L;
+
+   private final TreeStructure                    tree;
+   private final TreeServerConnection             connection;
+   private final CellLeases                       leases;
+   // access ordered so iteration starts at the least recently searched cell
+   private final LinkedHashMap<TreeCell, CellData> cells           = new LinkedHashMap<>(256, 0.75f, true);
+   private final TreeCell                         root;
+   private final double[]                         rootBounds;
+
+   private volatile int                           maxDepth        = -1;
+   private long                                   cacheBudget     = NeighborSearch.CACHE_BUDGET_MB * NeighborSearch.BYTES_PER_MB;
+   private long                                   cacheBytes      = 0;
+
+   public NeighborSearch(final TreeStructure tree, final TreeServerConnection connection) {
+      this.tree = tree;
+      this.connection = connection;
+      this.leases = new CellLeases(connection);
+      this.root = tree.getCell("");
+      this.rootBounds = new double[6];
+
+      NeighborSearch.setBounds(this.root.getCorners(), this.rootBounds, 0);
+   }
+
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   /**
+    * Limits searches to cells up to the given depth (a coarser sample of the points); less than zero for no limit.
+    *
+    * @param maxDepth
+    */
+   public void setMaxDepth(final int maxDepth) {
+      this.maxDepth = maxDepth;
+   }
+
+   /**
+    * Finds the k points closest to the given position.
+    *
+    * @param x
+    * @param y
+    * @param z
+    * @param k
+    * @param neighbors
+    *           receives the found points sorted by increasing distance
+    * @return the number of points found (less than k only if the tree holds fewer points)
+    */
+   public int nearest(final double x, final double y, final double z, final int k, final Neighbors neighbors) {
+      neighbors.clear(k);
+
+      if (k <= 0) {
+         return 0;
+      }
+
+      final PriorityQueue<CellDistance> queue = new PriorityQueue<>();
+      queue.add(new CellDistance(this.root, NeighborSearch.getDistanceSquared(this.rootBounds, 0, x, y, z)));
+
+      while (!queue.isEmpty()) {
+         final CellDistance next = queue.poll();
+
+         // every remaining cell is farther away than the farthest point found
+         if ((neighbors.getCount() == k) && (next.distanceSquared > neighbors.getWorstDistanceSquared())) {
+            break;
+         }
+
+         final CellData data = this.getData(next.cell);
+
+         final double[] positions = data.positions;
+
+         for (int i = 0; i < positions.length; i += 3) {
+            final double dx = positions[i] - x;
+            final double dy = positions[i + 1] - y;
+            final double dz = positions[i + 2] - z;
+            final double distanceSquared = (dx * dx) + (dy * dy) + (dz * dz);
+
+            if ((neighbors.getCount() < k) || (distanceSquared < neighbors.getWorstDistanceSquared())) {
+               neighbors.offer(k, distanceSquared, positions[i], positions[i + 1], positions[i + 2], i / 3, next.cell);
+            }
+         }
+
+         if (this.isRefined(next.cell)) {
+            for (int i = 0; i < data.children.length; i++) {
+               final double distanceSquared = NeighborSearch.getDistanceSquared(data.childBounds, i * 6, x, y, z);
+
+               if ((neighbors.getCount() < k) || (distanceSquared <= neighbors.getWorstDistanceSquared())) {
+                  queue.add(new CellDistance(data.children[i], distanceSquared));
+               }
+            }
+         }
+      }
+
+      neighbors.sortHeap();
+
+      return neighbors.getCount();
+   }
+
+   /**
+    * Finds all points within the given radius of the given position.
+    *
+    * @param x
+    * @param y
+    * @param z
+    * @param radius
+    * @param neighbors
+    *           receives the found points in no particular order
+    * @return the number of points found
+    */
+   public int withinRadius(final double x, final double y, final double z, final double radius, final Neighbors neighbors) {
+      final double radiusSquared = radius * radius;
+      final Deque<TreeCell> stack = new ArrayDeque<>();
+
+      neighbors.clear(0);
+
+      if (NeighborSearch.getDistanceSquared(this.rootBounds, 0, x, y, z) <= radiusSquared) {
+         stack.push(this.root);
+      }
+
+      while (!stack.isEmpty()) {
+         final TreeCell cell = stack.pop();
+         final CellData data = this.getData(cell);
+
+         final double[] positions = data.positions;
+
+         for (int i = 0; i < positions.length; i += 3) {
+            final double dx = positions[i] - x;
+            final double dy = positions[i + 1] - y;
+            final double dz = positions[i + 2] - z;
+            final double distanceSquared = (dx * dx) + (dy * dy) + (dz * dz);
+
+            if (distanceSquared <= radiusSquared) {
+               neighbors.add(distanceSquared, positions[i], positions[i + 1], positions[i + 2], i / 3, cell);
+            }
+         }
+
+         if (this.isRefined(cell)) {
+            for (int i = 0; i < data.children.length; i++) {
+               if (NeighborSearch.getDistanceSquared(data.childBounds, i * 6, x, y, z) <= radiusSquared) {
+                  stack.push(data.children[i]);
+               }
+            }
+         }
+      }
+
+      return neighbors.getCount();
+   }
+
+   public long getCacheBudget() {
+      synchronized (this.cells) {
+         return this.cacheBudget;
+      }
+   }
+
+   /**
+    * Sets the bytes of cell positions and child bounds kept between searches; the least recently searched cells are
+    * dropped first.
+    *
+    * @param cacheBudget
+    */
+   public void setCacheBudget(final long cacheBudget) {
+      synchronized (this.cells) {
+         this.cacheBudget = cacheBudget;
+         this.trimCache();
+      }
+   }
+
+   /**
+    * Drops all cached cell data.
+    */
+   public void clear() {
+      synchronized (this.cells) {
+         this.cells.clear();
+         this.cacheBytes = 0;
+      }
+   }
+
+   private boolean isRefined(final TreeCell cell) {
+      final int maxDepth = this.maxDepth;
+
+      return (maxDepth < 0) || (cell.path.length() < maxDepth);
+   }
+
+   /**
+    * Returns the cached data of the given cell, loading the cell first if needed.
+    *
+    * @throws RuntimeException
+    *            if the cell can't be loaded (see {@link TreeQuery#LOAD_TIMEOUT_MILLIS}) or the search is interrupted
+    */
+   private CellData getData(final TreeCell cell) {
+      synchronized (this.cells) {
+         final CellData data = this.cells.get(cell);
+
+         if (data != null) {
+            return data;
+         }
+      }
+
+      // a cell only loaded elsewhere (eg, for rendering) may be cleared by the memory manager before it is read
+      for (int attempt = 0; attempt < 2; attempt++) {
+         if (Thread.currentThread().isInterrupted()) {
+            break;
+         }
+
+         final double[] positions;
+         final String[] childPaths;
+
+         // leased so a cell loaded for this search is cleared once read, but not while another search still reads it
+         this.leases.acquire(cell);
+
+         try {
+            positions = cell.isComplete() ? cell.getPositions() : null;
+            childPaths = cell.getChildList();
+         } finally {
+            this.leases.release(cell);
+         }
+
+         if (positions != null) {
+            final TreeCell[] children = new TreeCell[childPaths.length];
+            final double[] childBounds = new double[childPaths.length * 6];
+
+            for (int i = 0; i < childPaths.length; i++) {
+               children[i] = this.tree.getCell(childPaths[i]);
+               NeighborSearch.setBounds(children[i].getCorners(), childBounds, i * 6);
+            }
+
+            return this.cache(cell, new CellData(positions, children, childBounds));
+         }
+      }
+
+      throw new RuntimeException("Could not read cell '" + cell.path + "' for a neighbour search");
+   }
+
+   /**
+    * Adds the given data to the cache (unless another thread already did) and drops the least recently searched cells
+    * while over budget; returns the cached data.
+    */
+   private CellData cache(final TreeCell cell, final CellData data) {
+      synchronized (this.cells) {
+         final CellData existing = this.cells.get(cell);
+
+         if (existing != null) {
+            return existing;
+         }
+
+         this.cells.put(cell, data);
+         this.cacheBytes += data.bytes;
+         this.trimCache();
+
+         return data;
+      }
+   }
+
+   private void trimCache() {
+      final Iterator<CellData> iterator = this.cells.values().iterator();
+
+      while ((this.cacheBytes > this.cacheBudget) && iterator.hasNext()) {
+         this.cacheBytes -= iterator.next().bytes;
+         iterator.remove();
+      }
+   }
+
+   /**
+    * Writes min x, y, z and max x, y, z of the given corners into bounds at the given offset.
+    */
+   private static void setBounds(final double[] corners, final double[] bounds, final int offset) {
+      bounds[offset] = bounds[offset + 1] = bounds[offset + 2] = Double.MAX_VALUE;
+      bounds[offset + 3] = bounds[offset + 4] = bounds[offset + 5] = -Double.MAX_VALUE;
+
+      for (int i = 0; i < corners.length; i += 3) {
+         for (int j = 0; j < 3; j++) {
+            bounds[offset + j] = Math.min(bounds[offset + j], corners[i + j]);
+            bounds[offset + 3 + j] = Math.max(bounds[offset + 3 + j], corners[i + j]);
+         }
+      }
+   }
+
+   private static double getDistanceSquared(final double[] bounds, final int offset, final double x, final double y, final double z) {
+      final double dx = Math.max(Math.max(bounds[offset] - x, x - bounds[offset + 3]), 0);
+      final double dy = Math.max(Math.max(bounds[offset + 1] - y, y - bounds[offset + 4]), 0);
+      final double dz = Math.max(Math.max(bounds[offset + 2] - z, z - bounds[offset + 5]), 0);
+
+      return (dx * dx) + (dy * dy) + (dz * dz);
+   }
+
+   private static class CellData {
+      private final double[]   positions;
+      private final TreeCell[] children;
+      private final double[]   childBounds;
+      private final long       bytes;
+
+      public CellData(final double[] positions, final TreeCell[] children, final double[] childBounds) {
+         this.positions = positions;
+         this.children = children;
+         this.childBounds = childBounds;
+         // 8 bytes per double and (at least) per reference
+         this.bytes = 8L * (positions.length + children.length + childBounds.length);
+      }
+   }
+
+   private static class CellDistance implements Comparable<CellDistance> {
+      private final TreeCell cell;
+      private final double   distanceSquared;
+
+      public CellDistance(final TreeCell cell, final double distanceSquared) {
+         this.cell = cell;
+         this.distanceSquared = distanceSquared;
+      }
+
+      @Override
+      public int compareTo(final CellDistance o) {
+         return Double.compare(this.distanceSquared, o.distanceSquared);
+      }
+   }
+}
@@ -0,0 +1,182 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.Arrays;
+
+import com.stephenwranger.thesis.data.TreeCell;
+
+/**
+ * Reusable result of a {@link NeighborSearch}; holds the found points in parallel primitive arrays so a search thread
+ * can run any number of queries without allocating per result. The point at index i is at
+ * {@link #getPositions()}[i * 3 .. i * 3 + 2] and is point {@link #getIndices()}[i] of cell {@link #getCell(int)}.
+ */
+public class Neighbors {
+   private int        count          = 0;
+   private double[]   distances      = new double[16];
+   private double[]   positions      = new double[16 * 3];
+   private int[]      indices        = new int[16];
+   private TreeCell[] cells          = new TreeCell[16];
+
+   public int getCount() {
+      return this.count;
+   }
+
+   public double getDistanceSquared(final int index) {
+      return this.distances[index];
+   }
+
+   public double getX(final int index) {
+      return this.positions[index * 3];
+   }
+
+   public double getY(final int index) {
+      return this.positions[(index * 3) + 1];
+   }
+
+   public double getZ(final int index) {
+      return this.positions[(index * 3) + 2];
+   }
+
+   public TreeCell getCell(final int index) {
+      return this.cells[index];
+   }
+
+   /**
+    * Returns the squared distances of all found points; only the first {@link #getCount()} values are valid.
+    *
+    * @return
+    */
+   public double[] getDistancesSquared() {
+      return this.distances;
+   }
+
+   /**
+    * Returns x, y, z of all found points; only the first {@link #getCount()} * 3 values are valid.
+    *
+    * @return
+    */
+   public double[] getPositions() {
+      return this.positions;
+   }
+
+   /**
+    * Returns the index of every found point within its cell; only the first {@link #getCount()} values are valid.
+    *
+    * @return
+    */
+   public int[] getIndices() {
+      return this.indices;
+   }
+
+   void clear(final int capacity) {
+      Arrays.fill(this.cells, 0, this.count, null);
+      this.count = 0;
+      this.ensureCapacity(capacity);
+   }
+
+   /**
+    * Returns the largest distance held; only valid while used as a heap by {@link #offer}.
+    */
+   double getWorstDistanceSquared() {
+      return this.distances[0];
+   }
+
+   /**
+    * Appends the given point, growing the arrays as needed.
+    */
+   void add(final double distanceSquared, final double x, final double y, final double z, final int index, final TreeCell cell) {
+      this.ensureCapacity(this.count + 1);
+      this.set(this.count++, distanceSquared, x, y, z, index, cell);
+   }
+
+   /**
+    * Adds the given point to the max heap of at most k points, replacing the farthest point if full.
+    */
+   void offer(final int k, final double distanceSquared, final double x, final double y, final double z, final int index, final TreeCell cell) {
+      if (this.count < k) {
+         int child = this.count++;
+         this.set(child, distanceSquared, x, y, z, index, cell);
+
+         while (child > 0) {
+            final int parent = (child - 1) / 2;
+
+            if (this.distances[parent] >= this.distances[child]) {
+               break;
+            }
+
+            this.swap(parent, child);
+            child = parent;
+         }
+      } else if (distanceSquared < this.distances[0]) {
+         this.set(0, distanceSquared, x, y, z, index, cell);
+         this.siftDown(0, this.count);
+      }
+   }
+
+   /**
+    * Sorts the heap built by {@link #offer} by increasing distance.
+    */
+   void sortHeap() {
+      for (int end = this.count - 1; end > 0; end--) {
+         this.swap(0, end);
+         this.siftDown(0, end);
+      }
+   }
+
+   private void siftDown(int parent, final int size) {
+      int child = (parent * 2) + 1;
+
+      while (child < size) {
+         if (((child + 1) < size) && (this.distances[child + 1] > this.distances[child])) {
+            child++;
+         }
+
+         if (this.distances[parent] >= this.distances[child]) {
+            break;
+         }
+
+         this.swap(parent, child);
+         parent = child;
+         child = (parent * 2) + 1;
+      }
+   }
+
+   private void set(final int i, final double distanceSquared, final double x, final double y, final double z, final int index, final TreeCell cell) {
+      this.distances[i] = distanceSquared;
+      this.positions[i * 3] = x;
+      this.positions[(i * 3) + 1] = y;
+      this.positions[(i * 3) + 2] = z;
+      this.indices[i] = index;
+      this.cells[i] = cell;
+   }
+
+   private void swap(final int a, final int b) {
+      final double distance = this.distances[a];
+      this.distances[a] = this.distances[b];
+      this.distances[b] = distance;
+
+      for (int i = 0; i < 3; i++) {
+         final double value = this.positions[(a * 3) + i];
+         this.positions[(a * 3) + i] = this.positions[(b * 3) + i];
+         this.positions[(b * 3) + i] = value;
+      }
+
+      final int index = this.indices[a];
+      this.indices[a] = this.indices[b];
+      this.indices[b] = index;
+
+      final TreeCell cell = this.cells[a];
+      this.cells[a] = this.cells[b];
+      this.cells[b] = cell;
+   }
+
+   private void ensureCapacity(final int capacity) {
+      if (capacity > this.distances.length) {
+         final int size = Math.max(capacity, this.distances.length * 2);
+
+         this.distances = Arrays.copyOf(this.distances, size);
+         this.positions = Arrays.copyOf(this.positions, size * 3);
+         this.indices = Arrays.copyOf(this.indices, size);
+         this.cells = Arrays.copyOf(this.cells, size);
+      }
+   }
+}
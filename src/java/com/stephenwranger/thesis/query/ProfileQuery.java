@@ -0,0 +1,331 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.data.AttributePredicate;
+import com.stephenwranger.thesis.data.Point;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Extracts the points of an exported tree within a corridor around a polyline (eg, along a road or power line) ordered
+ * by their distance along the line, for profiles and cross-sections. The corridor is the union of one
+ * {@link CapsuleRegion} per segment; cells are pruned against each segment's capsule and every segment is read in
+ * parallel. A point within reach of several segments (eg, around a vertex) belongs only to the segment closest to it.
+ * <p>
+ * Cells are loaded and cleared as in {@link TreeQuery}, except that a cell loaded for one segment is only cleared once
+ * no other segment is still reading it (see {@link CellLeases}). Refinement can be limited the same way and attribute
+ * predicates are pushed down to the stored cell summaries.
+ */
+public class ProfileQuery {
+   /**
+    * A point within the corridor.
+    */
+   public static class Sample {
+      public final Point  point;
+      public final int    segment;
+      /** distance along the polyline from its first vertex to the point's closest point on the line */
+      public final double station;
+      /** signed horizontal distance from the line; positive to the right when looking along the line */
+      public final double offset;
+      /** signed vertical distance from the line */
+      public final double height;
+
+      public Sample(final Point point, final int segment, final double station, final double offset, final double height) {
+         this.point = point;
+         this.segment = segment;
+         this.station = station;
+         this.offset = offset;
+         this.height = height;
+      }
+
+      @Override
+      public String toString() {
+         return "[Sample: segment " + this.segment + ", station: " + this.station + ", offset: " + this.offset + ", height: " + this.height + "]";
+      }
+   }
+
+   private static final Comparator<Sample> BY_STATION = new Comparator<Sample>() {
+                                                         @Override
+                                                         public int compare(final Sample o1, final Sample o2) {
+                                                            return Double.compare(o1.station, o2.station);
+                                                         }
+                                                      };
+
+   private final TreeStructure            tree;
+   private final TreeServerConnection     connection;
+   private final Tuple3d[]                vertices;
+   private final CapsuleRegion[]          segments;
+   private final double[]                 stations;
+   private final CellLeases               leases;
+   private final List<AttributePredicate> predicates    = new ArrayList<>();
+
+   private int                            maxDepth      = -1;
+   private double                         targetDensity = -1;
+
+   /**
+    * @param tree
+    * @param connection
+    * @param vertices
+    *           the polyline; at least two vertices
+    * @param radius
+    *           the half width of the corridor
+    */
+   public ProfileQuery(final TreeStructure tree, final TreeServerConnection connection, final Tuple3d[] vertices, final double radius) {
+      if (vertices.length < 2) {
+         throw new IllegalArgumentException("A polyline needs at least two vertices; found " + vertices.length);
+      }
+
+      this.tree = tree;
+      this.connection = connection;
+      this.leases = new CellLeases(connection);
+      this.vertices = vertices.clone();
+      this.segments = new CapsuleRegion[vertices.length - 1];
+      this.stations = new double[vertices.length];
+
+      for (int i = 0; i < this.segments.length; i++) {
+         this.segments[i] = new CapsuleRegion(vertices[i], vertices[i + 1], radius);
+         this.stations[i + 1] = this.stations[i] + vertices[i].distance(vertices[i + 1]);
+      }
+   }
+
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   /**
+    * Sets the depth of the deepest cells read; the root is at depth zero. Less than zero for no limit.
+    *
+    * @param maxDepth
+    * @return this query
+    */
+   public ProfileQuery setMaxDepth(final int maxDepth) {
+      this.maxDepth = maxDepth;
+
+      return this;
+   }
+
+   public double getTargetDensity() {
+      return this.targetDensity;
+   }
+
+   /**
+    * Sets the density (points per cubic meter) at which refinement stops; zero or less for no limit.
+    *
+    * @param targetDensity
+    * @return this query
+    */
+   public ProfileQuery setTargetDensity(final double targetDensity) {
+      this.targetDensity = targetDensity;
+
+      return this;
+   }
+
+   /**
+    * Adds a predicate all returned points have to pass.
+    *
+    * @param predicate
+    * @return this query
+    */
+   public ProfileQuery addPredicate(final AttributePredicate predicate) {
+      this.predicates.add(predicate);
+
+      return this;
+   }
+
+   /**
+    * Returns the length of the polyline.
+    *
+    * @return
+    */
+   public double getLength() {
+      return this.stations[this.stations.length - 1];
+   }
+
+   /**
+    * Starts reading all segments in parallel and returns a sequential stream of all points within the corridor ordered
+    * by station; each segment's points are available as soon as that segment (and all before it) are read.
+    *
+    * @return
+    */
+   public Stream<Sample> stream() {
+      final List<CompletableFuture<List<Sample>>> results = new ArrayList<>();
+
+      for (int i = 0; i < this.segments.length; i++) {
+         final int segment = i;
+         results.add(CompletableFuture.supplyAsync(() -> this.read(segment)));
+      }
+
+      return results.stream().map(CompletableFuture::join).flatMap(List::stream);
+   }
+
+   /**
+    * Reads all points belonging to the given segment sorted by station.
+    */
+   private List<Sample> read(final int segment) {
+      final CapsuleRegion region = this.segments[segment];
+      final List<Sample> samples = new ArrayList<>();
+      final Deque<TreeCell> stack = new ArrayDeque<>();
+      final Deque<Boolean> insideStack = new ArrayDeque<>();
+      final Deque<Double> densityStack = new ArrayDeque<>();
+      final TreeCell root = this.tree.getCell("");
+      final int rootClassification = region.classify(root.getCorners());
+
+      if ((rootClassification != QueryRegion.OUTSIDE) && !this.isExcluded(root)) {
+         stack.push(root);
+         insideStack.push(rootClassification == QueryRegion.INSIDE);
+         densityStack.push(0.0);
+      }
+
+      while (!stack.isEmpty() && !Thread.currentThread().isInterrupted()) {
+         final TreeCell cell = stack.pop();
+         final boolean isInside = insideStack.pop();
+         final double parentDensity = densityStack.pop();
+
+         this.leases.acquire(cell);
+
+         try {
+            if (!cell.isComplete()) {
+               continue;
+            }
+
+            final boolean isFiltered = !this.predicates.isEmpty() && (AttributePredicate.classify(this.predicates, this.connection.getSummary(cell), false) != QueryRegion.INSIDE);
+            final int[] others = this.getOverlapping(segment, cell);
+
+            cell.points().forEach((cursor) -> {
+               final double x = cursor.getX();
+               final double y = cursor.getY();
+               final double z = cursor.getZ();
+
+               if ((isInside || region.contains(x, y, z)) && this.isClosest(segment, others, x, y, z) && (!isFiltered || AttributePredicate.test(this.predicates, cursor))) {
+                  samples.add(this.getSample(segment, cursor.toPoint(), x, y, z));
+               }
+            });
+
+            final double density = parentDensity + (cell.getPointCount() / cell.getVolume());
+            final boolean isRefined = ((this.maxDepth < 0) || (cell.path.length() < this.maxDepth)) && ((this.targetDensity <= 0) || (density < this.targetDensity));
+
+            if (isRefined && cell.hasChildren()) {
+               final String[] children = cell.getChildList();
+               final List<TreeCell> requests = new ArrayList<>();
+
+               for (int i = children.length - 1; i >= 0; i--) {
+                  final TreeCell child = this.tree.getCell(children[i]);
+                  final int classification = isInside ? QueryRegion.INSIDE : region.classify(child.getCorners());
+
+                  if ((classification != QueryRegion.OUTSIDE) && !this.isExcluded(child)) {
+                     stack.push(child);
+                     insideStack.push(classification == QueryRegion.INSIDE);
+                     densityStack.push(density);
+                     requests.add(child);
+                  }
+               }
+
+               this.connection.request(requests);
+            }
+         } finally {
+            this.leases.release(cell);
+         }
+      }
+
+      samples.sort(ProfileQuery.BY_STATION);
+
+      return samples;
+   }
+
+   /**
+    * Returns the segments other than the given one whose capsules reach into the given cell; only those can be closer
+    * to any of the cell's points within the given segment's capsule.
+    */
+   private int[] getOverlapping(final int segment, final TreeCell cell) {
+      final int[] overlapping = new int[this.segments.length];
+      int count = 0;
+
+      for (int i = 0; i < this.segments.length; i++) {
+         if ((i != segment) && (this.segments[i].classify(cell.getCorners()) != QueryRegion.OUTSIDE)) {
+            overlapping[count++] = i;
+         }
+      }
+
+      return Arrays.copyOf(overlapping, count);
+   }
+
+   /**
+    * Returns true if none of the given other segments before the given one is closer to the given point (within the
+    * given segment's capsule) and none after it is strictly closer.
+    */
+   private boolean isClosest(final int segment, final int[] others, final double x, final double y, final double z) {
+      final double distanceSquared = this.segments[segment].getDistanceSquared(x, y, z);
+
+      for (final int i : others) {
+         final CapsuleRegion other = this.segments[i];
+
+         // a segment whose capsule doesn't contain the point is farther than the radius and so than this one
+         if (other.isInBounds(x, y, z)) {
+            final double otherDistanceSquared = other.getDistanceSquared(x, y, z);
+
+            if ((otherDistanceSquared < distanceSquared) || ((otherDistanceSquared == distanceSquared) && (i < segment))) {
+               return false;
+            }
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Returns the given point's position relative to the given segment. Horizontal and vertical are relative to the
+    * direction from the earth's center to the closest point on the segment.
+    */
+   private Sample getSample(final int segment, final Point point, final double x, final double y, final double z) {
+      final Tuple3d start = this.vertices[segment];
+      final Tuple3d end = this.vertices[segment + 1];
+      final double t = this.segments[segment].getParameter(x, y, z);
+      final double length = this.stations[segment + 1] - this.stations[segment];
+
+      // closest point on the segment is also the local up direction
+      final double cx = start.x + (t * (end.x - start.x));
+      final double cy = start.y + (t * (end.y - start.y));
+      final double cz = start.z + (t * (end.z - start.z));
+      final double upLength = Math.sqrt((cx * cx) + (cy * cy) + (cz * cz));
+      final double ux = cx / upLength;
+      final double uy = cy / upLength;
+      final double uz = cz / upLength;
+
+      // right = direction x up
+      double rx = ((end.y - start.y) * uz) - ((end.z - start.z) * uy);
+      double ry = ((end.z - start.z) * ux) - ((end.x - start.x) * uz);
+      double rz = ((end.x - start.x) * uy) - ((end.y - start.y) * ux);
+      final double rightLength = Math.sqrt((rx * rx) + (ry * ry) + (rz * rz));
+
+      if (rightLength > 0) {
+         rx /= rightLength;
+         ry /= rightLength;
+         rz /= rightLength;
+      }
+
+      final double ex = x - cx;
+      final double ey = y - cy;
+      final double ez = z - cz;
+      final double offset = (ex * rx) + (ey * ry) + (ez * rz);
+      final double height = (ex * ux) + (ey * uy) + (ez * uz);
+
+      return new Sample(point, segment, this.stations[segment] + (t * length), offset, height);
+   }
+
+   /**
+    * Returns true if the given cell's stored summary shows that none of the points in its subtree pass the predicates.
+    */
+   private boolean isExcluded(final TreeCell cell) {
+      return !this.predicates.isEmpty() && (AttributePredicate.classify(this.predicates, this.connection.getSummary(cell), true) == QueryRegion.OUTSIDE);
+   }
+}
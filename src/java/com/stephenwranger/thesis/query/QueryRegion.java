@@ -0,0 +1,31 @@
+package com.stephenwranger.thesis.query;
+
+/**
+ * A region of space in the tree's coordinate system that a {@link TreeQuery} tests cell bounds (to prune or accept
+ * whole subtrees) and single points against.
+ */
+public interface QueryRegion {
+   public static final int OUTSIDE = 0;
+   public static final int INSIDE  = 1;
+   public static final int PARTIAL = 2;
+
+   /**
+    * Classifies the convex hull of the given corners against this region. Hulls that can't cheaply be proven to be
+    * fully inside or outside are {@link #PARTIAL}.
+    *
+    * @param corners
+    *           x, y, z of every corner (3 values per corner)
+    * @return {@link #OUTSIDE}, {@link #INSIDE} or {@link #PARTIAL}
+    */
+   public int classify(final double[] corners);
+
+   /**
+    * Returns true if the given point is inside this region.
+    *
+    * @param x
+    * @param y
+    * @param z
+    * @return
+    */
+   public boolean contains(final double x, final double y, final double z);
+}
@@ -0,0 +1,189 @@
+package com.stephenwranger.thesis.query;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.stephenwranger.thesis.geospatial.WGS84;
+
+/**
+ * A longitude, latitude grid of minimum, maximum and mean altitude (meters above the WGS84 ellipsoid) and point density
+ * (points per square meter) as produced by a {@link Rasterizer}. Row zero is the southern most row.
+ */
+public class Raster {
+   public static final float NO_DATA = -9999f;
+
+   public final double       minLon;
+   public final double       minLat;
+   public final double       pixelSize;
+   public final int          width;
+   public final int          height;
+
+   private final float[]     min;
+   private final float[]     max;
+   private final double[]    sum;
+   private final double[]    count;
+
+   /**
+    * @param minLon
+    *           the western edge in degrees
+    * @param minLat
+    *           the southern edge in degrees
+    * @param pixelSize
+    *           the width and height of a pixel in degrees
+    * @param width
+    * @param height
+    */
+   public Raster(final double minLon, final double minLat, final double pixelSize, final int width, final int height) {
+      this.minLon = minLon;
+      this.minLat = minLat;
+      this.pixelSize = pixelSize;
+      this.width = width;
+      this.height = height;
+
+      this.min = new float[width * height];
+      this.max = new float[width * height];
+      this.sum = new double[width * height];
+      this.count = new double[width * height];
+
+      Arrays.fill(this.min, Float.MAX_VALUE);
+      Arrays.fill(this.max, -Float.MAX_VALUE);
+   }
+
+   /**
+    * Adds a point to the given pixel; not synchronized so each pixel must only be written by one thread.
+    *
+    * @param column
+    * @param row
+    * @param altitude
+    * @param weight
+    *           the number of points this point stands for
+    */
+   void add(final int column, final int row, final double altitude, final double weight) {
+      final int index = (row * this.width) + column;
+
+      this.min[index] = Math.min(this.min[index], (float) altitude);
+      this.max[index] = Math.max(this.max[index], (float) altitude);
+      this.sum[index] += altitude * weight;
+      this.count[index] += weight;
+   }
+
+   /**
+    * Returns the (estimated) number of points in the given pixel.
+    *
+    * @param column
+    * @param row
+    * @return
+    */
+   public double getCount(final int column, final int row) {
+      return this.count[(row * this.width) + column];
+   }
+
+   public float getMin(final int column, final int row) {
+      final int index = (row * this.width) + column;
+
+      return (this.count[index] == 0) ? Raster.NO_DATA : this.min[index];
+   }
+
+   public float getMax(final int column, final int row) {
+      final int index = (row * this.width) + column;
+
+      return (this.count[index] == 0) ? Raster.NO_DATA : this.max[index];
+   }
+
+   public float getMean(final int column, final int row) {
+      final int index = (row * this.width) + column;
+
+      return (this.count[index] == 0) ? Raster.NO_DATA : (float) (this.sum[index] / this.count[index]);
+   }
+
+   /**
+    * Returns the (estimated) points per square meter in the given pixel.
+    *
+    * @param column
+    * @param row
+    * @return
+    */
+   public float getDensity(final int column, final int row) {
+      return (float) (this.getCount(column, row) / this.getPixelArea(row));
+   }
+
+   /**
+    * Returns the area of the pixels in the given row in square meters.
+    *
+    * @param row
+    * @return
+    */
+   public double getPixelArea(final int row) {
+      final double latitude = Math.toRadians(this.minLat + ((row + 0.5) * this.pixelSize));
+      final double size = Math.toRadians(this.pixelSize);
+
+      return Raster.getMeridionalRadius(latitude) * size * Raster.getPrimeVerticalRadius(latitude) * Math.cos(latitude) * size;
+   }
+
+   /**
+    * Writes the minimum, maximum and mean altitude and density as ESRI ASCII grids named
+    * &lt;name&gt;-{min,max,mean,density}.asc to the given directory.
+    *
+    * @param directory
+    * @param name
+    * @throws IOException
+    */
+   public void write(final File directory, final String name) throws IOException {
+      directory.mkdirs();
+
+      this.write(new File(directory, name + "-min.asc"), this::getMin);
+      this.write(new File(directory, name + "-max.asc"), this::getMax);
+      this.write(new File(directory, name + "-mean.asc"), this::getMean);
+      this.write(new File(directory, name + "-density.asc"), this::getDensity);
+   }
+
+   private void write(final File file, final Band band) throws IOException {
+      try (final BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+         writer.write("ncols " + this.width + "\n");
+         writer.write("nrows " + this.height + "\n");
+         writer.write("xllcorner " + this.minLon + "\n");
+         writer.write("yllcorner " + this.minLat + "\n");
+         writer.write("cellsize " + this.pixelSize + "\n");
+         writer.write("NODATA_value " + Raster.NO_DATA + "\n");
+
+         // northern most row first
+         for (int row = this.height - 1; row >= 0; row--) {
+            for (int column = 0; column < this.width; column++) {
+               if (column > 0) {
+                  writer.write(' ');
+               }
+
+               writer.write(Float.toString(band.get(column, row)));
+            }
+
+            writer.write('\n');
+         }
+      }
+   }
+
+   /**
+    * Returns the ellipsoid's radius of curvature along the meridian at the given latitude (radians).
+    */
+   static double getMeridionalRadius(final double latitude) {
+      final double sin = Math.sin(latitude);
+      final double w = 1.0 - (WGS84.FIRST_ECCENTRICITY_SQUARED * sin * sin);
+
+      return (WGS84.EQUATORIAL_RADIUS * (1.0 - WGS84.FIRST_ECCENTRICITY_SQUARED)) / (w * Math.sqrt(w));
+   }
+
+   /**
+    * Returns the ellipsoid's radius of curvature perpendicular to the meridian at the given latitude (radians).
+    */
+   static double getPrimeVerticalRadius(final double latitude) {
+      final double sin = Math.sin(latitude);
+
+      return WGS84.EQUATORIAL_RADIUS / Math.sqrt(1.0 - (WGS84.FIRST_ECCENTRICITY_SQUARED * sin * sin));
+   }
+
+   private interface Band {
+      public float get(final int column, final int row);
+   }
+}
@@ -0,0 +1,275 @@
+package com.stephenwranger.thesis.query;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.data.AttributeSummary;
+import com.stephenwranger.thesis.data.CellSummary;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeServerProcessor.ConnectionType;
+import com.stephenwranger.thesis.data.TreeStructure;
+import com.stephenwranger.thesis.geospatial.WGS84;
+
+/**
+ * Rasterizes an exported tree (stored in ECEF) into a longitude, latitude {@link Raster} of minimum, maximum and mean
+ * altitude and point density without flattening it first. The grid is split into square tiles of
+ * {@link #TILE_SIZE} pixels that are rasterized in parallel, each pruning cells with a {@link GeodeticRegion} of its
+ * bounds.
+ * <p>
+ * Refinement stops once the points read so far cover the area at the requested number of points per pixel (estimated
+ * from the points per cell and the cell's size) so coarse rasters only read the upper levels of the tree. Every point of
+ * a cell whose children are not read stands for its share of the cell's whole subtree (from the stored
+ * {@link CellSummary}) so counts and densities still estimate the full cloud; min and max only cover the points read.
+ */
+public class Rasterizer {
+   public static final int            TILE_SIZE      = Integer.getInteger("rasterTileSize", 256);
+   public static final String         USAGE          = "Usage: Rasterizer <tree directory> <output directory> <min lon> <min lat> <max lon> <max lat> <pixel size (degrees)> [points per pixel]";
+
+   private final TreeStructure        tree;
+   private final TreeServerConnection connection;
+   private final CellLeases           leases;
+   private final Raster               raster;
+
+   private double                     pointsPerPixel = 4;
+   private double                     minAltitude    = -1000;
+   private double                     maxAltitude    = 10000;
+
+   /**
+    * @param tree
+    * @param connection
+    * @param minLon
+    * @param minLat
+    * @param maxLon
+    *           may be less than the min longitude to cross the antimeridian
+    * @param maxLat
+    * @param pixelSize
+    *           the width and height of a pixel in degrees
+    */
+   public Rasterizer(final TreeStructure tree, final TreeServerConnection connection, final double minLon, final double minLat, final double maxLon, final double maxLat, final double pixelSize) {
+      final double lonSpan = (maxLon < minLon) ? (maxLon - minLon) + 360.0 : maxLon - minLon;
+      final double south = Math.min(minLat, maxLat);
+      final double north = Math.max(minLat, maxLat);
+
+      this.tree = tree;
+      this.connection = connection;
+      this.leases = new CellLeases(connection);
+      this.raster = new Raster(minLon, south, pixelSize, Math.max(1, (int) Math.ceil(lonSpan / pixelSize)), Math.max(1, (int) Math.ceil((north - south) / pixelSize)));
+   }
+
+   public double getPointsPerPixel() {
+      return this.pointsPerPixel;
+   }
+
+   /**
+    * Sets the number of points per pixel at which refinement stops; zero or less to read the whole tree.
+    *
+    * @param pointsPerPixel
+    * @return this rasterizer
+    */
+   public Rasterizer setPointsPerPixel(final double pointsPerPixel) {
+      this.pointsPerPixel = pointsPerPixel;
+
+      return this;
+   }
+
+   /**
+    * Sets the altitude range (meters above the ellipsoid) of the points to rasterize.
+    *
+    * @param minAltitude
+    * @param maxAltitude
+    * @return this rasterizer
+    */
+   public Rasterizer setAltitudeRange(final double minAltitude, final double maxAltitude) {
+      this.minAltitude = Math.min(minAltitude, maxAltitude);
+      this.maxAltitude = Math.max(minAltitude, maxAltitude);
+
+      return this;
+   }
+
+   /**
+    * Rasterizes all tiles in parallel and returns the finished raster.
+    *
+    * @return
+    */
+   public Raster run() {
+      final List<CompletableFuture<Void>> tiles = new ArrayList<>();
+
+      for (int row = 0; row < this.raster.height; row += Rasterizer.TILE_SIZE) {
+         for (int column = 0; column < this.raster.width; column += Rasterizer.TILE_SIZE) {
+            final int minColumn = column;
+            final int minRow = row;
+            final int maxColumn = Math.min(this.raster.width, column + Rasterizer.TILE_SIZE);
+            final int maxRow = Math.min(this.raster.height, row + Rasterizer.TILE_SIZE);
+
+            tiles.add(CompletableFuture.runAsync(() -> this.rasterize(minColumn, minRow, maxColumn, maxRow)));
+         }
+      }
+
+      for (final CompletableFuture<Void> tile : tiles) {
+         tile.join();
+      }
+
+      return this.raster;
+   }
+
+   /**
+    * Rasterizes all points in the given pixel range (max exclusive).
+    */
+   private void rasterize(final int minColumn, final int minRow, final int maxColumn, final int maxRow) {
+      final Raster raster = this.raster;
+      final double west = raster.minLon + (minColumn * raster.pixelSize);
+      final double east = raster.minLon + (maxColumn * raster.pixelSize);
+      final double south = raster.minLat + (minRow * raster.pixelSize);
+      final double north = raster.minLat + (maxRow * raster.pixelSize);
+      final GeodeticRegion region = new GeodeticRegion(Rasterizer.wrap(west), south, this.minAltitude, Rasterizer.wrap(east), north, this.maxAltitude);
+      final double targetDensity = this.getTargetDensity(south, north);
+
+      final Deque<TreeCell> stack = new ArrayDeque<>();
+      final Deque<Double> densityStack = new ArrayDeque<>();
+      final TreeCell root = this.tree.getCell("");
+
+      if (region.classify(root.getCorners()) != QueryRegion.OUTSIDE) {
+         stack.push(root);
+         densityStack.push(0.0);
+      }
+
+      final Tuple3d xyz = new Tuple3d();
+
+      while (!stack.isEmpty() && !Thread.currentThread().isInterrupted()) {
+         final TreeCell cell = stack.pop();
+         final double parentDensity = densityStack.pop();
+
+         this.leases.acquire(cell);
+
+         try {
+            if (!cell.isComplete()) {
+               continue;
+            }
+
+            final int pointCount = cell.getPointCount();
+            final double density = parentDensity + (pointCount / Math.pow(cell.getVolume(), 2.0 / 3.0));
+            final boolean isRefined = cell.hasChildren() && ((targetDensity <= 0) || (density < targetDensity));
+            final double weight = (isRefined || !cell.hasChildren()) ? 1.0 : this.getWeight(cell, pointCount);
+
+            cell.points().forEach((cursor) -> {
+               final Tuple3d lonLatAlt = WGS84.cartesianToGeodesic(cursor.getXYZ(xyz));
+               double lonOffset = lonLatAlt.x - raster.minLon;
+
+               if (lonOffset < 0) {
+                  lonOffset += 360.0;
+               }
+
+               final int column = (int) Math.floor(lonOffset / raster.pixelSize);
+               final int row = (int) Math.floor((lonLatAlt.y - raster.minLat) / raster.pixelSize);
+
+               if ((column >= minColumn) && (column < maxColumn) && (row >= minRow) && (row < maxRow) && (lonLatAlt.z >= this.minAltitude) && (lonLatAlt.z <= this.maxAltitude)) {
+                  raster.add(column, row, lonLatAlt.z, weight);
+               }
+            });
+
+            if (isRefined) {
+               final String[] children = cell.getChildList();
+               final List<TreeCell> requests = new ArrayList<>();
+
+               for (int i = children.length - 1; i >= 0; i--) {
+                  final TreeCell child = this.tree.getCell(children[i]);
+
+                  if (region.classify(child.getCorners()) != QueryRegion.OUTSIDE) {
+                     stack.push(child);
+                     densityStack.push(density);
+                     requests.add(child);
+                  }
+               }
+
+               this.connection.request(requests);
+            }
+         } finally {
+            this.leases.release(cell);
+         }
+      }
+   }
+
+   /**
+    * Returns the points per square meter at which the given latitude band is covered at the requested points per pixel
+    * (using the band's smallest pixel dimension) or zero for no limit.
+    */
+   private double getTargetDensity(final double south, final double north) {
+      if (this.pointsPerPixel <= 0) {
+         return 0;
+      }
+
+      final double size = Math.toRadians(this.raster.pixelSize);
+      final double middle = Math.toRadians((south + north) * 0.5);
+      final double poleward = Math.toRadians(Math.max(Math.abs(south), Math.abs(north)));
+      final double height = Raster.getMeridionalRadius(middle) * size;
+      final double width = Raster.getPrimeVerticalRadius(poleward) * Math.cos(poleward) * size;
+      final double pixelMeters = Math.max(0.01, Math.min(height, width));
+
+      return this.pointsPerPixel / (pixelMeters * pixelMeters);
+   }
+
+   /**
+    * Returns the number of points each of the given cell's points stands for if its children aren't read.
+    */
+   private double getWeight(final TreeCell cell, final int pointCount) {
+      final CellSummary summary = this.connection.getSummary(cell);
+
+      if ((summary == null) || (pointCount <= 0)) {
+         return 1.0;
+      }
+
+      // every attribute's subtree summary counts the same points
+      final Iterator<AttributeSummary> subtrees = summary.getSubtreeSummaries().values().iterator();
+
+      return subtrees.hasNext() ? Math.max(1.0, (double) subtrees.next().getCount() / pointCount) : 1.0;
+   }
+
+   /**
+    * Returns the given longitude in [-180, 180].
+    */
+   private static double wrap(final double longitude) {
+      return (longitude > 180.0) ? longitude - 360.0 : longitude;
+   }
+
+   public static void main(final String[] args) {
+      TreeServerConnection connection = null;
+
+      try {
+         final String basePath = args[0];
+         final File outputDirectory = new File(args[1]);
+         final TreeStructure tree = TreeServerConnection.initializeTree(basePath, ConnectionType.FILESYSTEM);
+
+         if (tree == null) {
+            throw new RuntimeException("Could not read tree at " + basePath);
+         }
+
+         connection = new TreeServerConnection(tree, basePath, ConnectionType.FILESYSTEM);
+
+         final Rasterizer rasterizer = new Rasterizer(tree, connection, Double.parseDouble(args[2]), Double.parseDouble(args[3]), Double.parseDouble(args[4]), Double.parseDouble(args[5]), Double.parseDouble(args[6]));
+
+         if (args.length > 7) {
+            rasterizer.setPointsPerPixel(Double.parseDouble(args[7]));
+         }
+
+         final long start = System.nanoTime();
+         final Raster raster = rasterizer.run();
+         System.out.println("Rasterized " + raster.width + " x " + raster.height + " pixels in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+
+         raster.write(outputDirectory, new File(basePath).getName());
+      } catch (final Exception e) {
+         System.err.println(Rasterizer.USAGE);
+         e.printStackTrace();
+      } finally {
+         if (connection != null) {
+            connection.close();
+         }
+      }
+   }
+}
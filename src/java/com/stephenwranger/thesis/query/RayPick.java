@@ -0,0 +1,218 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.PriorityQueue;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.data.Point;
+import com.stephenwranger.thesis.data.PointCursor;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Finds the point closest to the origin of a ray among all points within a pick radius of the ray; the radius grows
+ * with the distance along the ray (eg, a fixed number of pixels on screen). Only cells already in memory are searched;
+ * nothing is loaded. Cells are visited front to back by where the ray enters their bounds (grown by the pick radius)
+ * and the search stops as soon as the next cell starts behind the closest hit so far.
+ */
+public class RayPick {
+   /**
+    * A picked point.
+    */
+   public static class Hit {
+      public final TreeCell cell;
+      public final int      index;
+      public final Point    point;
+      public final Tuple3d  position;
+      public final double   distance;
+
+      public Hit(final TreeCell cell, final int index, final Point point, final Tuple3d position, final double distance) {
+         this.cell = cell;
+         this.index = index;
+         this.point = point;
+         this.position = position;
+         this.distance = distance;
+      }
+
+      @Override
+      public String toString() {
+         return "[Hit: " + this.cell.path + "[" + this.index + "], " + this.position + ", distance: " + this.distance + "]";
+      }
+   }
+
+   private RayPick() {
+      // static only
+   }
+
+   /**
+    * Picks the closest point along the given ray.
+    *
+    * @param tree
+    * @param origin
+    *           the start of the ray (eg, the camera position)
+    * @param direction
+    *           the unit direction of the ray
+    * @param radius
+    *           the pick radius at the origin in meters
+    * @param radiusPerMeter
+    *           how much the pick radius grows per meter along the ray
+    * @return the hit or null if no point is within the pick radius
+    */
+   public static Hit pick(final TreeStructure tree, final Tuple3d origin, final Tuple3d direction, final double radius, final double radiusPerMeter) {
+      final TreeCell root = tree.containsCell("");
+
+      if (root == null) {
+         return null;
+      }
+
+      final PriorityQueue<CellEntry> queue = new PriorityQueue<>();
+      final Candidate candidate = new Candidate(origin, direction, radius, radiusPerMeter);
+      final double rootEntry = RayPick.getEntryDistance(root, origin, direction, radius, radiusPerMeter);
+
+      if (rootEntry >= 0) {
+         queue.add(new CellEntry(root, rootEntry));
+      }
+
+      while (!queue.isEmpty()) {
+         final CellEntry entry = queue.poll();
+
+         // every remaining cell starts behind the closest hit
+         if (entry.distance > candidate.distance) {
+            break;
+         }
+
+         final TreeCell cell = entry.cell;
+         cell.points().forEach(candidate::test);
+
+         for (final String childPath : cell.getChildList()) {
+            final TreeCell child = tree.containsCell(childPath);
+
+            if ((child != null) && (child.isComplete() || (child.getPointCount() > 0))) {
+               final double childEntry = RayPick.getEntryDistance(child, origin, direction, radius, radiusPerMeter);
+
+               if ((childEntry >= 0) && (childEntry <= candidate.distance)) {
+                  queue.add(new CellEntry(child, childEntry));
+               }
+            }
+         }
+      }
+
+      return candidate.hit;
+   }
+
+   /**
+    * Returns the distance along the ray to where it enters the cell's axis-aligned bounds grown by the largest pick
+    * radius any point of the cell can have (zero if the origin is inside) or -1 if the ray misses.
+    */
+   private static double getEntryDistance(final TreeCell cell, final Tuple3d origin, final Tuple3d direction, final double radius, final double radiusPerMeter) {
+      final double[] corners = cell.getCorners();
+      final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+      final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+      for (int i = 0; i < corners.length; i += 3) {
+         for (int j = 0; j < 3; j++) {
+            min[j] = Math.min(min[j], corners[i + j]);
+            max[j] = Math.max(max[j], corners[i + j]);
+         }
+      }
+
+      final double[] start = new double[] { origin.x, origin.y, origin.z };
+      final double[] step = new double[] { direction.x, direction.y, direction.z };
+      final double farthest = Math.sqrt(RayPick.getDistanceSquared(min, max, start)) + cell.getBoundingRadius() * 2.0;
+      final double grow = radius + (farthest * radiusPerMeter);
+      double near = 0;
+      double far = Double.MAX_VALUE;
+
+      for (int j = 0; j < 3; j++) {
+         final double low = min[j] - grow;
+         final double high = max[j] + grow;
+
+         if (step[j] == 0) {
+            if ((start[j] < low) || (start[j] > high)) {
+               return -1;
+            }
+         } else {
+            final double t1 = (low - start[j]) / step[j];
+            final double t2 = (high - start[j]) / step[j];
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+
+            if (near > far) {
+               return -1;
+            }
+         }
+      }
+
+      return near;
+   }
+
+   private static double getDistanceSquared(final double[] min, final double[] max, final double[] point) {
+      double distanceSquared = 0;
+
+      for (int j = 0; j < 3; j++) {
+         final double d = Math.max(Math.max(min[j] - point[j], point[j] - max[j]), 0);
+         distanceSquared += d * d;
+      }
+
+      return distanceSquared;
+   }
+
+   /**
+    * Tests points against the ray and keeps the closest one within the pick radius.
+    */
+   private static class Candidate {
+      private final double x, y, z;
+      private final double dx, dy, dz;
+      private final double radius;
+      private final double radiusPerMeter;
+
+      private double       distance = Double.MAX_VALUE;
+      private Hit          hit      = null;
+
+      public Candidate(final Tuple3d origin, final Tuple3d direction, final double radius, final double radiusPerMeter) {
+         this.x = origin.x;
+         this.y = origin.y;
+         this.z = origin.z;
+         this.dx = direction.x;
+         this.dy = direction.y;
+         this.dz = direction.z;
+         this.radius = radius;
+         this.radiusPerMeter = radiusPerMeter;
+      }
+
+      public void test(final PointCursor cursor) {
+         final double px = cursor.getX() - this.x;
+         final double py = cursor.getY() - this.y;
+         final double pz = cursor.getZ() - this.z;
+         final double t = (px * this.dx) + (py * this.dy) + (pz * this.dz);
+
+         if ((t < 0) || (t >= this.distance)) {
+            return;
+         }
+
+         final double ex = px - (t * this.dx);
+         final double ey = py - (t * this.dy);
+         final double ez = pz - (t * this.dz);
+         final double pickRadius = this.radius + (t * this.radiusPerMeter);
+
+         if (((ex * ex) + (ey * ey) + (ez * ez)) <= (pickRadius * pickRadius)) {
+            this.distance = t;
+            this.hit = new Hit(cursor.getCell(), cursor.getIndex(), cursor.toPoint(), cursor.getXYZ(null), t);
+         }
+      }
+   }
+
+   private static class CellEntry implements Comparable<CellEntry> {
+      private final TreeCell cell;
+      private final double   distance;
+
+      public CellEntry(final TreeCell cell, final double distance) {
+         this.cell = cell;
+         this.distance = distance;
+      }
+
+      @Override
+      public int compareTo(final CellEntry o) {
+         return Double.compare(this.distance, o.distance);
+      }
+   }
+}
@@ -0,0 +1,55 @@
+package com.stephenwranger.thesis.query;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+
+/**
+ * A sphere region.
+ */
+public class SphereRegion implements QueryRegion {
+   private final double x, y, z;
+   private final double radiusSquared;
+
+   public SphereRegion(final Tuple3d center, final double radius) {
+      this.x = center.x;
+      this.y = center.y;
+      this.z = center.z;
+      this.radiusSquared = radius * radius;
+   }
+
+   @Override
+   public int classify(final double[] corners) {
+      double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+      boolean isInside = true;
+
+      for (int i = 0; i < corners.length; i += 3) {
+         isInside &= this.contains(corners[i], corners[i + 1], corners[i + 2]);
+         minX = Math.min(minX, corners[i]);
+         minY = Math.min(minY, corners[i + 1]);
+         minZ = Math.min(minZ, corners[i + 2]);
+         maxX = Math.max(maxX, corners[i]);
+         maxY = Math.max(maxY, corners[i + 1]);
+         maxZ = Math.max(maxZ, corners[i + 2]);
+      }
+
+      if (isInside) {
+         return QueryRegion.INSIDE;
+      }
+
+      // closest point of the corners' axis-aligned bounds to the center
+      final double dx = this.x - Math.max(minX, Math.min(this.x, maxX));
+      final double dy = this.y - Math.max(minY, Math.min(this.y, maxY));
+      final double dz = this.z - Math.max(minZ, Math.min(this.z, maxZ));
+
+      return ((dx * dx) + (dy * dy) + (dz * dz) > this.radiusSquared) ? QueryRegion.OUTSIDE : QueryRegion.PARTIAL;
+   }
+
+   @Override
+   public boolean contains(final double x, final double y, final double z) {
+      final double dx = x - this.x;
+      final double dy = y - this.y;
+      final double dz = z - this.z;
+
+      return (dx * dx) + (dy * dy) + (dz * dz) <= this.radiusSquared;
+   }
+}
@@ -0,0 +1,425 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.stephenwranger.graphics.bounds.BoundingVolume;
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.data.Attribute;
+import com.stephenwranger.thesis.data.AttributeSummary;
+import com.stephenwranger.thesis.data.CellSummary;
+import com.stephenwranger.thesis.data.Point;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Finds what changed between two exported trees of the same area built with the same {@link TreeStructure} parameters
+ * (so both use the same cell paths and bounds). Matching cells are compared by their stored subtree
+ * {@link CellSummary summaries} first (point count and the bounds and mean of the positions); subtrees that match are
+ * skipped and only differing subtrees are descended. The summaries don't cover the points of a matching subtree's
+ * ancestors inside its bounds so those are still compared against the other tree, whose matching subtree is only read
+ * if some of them have no match among the other tree's ancestor points.
+ * <p>
+ * Once a differing subtree can't be descended any further (a leaf, a cell only one tree has or the maximum depth), all
+ * points inside that cell's bounds (those of its subtree and of its ancestors) are compared between the two trees using
+ * a hash grid: a point without a point of the other tree within the match distance is reported as removed or added.
+ * Each such cell becomes one {@link Change}.
+ */
+public class TreeDiff {
+   /**
+    * The differences within the bounds of a single cell.
+    */
+   public static class Change {
+      public final String         path;
+      public final BoundingVolume bounds;
+      /** points of both trees compared in this cell's bounds (only its ancestors' points if its subtree matched) */
+      public final int            countBefore, countAfter;
+      /** points of the first tree without a match in the second */
+      public final List<Point>    removed;
+      /** points of the second tree without a match in the first */
+      public final List<Point>    added;
+
+      public Change(final String path, final BoundingVolume bounds, final int countBefore, final int countAfter, final List<Point> removed, final List<Point> added) {
+         this.path = path;
+         this.bounds = bounds;
+         this.countBefore = countBefore;
+         this.countAfter = countAfter;
+         this.removed = removed;
+         this.added = added;
+      }
+
+      /**
+       * Returns the fraction of all points in this cell's bounds (of both trees) that were removed or added.
+       *
+       * @return
+       */
+      public double getMagnitude() {
+         final int total = this.countBefore + this.countAfter;
+
+         return (total == 0) ? 0 : (double) (this.removed.size() + this.added.size()) / total;
+      }
+
+      @Override
+      public String toString() {
+         return "[Change: '" + this.path + "', before: " + this.countBefore + ", after: " + this.countAfter + ", removed: " + this.removed.size() + ", added: " + this.added.size() + "]";
+      }
+   }
+
+   private final TreeStructure        before;
+   private final TreeServerConnection beforeConnection;
+   private final TreeStructure        after;
+   private final TreeServerConnection afterConnection;
+
+   private double                     countTolerance  = 0.01;
+   private double                     boundsTolerance = 0.05;
+   private double                     matchDistance   = 0.1;
+   private int                        maxDepth        = -1;
+
+   private int                        comparedCount;
+   private int                        skippedCount;
+
+   public TreeDiff(final TreeStructure before, final TreeServerConnection beforeConnection, final TreeStructure after, final TreeServerConnection afterConnection) {
+      this.before = before;
+      this.beforeConnection = beforeConnection;
+      this.after = after;
+      this.afterConnection = afterConnection;
+   }
+
+   /**
+    * Sets the largest relative difference in subtree point counts for two subtrees to match.
+    *
+    * @param countTolerance
+    * @return this diff
+    */
+   public TreeDiff setCountTolerance(final double countTolerance) {
+      this.countTolerance = countTolerance;
+
+      return this;
+   }
+
+   /**
+    * Sets the largest difference (meters) between the position bounds and means of two subtrees for them to match.
+    *
+    * @param boundsTolerance
+    * @return this diff
+    */
+   public TreeDiff setBoundsTolerance(final double boundsTolerance) {
+      this.boundsTolerance = boundsTolerance;
+
+      return this;
+   }
+
+   /**
+    * Sets the distance (meters) within which a point of the other tree counts as the same point.
+    *
+    * @param matchDistance
+    * @return this diff
+    */
+   public TreeDiff setMatchDistance(final double matchDistance) {
+      this.matchDistance = matchDistance;
+
+      return this;
+   }
+
+   /**
+    * Sets the depth of the deepest cells descended to; differing subtrees at this depth are compared as a whole. Less
+    * than zero for no limit.
+    *
+    * @param maxDepth
+    * @return this diff
+    */
+   public TreeDiff setMaxDepth(final int maxDepth) {
+      this.maxDepth = maxDepth;
+
+      return this;
+   }
+
+   /**
+    * Returns the cells whose points changed ordered by path.
+    *
+    * @return
+    */
+   public List<Change> run() {
+      final List<Change> changes = new ArrayList<>();
+
+      this.comparedCount = 0;
+      this.skippedCount = 0;
+      this.compare("", Collections.emptyList(), Collections.emptyList(), true, true, changes);
+
+      return changes;
+   }
+
+   /**
+    * Returns the number of cells whose points were compared by the last run.
+    *
+    * @return
+    */
+   public int getComparedCount() {
+      return this.comparedCount;
+   }
+
+   /**
+    * Returns the number of subtrees skipped because their summaries matched by the last run.
+    *
+    * @return
+    */
+   public int getSkippedCount() {
+      return this.skippedCount;
+   }
+
+   /**
+    * Compares the cell at the given path given the points of its ancestors inside its bounds.
+    */
+   private void compare(final String path, final List<Point> ancestorsBefore, final List<Point> ancestorsAfter, final boolean isBefore, final boolean isAfter, final List<Change> changes) {
+      final TreeCell beforeCell = isBefore ? this.before.getCell(path) : null;
+      final TreeCell afterCell = isAfter ? this.after.getCell(path) : null;
+
+      if (isBefore && isAfter && this.isMatch(this.beforeConnection.getSummary(beforeCell), this.afterConnection.getSummary(afterCell))) {
+         this.skippedCount++;
+
+         // the subtree summaries say nothing about the ancestors' points that fall within this cell
+         if (!ancestorsBefore.isEmpty() || !ancestorsAfter.isEmpty()) {
+            this.compareAncestors(path, beforeCell, ancestorsBefore, afterCell, ancestorsAfter, changes);
+         }
+
+         return;
+      }
+
+      final List<Point> pointsBefore = new ArrayList<>(ancestorsBefore);
+      final List<Point> pointsAfter = new ArrayList<>(ancestorsAfter);
+
+      if (!isBefore || !isAfter || ((this.maxDepth >= 0) && (path.length() >= this.maxDepth))) {
+         // compared as a whole
+         if (isBefore) {
+            this.readSubtree(this.before, this.beforeConnection, beforeCell, pointsBefore);
+         }
+
+         if (isAfter) {
+            this.readSubtree(this.after, this.afterConnection, afterCell, pointsAfter);
+         }
+
+         this.addChange(path, pointsBefore, pointsAfter, changes);
+         return;
+      }
+
+      final String[] childrenBefore = TreeDiff.read(this.beforeConnection, beforeCell, pointsBefore);
+      final String[] childrenAfter = TreeDiff.read(this.afterConnection, afterCell, pointsAfter);
+
+      if ((childrenBefore.length == 0) && (childrenAfter.length == 0)) {
+         this.addChange(path, pointsBefore, pointsAfter, changes);
+         return;
+      }
+
+      final Set<String> before = new HashSet<>();
+      final Set<String> after = new HashSet<>();
+      final Set<String> children = new TreeSet<>();
+
+      Collections.addAll(before, childrenBefore);
+      Collections.addAll(after, childrenAfter);
+      children.addAll(before);
+      children.addAll(after);
+
+      final Tuple3d xyz = new Tuple3d();
+
+      for (final String child : children) {
+         final BoundingVolume bounds = this.before.getBoundingVolume(child);
+
+         this.compare(child, this.getInside(this.before, pointsBefore, bounds, xyz), this.getInside(this.after, pointsAfter, bounds, xyz), before.contains(child), after.contains(child), changes);
+      }
+   }
+
+   /**
+    * Compares the ancestor points of both trees inside the bounds of two matching subtrees. Ancestors only hold a
+    * sparse sample of the points so each tree's ancestor points are matched against all of the other tree's points in
+    * the bounds: its ancestor points first and, only if some of them are left unmatched, the points of its subtree.
+    */
+   private void compareAncestors(final String path, final TreeCell beforeCell, final List<Point> ancestorsBefore, final TreeCell afterCell, final List<Point> ancestorsAfter, final List<Change> changes) {
+      this.comparedCount++;
+
+      List<Point> removed = this.getUnmatched(this.before, ancestorsBefore, this.after, ancestorsAfter);
+      List<Point> added = this.getUnmatched(this.after, ancestorsAfter, this.before, ancestorsBefore);
+
+      if (!removed.isEmpty()) {
+         final List<Point> subtreeAfter = new ArrayList<>();
+         this.readSubtree(this.after, this.afterConnection, afterCell, subtreeAfter);
+         removed = this.getUnmatched(this.before, removed, this.after, subtreeAfter);
+      }
+
+      if (!added.isEmpty()) {
+         final List<Point> subtreeBefore = new ArrayList<>();
+         this.readSubtree(this.before, this.beforeConnection, beforeCell, subtreeBefore);
+         added = this.getUnmatched(this.after, added, this.before, subtreeBefore);
+      }
+
+      if (!removed.isEmpty() || !added.isEmpty()) {
+         changes.add(new Change(path, this.before.getBoundingVolume(path), ancestorsBefore.size(), ancestorsAfter.size(), removed, added));
+      }
+   }
+
+   /**
+    * Returns true if the given subtree summaries are within the tolerances of each other.
+    */
+   private boolean isMatch(final CellSummary before, final CellSummary after) {
+      if ((before == null) || (after == null)) {
+         return false;
+      }
+
+      final Attribute[] positions = new Attribute[] { this.before.xAttribute, this.before.yAttribute, this.before.zAttribute };
+
+      for (final Attribute attribute : positions) {
+         final AttributeSummary a = before.getSubtree(attribute);
+         final AttributeSummary b = after.getSubtree(attribute);
+
+         if ((a == null) || (b == null)) {
+            return false;
+         }
+
+         final long count = Math.max(a.getCount(), b.getCount());
+
+         if (Math.abs(a.getCount() - b.getCount()) > (count * this.countTolerance)) {
+            return false;
+         }
+
+         if ((count > 0) && ((Math.abs(a.getMin() - b.getMin()) > this.boundsTolerance) || (Math.abs(a.getMax() - b.getMax()) > this.boundsTolerance) || (Math.abs(a.getMean() - b.getMean()) > this.boundsTolerance))) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Compares the given points of both trees and records a change if any points were removed or added.
+    */
+   private void addChange(final String path, final List<Point> before, final List<Point> after, final List<Change> changes) {
+      this.comparedCount++;
+
+      final List<Point> removed = this.getUnmatched(this.before, before, this.after, after);
+      final List<Point> added = this.getUnmatched(this.after, after, this.before, before);
+
+      if (!removed.isEmpty() || !added.isEmpty()) {
+         changes.add(new Change(path, this.before.getBoundingVolume(path), before.size(), after.size(), removed, added));
+      }
+   }
+
+   /**
+    * Returns the points of the first list without a point of the second list within the match distance.
+    */
+   private List<Point> getUnmatched(final TreeStructure tree, final List<Point> points, final TreeStructure otherTree, final List<Point> others) {
+      final List<Point> unmatched = new ArrayList<>();
+
+      if (others.isEmpty()) {
+         unmatched.addAll(points);
+         return unmatched;
+      }
+
+      final double size = this.matchDistance;
+      final double distanceSquared = size * size;
+      final Map<Long, List<Tuple3d>> grid = new HashMap<>();
+
+      for (final Point other : others) {
+         final Tuple3d xyz = other.getXYZ(otherTree, new Tuple3d());
+         grid.computeIfAbsent(TreeDiff.getKey((long) Math.floor(xyz.x / size), (long) Math.floor(xyz.y / size), (long) Math.floor(xyz.z / size)), (key) -> new ArrayList<>()).add(xyz);
+      }
+
+      final Tuple3d xyz = new Tuple3d();
+
+      for (final Point point : points) {
+         point.getXYZ(tree, xyz);
+
+         final long x = (long) Math.floor(xyz.x / size);
+         final long y = (long) Math.floor(xyz.y / size);
+         final long z = (long) Math.floor(xyz.z / size);
+         boolean isMatched = false;
+
+         // the match distance is the bucket size so only the neighbouring buckets can hold a match
+         for (int i = -1; (i <= 1) && !isMatched; i++) {
+            for (int j = -1; (j <= 1) && !isMatched; j++) {
+               for (int k = -1; (k <= 1) && !isMatched; k++) {
+                  final List<Tuple3d> bucket = grid.get(TreeDiff.getKey(x + i, y + j, z + k));
+
+                  if (bucket != null) {
+                     for (final Tuple3d other : bucket) {
+                        if (xyz.distanceSquared(other) <= distanceSquared) {
+                           isMatched = true;
+                           break;
+                        }
+                     }
+                  }
+               }
+            }
+         }
+
+         if (!isMatched) {
+            unmatched.add(point);
+         }
+      }
+
+      return unmatched;
+   }
+
+   /**
+    * Returns the given points inside the given bounds.
+    */
+   private List<Point> getInside(final TreeStructure tree, final List<Point> points, final BoundingVolume bounds, final Tuple3d xyz) {
+      final List<Point> inside = new ArrayList<>();
+
+      for (final Point point : points) {
+         if (bounds.contains(point.getXYZ(tree, xyz))) {
+            inside.add(point);
+         }
+      }
+
+      return inside;
+   }
+
+   /**
+    * Adds the points of the given cell and all of its descendants to the given list.
+    */
+   private void readSubtree(final TreeStructure tree, final TreeServerConnection connection, final TreeCell cell, final List<Point> points) {
+      final Deque<TreeCell> stack = new ArrayDeque<>();
+      stack.push(cell);
+
+      while (!stack.isEmpty()) {
+         for (final String child : TreeDiff.read(connection, stack.pop(), points)) {
+            stack.push(tree.getCell(child));
+         }
+      }
+   }
+
+   /**
+    * Loads the given cell (if needed), adds its points to the given list and returns its child paths.
+    */
+   private static String[] read(final TreeServerConnection connection, final TreeCell cell, final List<Point> points) {
+      final boolean isLoaded = TreeQuery.load(connection, cell);
+
+      if (!cell.isComplete()) {
+         return new String[0];
+      }
+
+      final String[] children = cell.hasChildren() ? cell.getChildList() : new String[0];
+
+      cell.points().forEach((cursor) -> points.add(cursor.toPoint()));
+
+      if (isLoaded) {
+         connection.getMemoryManager().removed(cell);
+         cell.clearData();
+      }
+
+      return children;
+   }
+
+   private static long getKey(final long x, final long y, final long z) {
+      // 21 bits per axis; buckets that wrap around only add candidates as distances are still checked
+      return ((x & 0x1FFFFFL) << 42) | ((y & 0x1FFFFFL) << 21) | (z & 0x1FFFFFL);
+   }
+}
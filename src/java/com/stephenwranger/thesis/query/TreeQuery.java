@@ -0,0 +1,248 @@
+package com.stephenwranger.thesis.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.stephenwranger.thesis.data.AttributePredicate;
+import com.stephenwranger.thesis.data.Point;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Streams the points of an exported tree that are inside a {@link QueryRegion} without any rendering. Cells are read
+ * through a {@link TreeServerConnection}; subtrees whose cell bounds are outside the region are never loaded and
+ * points of cells fully inside the region aren't tested individually. Refinement can be limited by a maximum depth
+ * and/or a target density in points per cubic meter (the sum of the densities of a cell and all of its ancestors, as
+ * every level adds points to the same space).
+ * <p>
+ * Cells are loaded lazily as the stream is consumed (all children of a cell are requested together) and any cell that
+ * had to be loaded for the query is cleared again once its points were read so a query can cover more data than fits
+ * in memory. A cell that doesn't load within {@link #LOAD_TIMEOUT_MILLIS} fails the query with a RuntimeException
+ * rather than silently leaving its subtree out of the results.
+ * <p>
+ * Attribute predicates are pushed down to the stored {@link com.stephenwranger.thesis.data.CellSummary cell summaries}:
+ * subtrees whose points can't pass are never loaded, cells whose points all pass aren't tested and only the points of
+ * cells that straddle a predicate are tested individually.
+ */
+public class TreeQuery {
+   public static final long               LOAD_TIMEOUT_MILLIS = Long.getLong("queryLoadTimeoutMillis", 30000L);
+
+   private final TreeStructure            tree;
+   private final TreeServerConnection     connection;
+   private final QueryRegion              region;
+   private final List<AttributePredicate> predicates          = new ArrayList<>();
+
+   private int                            maxDepth            = -1;
+   private double                         targetDensity       = -1;
+
+   public TreeQuery(final TreeStructure tree, final TreeServerConnection connection, final QueryRegion region) {
+      this.tree = tree;
+      this.connection = connection;
+      this.region = region;
+   }
+
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   /**
+    * Sets the depth of the deepest cells read; the root is at depth zero. Less than zero for no limit.
+    *
+    * @param maxDepth
+    * @return this query
+    */
+   public TreeQuery setMaxDepth(final int maxDepth) {
+      this.maxDepth = maxDepth;
+
+      return this;
+   }
+
+   public double getTargetDensity() {
+      return this.targetDensity;
+   }
+
+   /**
+    * Sets the density (points per cubic meter) at which refinement stops; zero or less for no limit.
+    *
+    * @param targetDensity
+    * @return this query
+    */
+   public TreeQuery setTargetDensity(final double targetDensity) {
+      this.targetDensity = targetDensity;
+
+      return this;
+   }
+
+   public List<AttributePredicate> getPredicates() {
+      return Collections.unmodifiableList(this.predicates);
+   }
+
+   /**
+    * Adds a predicate all returned points have to pass.
+    *
+    * @param predicate
+    * @return this query
+    */
+   public TreeQuery addPredicate(final AttributePredicate predicate) {
+      this.predicates.add(predicate);
+
+      return this;
+   }
+
+   /**
+    * Returns a sequential stream of all points inside the region; cells are loaded as the stream is consumed.
+    *
+    * @return
+    */
+   public Stream<Point> stream() {
+      final Spliterator<List<Point>> cells = Spliterators.spliteratorUnknownSize(new CellIterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+
+      return StreamSupport.stream(cells, false).flatMap(List::stream);
+   }
+
+   /**
+    * Loads the given cell (if needed) and returns its points inside the region.
+    */
+   private List<Point> read(final QueryCell entry, final Deque<QueryCell> stack) {
+      final TreeCell cell = entry.cell;
+      final boolean isLoaded = TreeQuery.load(this.connection, cell);
+
+      if (!cell.isComplete()) {
+         return Collections.emptyList();
+      }
+
+      final List<Point> points = new ArrayList<>();
+      final boolean isFiltered = !this.predicates.isEmpty() && (AttributePredicate.classify(this.predicates, this.connection.getSummary(cell), false) != QueryRegion.INSIDE);
+
+      cell.points().forEach((cursor) -> {
+         if ((entry.isInside || this.region.contains(cursor.getX(), cursor.getY(), cursor.getZ())) && (!isFiltered || AttributePredicate.test(this.predicates, cursor))) {
+            points.add(cursor.toPoint());
+         }
+      });
+
+      final double density = entry.density + (cell.getPointCount() / cell.getVolume());
+      final boolean isRefined = ((this.maxDepth < 0) || (cell.path.length() < this.maxDepth)) && ((this.targetDensity <= 0) || (density < this.targetDensity));
+
+      if (isRefined && cell.hasChildren()) {
+         final String[] children = cell.getChildList();
+         final List<TreeCell> requests = new ArrayList<>();
+
+         // reversed so the first child is popped first
+         for (int i = children.length - 1; i >= 0; i--) {
+            final TreeCell child = this.tree.getCell(children[i]);
+            final int classification = entry.isInside ? QueryRegion.INSIDE : this.region.classify(child.getCorners());
+
+            if ((classification != QueryRegion.OUTSIDE) && !this.isExcluded(child)) {
+               stack.push(new QueryCell(child, classification == QueryRegion.INSIDE, density));
+               requests.add(child);
+            }
+         }
+
+         this.connection.request(requests);
+      }
+
+      if (isLoaded) {
+         this.connection.getMemoryManager().removed(cell);
+         cell.clearData();
+      }
+
+      return points;
+   }
+
+   /**
+    * Returns true if the given cell's stored summary shows that none of the points in its subtree pass the predicates.
+    */
+   private boolean isExcluded(final TreeCell cell) {
+      return !this.predicates.isEmpty() && (AttributePredicate.classify(this.predicates, this.connection.getSummary(cell), true) == QueryRegion.OUTSIDE);
+   }
+
+   /**
+    * Waits for the given cell to complete, requesting it first if needed. Returns early (with the cell incomplete) if
+    * the calling thread is interrupted.
+    *
+    * @return true if the cell was not loaded before (and should be cleared once read)
+    * @throws RuntimeException
+    *            if the cell doesn't complete within {@link #LOAD_TIMEOUT_MILLIS}
+    */
+   static boolean load(final TreeServerConnection connection, final TreeCell cell) {
+      if (cell.isComplete()) {
+         return false;
+      }
+
+      if (cell.isEmpty()) {
+         connection.request(cell);
+      }
+
+      try {
+         if (!cell.awaitComplete(TreeQuery.LOAD_TIMEOUT_MILLIS)) {
+            throw new RuntimeException("Timed out after " + TreeQuery.LOAD_TIMEOUT_MILLIS + " ms loading cell '" + cell.path + "'");
+         }
+      } catch (final InterruptedException e) {
+         e.printStackTrace();
+         Thread.currentThread().interrupt();
+      }
+
+      return true;
+   }
+
+   private class CellIterator implements Iterator<List<Point>> {
+      private final Deque<QueryCell> stack = new ArrayDeque<>();
+      private List<Point>            next  = null;
+
+      public CellIterator() {
+         final TreeCell root = TreeQuery.this.tree.getCell("");
+         final int classification = TreeQuery.this.region.classify(root.getCorners());
+
+         if ((classification != QueryRegion.OUTSIDE) && !TreeQuery.this.isExcluded(root)) {
+            this.stack.push(new QueryCell(root, classification == QueryRegion.INSIDE, 0));
+         }
+      }
+
+      @Override
+      public boolean hasNext() {
+         while ((this.next == null) && !this.stack.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            final List<Point> points = TreeQuery.this.read(this.stack.pop(), this.stack);
+
+            if (!points.isEmpty()) {
+               this.next = points;
+            }
+         }
+
+         return this.next != null;
+      }
+
+      @Override
+      public List<Point> next() {
+         if (!this.hasNext()) {
+            throw new NoSuchElementException();
+         }
+
+         final List<Point> points = this.next;
+         this.next = null;
+
+         return points;
+      }
+   }
+
+   private static class QueryCell {
+      private final TreeCell cell;
+      private final boolean  isInside;
+      private final double   density;
+
+      public QueryCell(final TreeCell cell, final boolean isInside, final double density) {
+         this.cell = cell;
+         this.isInside = isInside;
+         this.density = density;
+      }
+   }
+}
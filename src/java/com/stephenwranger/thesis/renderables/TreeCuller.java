@@ -0,0 +1,510 @@
+package com.stephenwranger.thesis.renderables;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.stephenwranger.graphics.Scene;
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.graphics.math.Vector3d;
+import com.stephenwranger.graphics.math.intersection.Plane;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Frustum culling and level of detail traversal for a {@link TreeStructure}. Each cell's bounding sphere is cached
+ * relative to the scene origin, planes that a cell is fully inside of are passed down as a bit mask so its descendants
+ * skip them, and the previous frame's result is kept when neither the camera nor the set of loaded cells has changed.
+ * Once every visited cell has been seen once, a traversal allocates nothing.
+ * <p>
+ * If a point budget is set, the fixed level of detail is ignored and cells are instead refined in order of their
+ * projected size (largest first) until the budget is used up, bounding the number of points drawn regardless of view.
+ */
+public class TreeCuller {
+   /**
+    * Decides whether a visible, uploaded cell should be rendered and whether its children should be visited.
+    */
+   public interface LevelOfDetail {
+      /**
+       * Returns any combination of {@link TreeCuller#RENDER} and {@link TreeCuller#SPLIT}.
+       *
+       * @param cell
+       * @param distance
+       *           the distance from the camera to the center of the cell's bounding sphere
+       * @param screenRadius
+       *           the approximate radius of the cell's bounding sphere on screen in pixels
+       * @return
+       */
+      public int check(final TreeCell cell, final double distance, final double screenRadius);
+   }
+
+   public static final int                 RENDER             = 1;
+   public static final int                 SPLIT              = 2;
+
+   private static final Comparator<CellState> PRIORITY_COMPARATOR = new Comparator<CellState>() {
+      @Override
+      public int compare(final CellState o1, final CellState o2) {
+         return Double.compare(o2.priority, o1.priority);
+      }
+   };
+
+   private final TreeStructure             tree;
+   private final Map<TreeCell, CellState>  states             = new HashMap<>();
+   private final List<TreeCell>            visible            = new ArrayList<>();
+   private final List<TreeCell>            pending            = new ArrayList<>();
+   private final List<TreeCell>            requested          = new ArrayList<>();
+   private final List<TreeCell>            outside            = new ArrayList<>();
+   private final List<TreeCell>            traversed          = new ArrayList<>();
+   private final PriorityQueue<CellState>  queue              = new PriorityQueue<>(1024, TreeCuller.PRIORITY_COMPARATOR);
+
+   // plane i is stored as (a, b, c, d) with unit (a, b, c) and distance > 0 inside the frustum
+   private double[]                        planes             = new double[0];
+   private int                             planeCount         = 0;
+   private int                             insideMask         = 0;
+
+   private final Tuple3d                   origin             = new Tuple3d();
+   private int                             originVersion      = 0;
+   private int                             traversalCount     = 0;
+   private final double[]                  previousModelView  = new double[16];
+   private final double[]                  previousProjection = new double[16];
+   private long                            previousLoadCount  = -1;
+   private boolean                         isValid            = false;
+
+   private final Tuple3d                   camera             = new Tuple3d();
+   private double                          projectionScale    = 1.0;
+   private long                            pointBudget        = 0;
+   private long                            budgetPointCount   = 0;
+
+   public TreeCuller(final TreeStructure tree) {
+      this.tree = tree;
+   }
+
+   /**
+    * Traverses the tree from the root for the scene's current camera unless the camera, origin, and load count are
+    * unchanged since the last traversal and nothing was left pending for upload.
+    *
+    * @param scene
+    * @param levelOfDetail
+    * @param loadCount
+    *           a value that changes whenever cells finish loading (eg, the connection's completed count)
+    * @return true if the tree was traversed; false if the previous results are still current
+    */
+   public boolean cull(final Scene scene, final LevelOfDetail levelOfDetail, final long loadCount) {
+      final double[] projection = scene.getProjectionMatrix();
+
+      if (!this.update(scene.getOrigin(), scene.getModelViewMatrix(), projection, loadCount)) {
+         return false;
+      }
+
+      this.setPlanes(scene.getFrustumPlanes());
+      this.traverse(scene.getCameraPosition(), projection, scene.getHeight(), levelOfDetail);
+
+      return true;
+   }
+
+   /**
+    * Same as {@link #cull(Scene, LevelOfDetail, long)} for a camera that is not backed by a {@link Scene} (eg, the
+    * {@link TreeSimulator}).
+    *
+    * @param origin
+    *           the origin the model view matrix and frustum planes are relative to
+    * @param modelView
+    *           column major model view matrix
+    * @param projection
+    *           column major projection matrix
+    * @param frustum
+    *           frustum planes relative to the origin as (a, b, c, d) quadruples with ax + by + cz + d &gt;= 0 inside
+    * @param cameraPosition
+    *           absolute camera position
+    * @param height
+    *           viewport height in pixels
+    * @param levelOfDetail
+    * @param loadCount
+    * @return true if the tree was traversed; false if the previous results are still current
+    */
+   public boolean cull(final Tuple3d origin, final double[] modelView, final double[] projection, final double[] frustum, final Tuple3d cameraPosition, final int height, final LevelOfDetail levelOfDetail,
+         final long loadCount) {
+      if (!this.update(origin, modelView, projection, loadCount)) {
+         return false;
+      }
+
+      this.setPlanes(frustum);
+      this.traverse(cameraPosition, projection, height, levelOfDetail);
+
+      return true;
+   }
+
+   /**
+    * Returns the number of points selected by the last point budget traversal.
+    *
+    * @return
+    */
+   public long getBudgetPointCount() {
+      return this.budgetPointCount;
+   }
+
+   public long getPointBudget() {
+      return this.pointBudget;
+   }
+
+   /**
+    * Sets the maximum number of points to select per frame; zero or less uses the fixed level of detail instead.
+    *
+    * @param pointBudget
+    */
+   public void setPointBudget(final long pointBudget) {
+      this.pointBudget = pointBudget;
+      this.invalidate();
+   }
+
+   /**
+    * Forces the next call to {@link #cull(Scene, LevelOfDetail, long)} to traverse the tree (eg, after the level of
+    * detail settings changed).
+    */
+   public void invalidate() {
+      this.isValid = false;
+   }
+
+   /**
+    * Returns the cells that should be rendered this frame.
+    *
+    * @return
+    */
+   public List<TreeCell> getVisible() {
+      return this.visible;
+   }
+
+   /**
+    * Returns the loaded cells inside the frustum that have not been uploaded yet.
+    *
+    * @return
+    */
+   public List<TreeCell> getPending() {
+      return this.pending;
+   }
+
+   /**
+    * Returns the cells inside the frustum that are not loaded yet.
+    *
+    * @return
+    */
+   public List<TreeCell> getRequested() {
+      return this.requested;
+   }
+
+   /**
+    * Returns the cells found outside of the frustum that still hold data (or gpu buffer space) which can be released.
+    *
+    * @return
+    */
+   public List<TreeCell> getOutside() {
+      return this.outside;
+   }
+
+   /**
+    * Returns every loaded cell inside the frustum visited by the last traversal; this includes the visible and pending
+    * cells as well as any parents that were only split.
+    *
+    * @return
+    */
+   public List<TreeCell> getTraversed() {
+      return this.traversed;
+   }
+
+   /**
+    * Stores the given camera state and returns true if it (or the load count) changed since the last traversal.
+    */
+   private boolean update(final Tuple3d sceneOrigin, final double[] modelView, final double[] projection, final long loadCount) {
+      if (this.isValid && (loadCount == this.previousLoadCount) && this.pending.isEmpty() && TreeCuller.isEqual(modelView, this.previousModelView) && TreeCuller.isEqual(projection, this.previousProjection)
+            && (sceneOrigin.x == this.origin.x) && (sceneOrigin.y == this.origin.y) && (sceneOrigin.z == this.origin.z)) {
+         return false;
+      }
+
+      if ((sceneOrigin.x != this.origin.x) || (sceneOrigin.y != this.origin.y) || (sceneOrigin.z != this.origin.z)) {
+         this.origin.set(sceneOrigin);
+         this.originVersion++;
+      }
+
+      System.arraycopy(modelView, 0, this.previousModelView, 0, 16);
+      System.arraycopy(projection, 0, this.previousProjection, 0, 16);
+      this.previousLoadCount = loadCount;
+      this.isValid = true;
+
+      return true;
+   }
+
+   private void traverse(final Tuple3d cameraPosition, final double[] projection, final int height, final LevelOfDetail levelOfDetail) {
+      this.visible.clear();
+      this.pending.clear();
+      this.requested.clear();
+      this.outside.clear();
+      this.traversed.clear();
+      this.traversalCount++;
+
+      this.camera.set(cameraPosition.x - this.origin.x, cameraPosition.y - this.origin.y, cameraPosition.z - this.origin.z);
+      // projection[5] is cot(fovy / 2); scales an angular size to half the viewport height
+      this.projectionScale = (projection[5] * height) / 2.0;
+
+      if (this.pointBudget > 0) {
+         this.cullBudget(this.tree.getCell(null, 0));
+      } else {
+         this.cull(this.tree.getCell(null, 0), 0, levelOfDetail);
+      }
+
+      // cells that were cleared and not reached again would otherwise keep their state for as long as the tree exists
+      this.states.values().removeIf((state) -> (state.traversal != this.traversalCount) && state.cell.isEmpty());
+   }
+
+   private void cull(final TreeCell cell, final int mask, final LevelOfDetail levelOfDetail) {
+      final CellState state = this.getState(cell);
+      final int childMask = this.testFrustum(state, mask);
+
+      if (childMask == -1) {
+         return;
+      }
+
+      if (cell.isComplete()) {
+         this.traversed.add(cell);
+
+         if (cell.getPointCount() == 0) {
+            // nothing to upload or draw (eg, every point failed a predicate) but the subtree may still hold points
+            for (final TreeCell child : this.getChildren(state, cell)) {
+               this.cull(child, childMask, levelOfDetail);
+            }
+         } else if (cell.getSegmentPoolIndex() == -1) {
+            this.pending.add(cell);
+         } else {
+            final double distance = this.getDistance(state);
+            final double screenRadius = (distance > 0) ? (state.radius / distance) * this.projectionScale : Double.MAX_VALUE;
+            final int result = levelOfDetail.check(cell, distance, screenRadius);
+
+            if ((result & TreeCuller.RENDER) != 0) {
+               this.visible.add(cell);
+            }
+
+            if ((result & TreeCuller.SPLIT) != 0) {
+               for (final TreeCell child : this.getChildren(state, cell)) {
+                  this.cull(child, childMask, levelOfDetail);
+               }
+            }
+         }
+      } else if (cell.isEmpty() || cell.isPending()) {
+         this.requested.add(cell);
+      }
+   }
+
+   private void cullBudget(final TreeCell root) {
+      this.queue.clear();
+      this.budgetPointCount = 0;
+      this.offer(root, 0);
+
+      while (!this.queue.isEmpty()) {
+         final CellState state = this.queue.poll();
+         final TreeCell cell = state.cell;
+
+         if (cell.isComplete()) {
+            this.traversed.add(cell);
+
+            if (cell.getPointCount() == 0) {
+               for (final TreeCell child : this.getChildren(state, cell)) {
+                  this.offer(child, state.mask);
+               }
+            } else if (cell.getSegmentPoolIndex() == -1) {
+               this.pending.add(cell);
+            } else {
+               final int pointCount = cell.getPointCount();
+
+               // the parents of everything left in the queue are already selected so stopping here leaves no holes
+               if ((this.budgetPointCount + pointCount) > this.pointBudget) {
+                  break;
+               }
+
+               this.budgetPointCount += pointCount;
+               this.visible.add(cell);
+
+               for (final TreeCell child : this.getChildren(state, cell)) {
+                  this.offer(child, state.mask);
+               }
+            }
+         } else if (cell.isEmpty() || cell.isPending()) {
+            this.requested.add(cell);
+         }
+      }
+
+      this.queue.clear();
+   }
+
+   private void offer(final TreeCell cell, final int parentMask) {
+      final CellState state = this.getState(cell);
+      final int mask = this.testFrustum(state, parentMask);
+
+      if (mask != -1) {
+         final double distance = this.getDistance(state) - state.radius;
+
+         // projected radius in pixels; anything the camera is inside of goes first
+         state.priority = (distance <= 0) ? Double.MAX_VALUE : (state.radius / distance) * this.projectionScale;
+         state.mask = mask;
+         this.queue.offer(state);
+      }
+   }
+
+   private double getDistance(final CellState state) {
+      final double dx = state.x - this.camera.x;
+      final double dy = state.y - this.camera.y;
+      final double dz = state.z - this.camera.z;
+
+      return Math.sqrt((dx * dx) + (dy * dy) + (dz * dz));
+   }
+
+   /**
+    * Tests the given cell's bounding sphere against every plane not already set in the given mask.
+    *
+    * @param state
+    * @param mask
+    * @return the mask of planes the cell is fully inside of or -1 if it is outside (and has been added to the outside
+    *         list if it holds any data)
+    */
+   private int testFrustum(final CellState state, final int mask) {
+      if (state.originVersion != this.originVersion) {
+         final Tuple3d center = state.cell.getBoundingVolume().getCenter();
+         state.x = center.x - this.origin.x;
+         state.y = center.y - this.origin.y;
+         state.z = center.z - this.origin.z;
+         state.originVersion = this.originVersion;
+      }
+
+      int childMask = mask;
+
+      if (mask != this.insideMask) {
+         for (int i = 0; i < this.planeCount; i++) {
+            final int bit = 1 << i;
+
+            if ((mask & bit) == 0) {
+               final int offset = i * 4;
+               final double distance = (this.planes[offset] * state.x) + (this.planes[offset + 1] * state.y) + (this.planes[offset + 2] * state.z) + this.planes[offset + 3];
+
+               if (distance < -state.radius) {
+                  if (!state.cell.isEmpty() || (state.cell.getSegmentPoolIndex() != -1)) {
+                     this.outside.add(state.cell);
+                  }
+
+                  return -1;
+               } else if (distance >= state.radius) {
+                  childMask |= bit;
+               }
+            }
+         }
+      }
+
+      return childMask;
+   }
+
+   private TreeCell[] getChildren(final CellState state, final TreeCell cell) {
+      // a cell that was cleared and loaded again may come back with another child list (eg, other predicates)
+      final int generation = cell.getGeneration();
+
+      if ((state.children == null) || (state.generation != generation)) {
+         state.generation = generation;
+
+         final String[] childPaths = cell.getChildList();
+         state.children = new TreeCell[childPaths.length];
+
+         for (int i = 0; i < childPaths.length; i++) {
+            state.children[i] = this.tree.getCell(childPaths[i]);
+         }
+      }
+
+      return state.children;
+   }
+
+   private CellState getState(final TreeCell cell) {
+      CellState state = this.states.get(cell);
+
+      if (state == null) {
+         state = new CellState(cell);
+         this.states.put(cell, state);
+      }
+
+      state.traversal = this.traversalCount;
+
+      return state;
+   }
+
+   private void setPlanes(final Plane[] frustum) {
+      if (this.planes.length != (frustum.length * 4)) {
+         this.planes = new double[frustum.length * 4];
+      }
+
+      this.planeCount = Math.min(frustum.length, 31);
+      this.insideMask = (1 << this.planeCount) - 1;
+
+      final Tuple3d zero = new Tuple3d();
+
+      for (int i = 0; i < this.planeCount; i++) {
+         final Vector3d normal = frustum[i].getNormal();
+         final double length = normal.length();
+         final double distance = frustum[i].distanceToPoint(zero);
+
+         // a point one unit along the normal from the plane determines which side is considered inside
+         final Tuple3d test = new Tuple3d(normal);
+         test.scale((1.0 - distance) / (length * length));
+         final double sign = frustum[i].isInside(test) ? 1.0 : -1.0;
+
+         final int offset = i * 4;
+         this.planes[offset] = (sign * normal.x) / length;
+         this.planes[offset + 1] = (sign * normal.y) / length;
+         this.planes[offset + 2] = (sign * normal.z) / length;
+         this.planes[offset + 3] = (sign * distance) / length;
+      }
+   }
+
+   private void setPlanes(final double[] frustum) {
+      if (this.planes.length != frustum.length) {
+         this.planes = new double[frustum.length];
+      }
+
+      this.planeCount = Math.min(frustum.length / 4, 31);
+      this.insideMask = (1 << this.planeCount) - 1;
+
+      for (int i = 0; i < this.planeCount; i++) {
+         final int offset = i * 4;
+         final double length = Math.sqrt((frustum[offset] * frustum[offset]) + (frustum[offset + 1] * frustum[offset + 1]) + (frustum[offset + 2] * frustum[offset + 2]));
+
+         for (int j = 0; j < 4; j++) {
+            this.planes[offset + j] = frustum[offset + j] / length;
+         }
+      }
+   }
+
+   private static boolean isEqual(final double[] a, final double[] b) {
+      for (int i = 0; i < 16; i++) {
+         if (a[i] != b[i]) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   private static class CellState {
+      private final TreeCell cell;
+      private final double   radius;
+      private double         x, y, z;
+      private int            originVersion = -1;
+      private TreeCell[]     children      = null;
+      private int            generation    = 0;
+      private int            traversal     = 0;
+
+      // only used by the point budget traversal
+      private double         priority      = 0;
+      private int            mask          = 0;
+
+      public CellState(final TreeCell cell) {
+         this.cell = cell;
+         this.radius = cell.getBoundingRadius();
+      }
+   }
+}
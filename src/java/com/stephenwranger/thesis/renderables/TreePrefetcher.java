@@ -0,0 +1,112 @@
+package com.stephenwranger.thesis.renderables;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.stephenwranger.graphics.Scene;
+import com.stephenwranger.graphics.bounds.BoundingVolume;
+import com.stephenwranger.graphics.bounds.BoundsUtils;
+import com.stephenwranger.graphics.bounds.BoundsUtils.FrustumResult;
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.graphics.math.Vector3d;
+import com.stephenwranger.graphics.math.intersection.Plane;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeStructure;
+import com.stephenwranger.thesis.geospatial.SphericalNavigator;
+
+/**
+ * Extrapolates the current camera frustum along the {@link SphericalNavigator}'s velocity and queues any unloaded cells
+ * inside it as low priority prefetches so they are (hopefully) resident by the time they become visible.
+ */
+public class TreePrefetcher {
+   public static final double               LOOKAHEAD_SECONDS  = Double.parseDouble(System.getProperty("prefetchLookaheadSeconds", "0.5"));
+   public static final int                  MAX_PREFETCH_CELLS = Integer.getInteger("prefetchMaxCells", 64);
+
+   // ignore drift smaller than this (in meters) over the lookahead time
+   private static final double              MIN_DISPLACEMENT   = 1.0;
+   // cells that project smaller than this radius (in pixels) are not worth prefetching children for
+   private static final double              MIN_SCREEN_RADIUS  = 500.0;
+
+   private final TreeStructure              tree;
+   private final TreeServerConnection       connection;
+   private final SphericalNavigator         navigator;
+   private final List<TreeCell>             toPrefetch         = new ArrayList<>();
+
+   public TreePrefetcher(final TreeStructure tree, final TreeServerConnection connection, final SphericalNavigator navigator) {
+      this.tree = tree;
+      this.connection = connection;
+      this.navigator = navigator;
+   }
+
+   /**
+    * Queues prefetches for the frustum predicted {@link #LOOKAHEAD_SECONDS} ahead of the current camera.
+    *
+    * @param scene
+    * @param levelOfDetail
+    *           the level of detail multiplier used by the renderer
+    */
+   public void prefetch(final Scene scene, final double levelOfDetail) {
+      final Vector3d displacement = this.navigator.getCameraVelocity();
+      displacement.scale(TreePrefetcher.LOOKAHEAD_SECONDS);
+
+      if (displacement.length() < TreePrefetcher.MIN_DISPLACEMENT) {
+         return;
+      }
+
+      final Plane[] frustum = TreePrefetcher.translate(scene.getFrustumPlanes(), displacement);
+      final Tuple3d camera = new Tuple3d(scene.getCameraPosition());
+      camera.add(displacement);
+
+      this.toPrefetch.clear();
+      this.collect(scene, frustum, camera, levelOfDetail, this.tree.getCell(null, 0));
+
+      if (!this.toPrefetch.isEmpty()) {
+         this.connection.prefetch(this.toPrefetch);
+      }
+   }
+
+   private void collect(final Scene scene, final Plane[] frustum, final Tuple3d camera, final double levelOfDetail, final TreeCell cell) {
+      if (this.toPrefetch.size() >= TreePrefetcher.MAX_PREFETCH_CELLS) {
+         return;
+      }
+
+      final BoundingVolume bounds = cell.getBoundingVolume();
+
+      if (BoundsUtils.testFrustum(frustum, bounds.offset(scene.getOrigin())) == FrustumResult.OUT) {
+         return;
+      }
+
+      if (cell.isEmpty()) {
+         this.toPrefetch.add(cell);
+      } else if (cell.isComplete() && (TreePrefetcher.getScreenRadius(scene, cell, camera) * levelOfDetail >= TreePrefetcher.MIN_SCREEN_RADIUS)) {
+         for (final String childPath : cell.getChildList()) {
+            this.collect(scene, frustum, camera, levelOfDetail, this.tree.getCell(childPath));
+         }
+      }
+   }
+
+   private static double getScreenRadius(final Scene scene, final TreeCell cell, final Tuple3d camera) {
+      final double radius = cell.getBoundingRadius();
+      final double distance = Math.max(camera.distance(cell.getBoundingVolume().getCenter()) - radius, 1e-6);
+      final double pixelsPerRadian = (scene.getHeight() / 2.0) / Math.tan(scene.getFOV() / 2.0);
+
+      return (radius / distance) * pixelsPerRadian;
+   }
+
+   private static Plane[] translate(final Plane[] planes, final Vector3d displacement) {
+      final Plane[] translated = new Plane[planes.length];
+      final Tuple3d zero = new Tuple3d();
+
+      for (int i = 0; i < planes.length; i++) {
+         final Vector3d normal = planes[i].getNormal();
+         final Tuple3d pointOnPlane = new Tuple3d(normal);
+         pointOnPlane.scale(-planes[i].distanceToPoint(zero));
+         pointOnPlane.add(displacement);
+
+         translated[i] = new Plane(pointOnPlane, normal);
+      }
+
+      return translated;
+   }
+}
@@ -1,16 +1,13 @@
 package com.stephenwranger.thesis.renderables;
 
-import java.io.File;
-import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.swing.JLabel;
 import javax.swing.JProgressBar;
@@ -23,14 +20,11 @@ import com.jogamp.opengl.glu.GLU;
 import com.stephenwranger.graphics.Scene;
 import com.stephenwranger.graphics.bounds.BoundingBox;
 import com.stephenwranger.graphics.bounds.BoundingVolume;
-import com.stephenwranger.graphics.bounds.BoundsUtils;
-import com.stephenwranger.graphics.bounds.BoundsUtils.FrustumResult;
 import com.stephenwranger.graphics.math.CameraUtils;
 import com.stephenwranger.graphics.math.Matrix4d;
 import com.stephenwranger.graphics.math.Quat4d;
 import com.stephenwranger.graphics.math.Tuple3d;
 import com.stephenwranger.graphics.math.Vector3d;
-import com.stephenwranger.graphics.math.intersection.Plane;
 import com.stephenwranger.graphics.renderables.Renderable;
 import com.stephenwranger.graphics.utils.Timings;
 import com.stephenwranger.graphics.utils.buffers.AttributeRegion;
@@ -44,24 +38,30 @@ import com.stephenwranger.graphics.utils.shader.FloatUniform;
 import com.stephenwranger.graphics.utils.shader.ShaderKernel;
 import com.stephenwranger.graphics.utils.shader.ShaderProgram;
 import com.stephenwranger.graphics.utils.shader.ShaderStage;
+import com.stephenwranger.thesis.data.CellMemoryManager;
 import com.stephenwranger.thesis.data.DataAttributes;
 import com.stephenwranger.thesis.data.TreeCell;
 import com.stephenwranger.thesis.data.TreeServerConnection;
-import com.stephenwranger.thesis.data.TreeServerProcessor;
 import com.stephenwranger.thesis.data.TreeServerProcessor.ConnectionType;
 import com.stephenwranger.thesis.data.TreeStructure;
-import com.stephenwranger.thesis.icosatree.Icosatree;
-import com.stephenwranger.thesis.octree.Octree;
+import com.stephenwranger.thesis.geospatial.SphericalNavigator;
+import com.stephenwranger.thesis.query.RayPick;
 import com.stephenwranger.thesis.selection.Volume;
 
 public class TreeRenderable extends Renderable {
    private static final long                 TEN_MILLISECONDS_IN_NANOSECONDS = 10L * 1000L * 1000L;
    private static final double               MIN_SCREEN_RENDER_AREA          = Math.PI * 500.0 * 500.0;                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                               // 50 px radius circle
    private static final double               MIN_SCREEN_SPLIT_AREA           = Math.PI * 2000.0 * 2000.0;                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                         // 200 px radius circle
+   // the thresholds above were tuned for the projected half span of a cell; over all view directions that averages
+   // 3/4 of a cube's side while its bounding sphere radius is sqrt(3)/2 of its side
+   private static final double               HALF_SPAN_PER_RADIUS            = Math.sqrt(3.0) / 2.0;
+
+   /** size of a single vertex in the gpu buffers (see the buffer regions created in the constructor) */
+   public static final int                   BYTES_PER_VERTEX                = DataAttributes.GPU_SIZE;
 
    private static final String               FRUSTUM_CULLING                 = "Frustum Culling";
-   private static final String               TEST_FRUSTUM                    = "Frustum Culling.Cell";
-   private static final String               TEST_CHILDREN                   = "Frustum Culling.Children";
+   private static final String               DELETE_OUTSIDE                  = "Frustum Culling.Delete";
+   private static final String               PREFETCH                        = "Prefetch";
    private static final String               UPLOAD_CELLS                    = "Upload Cells";
    private static final String               BUILD_BOUNDS                    = "Building Bounds";
    private static final String               PENDING_UPLOADS                 = "Pending Upload";
@@ -80,27 +80,34 @@ public class TreeRenderable extends Renderable {
    private final TreeStructure               tree;
    private final TreeServerConnection        connection;
    private final SegmentedVertexBufferPool   vboPool;
-   private final Set<TreeCell>               segments                        = Collections.synchronizedSet(new HashSet<>());
-   private final Set<TreeCell>               pending                         = new TreeSet<>(TreeRenderable.DEPTH_COMPARATOR);
+   private final TreeCuller                  culler;
+   private final TreeResidency               residency;
+   private final List<TreeCell>              segments                        = Collections.synchronizedList(new ArrayList<>());
+   private final List<TreeCell>              pending                         = new ArrayList<>();
    private final Timings                     timings                         = new Timings(100);
-   private final Tuple3d                     currentOrigin                   = new Tuple3d(0, 0, 0);
+   private final List<TreeCell>              drawList                        = new ArrayList<>(1);
 
    private BoundingBox                       bounds                          = null;
+   private TreePrefetcher                    prefetcher                      = null;
    private double                            levelOfDetail                   = 1.0;
    private float                             pointSize                       = 1f;
 
    public TreeRenderable(final String basePath, final ConnectionType connectionType) {
       super(new Tuple3d(), new Quat4d());
 
-      this.tree = this.initializeTree(basePath, connectionType);
+      this.tree = TreeServerConnection.initializeTree(basePath, connectionType);
       this.connection = new TreeServerConnection(this.tree, basePath, connectionType);
+      this.culler = new TreeCuller(this.tree);
 
-      final BufferRegion[] bufferRegions = new BufferRegion[] { new VertexRegion(3, DataType.FLOAT),         // XYZ
-            new ColorRegion(3, DataType.FLOAT),          // RGB
-            new AttributeRegion(10, 1, DataType.FLOAT),  // Altitude
-            new AttributeRegion(11, 1, DataType.FLOAT)   // Intensity
+      // must match DataAttributes.loadBuffer
+      final BufferRegion[] bufferRegions = new BufferRegion[] { new VertexRegion(3, DataType.FLOAT),              // XYZ
+            new ColorRegion(4, DataType.UNSIGNED_BYTE),       // RGBA
+            new AttributeRegion(10, 1, DataType.FLOAT),       // Altitude
+            new AttributeRegion(11, 1, DataType.FLOAT)        // Intensity
       };
-      this.vboPool = new SegmentedVertexBufferPool(this.tree.maxPoints == -1 ? 50000 : this.tree.maxPoints, 100, GL.GL_POINTS, GL.GL_DYNAMIC_DRAW, bufferRegions);
+      final int segmentSize = this.tree.maxPoints == -1 ? 50000 : this.tree.maxPoints;
+      this.vboPool = new SegmentedVertexBufferPool(segmentSize, 100, GL.GL_POINTS, GL.GL_DYNAMIC_DRAW, bufferRegions);
+      this.residency = new TreeResidency((long) segmentSize * TreeRenderable.BYTES_PER_VERTEX);
    }
 
    @Override
@@ -127,6 +134,15 @@ public class TreeRenderable extends Renderable {
       return nearFar;
    }
 
+   /**
+    * Returns the maximum number of points rendered per frame; zero or less if the fixed level of detail is used.
+    *
+    * @return
+    */
+   public long getPointBudget() {
+      return this.culler.getPointBudget();
+   }
+
    public float getPointSize() {
       return this.pointSize;
    }
@@ -145,80 +161,148 @@ public class TreeRenderable extends Renderable {
       return this.segments.size();
    }
 
+   /**
+    * Returns the vertex buffer residency tracker (gpu memory budget and upload/eviction counts).
+    *
+    * @return
+    */
+   public TreeResidency getResidency() {
+      return this.residency;
+   }
+
+   /**
+    * Returns the manager that keeps the data of loaded cells under the heap budget.
+    *
+    * @return
+    */
+   public CellMemoryManager getMemoryManager() {
+      return this.connection.getMemoryManager();
+   }
+
    public Timings getTimings() {
       return this.timings;
    }
    
-   private void getPoints(final TreeCell cell, final Volume volume, final List<Tuple3d> output, final JLabel label) {
-      label.setText("Computing Volume Intersection: cell = " + cell.getPath());
-      if(volume.contains(cell.getBoundingVolume())) {
-         cell.forEach((point) -> {
-            final Tuple3d xyz = point.getXYZ(this.tree, null);
-            if (volume.contains(xyz, 2)) {
-               output.add(xyz);
-            }
-         });
-         
-         for(final String child : cell.getChildList()) {
-            final TreeCell childCell = this.tree.getCell(child);
-            getPoints(childCell, volume, output, label);
-         }
-      }
+   public Collection<Tuple3d> getVolumeIntersection(final Volume volume, final JProgressBar progress, final JLabel label) {
+      return this.getVolumeIntersection(volume, -1, progress, label);
    }
 
-   public Collection<Tuple3d> getVolumeIntersection(final Volume volume, final JProgressBar progress, final JLabel label) {
+   /**
+    * Returns all loaded points that project inside the given selection polygon. Cells are classified by their bounds
+    * first so whole subtrees are rejected or accepted without touching their points; only the points of partially
+    * covered cells are projected, and the per cell work is spread across all cores.
+    *
+    * @param volume
+    * @param maxDepth
+    *           the deepest level to take points from or -1 for all levels
+    * @param progress
+    * @param label
+    * @return
+    */
+   public Collection<Tuple3d> getVolumeIntersection(final Volume volume, final int maxDepth, final JProgressBar progress, final JLabel label) {
       final TreeCell root = this.tree.getCell("");
-      final List<Tuple3d> points = new ArrayList<>();
+      final List<TreeCell> inside = new ArrayList<>();
+      final List<TreeCell> partial = new ArrayList<>();
       progress.setMinimum(0);
       progress.setMaximum(0); // tree search so can't tell total number
       progress.setValue(0);
       label.setText("Computing Volume Intersection...");
-      
-      getPoints(root, volume, points, label);
-      
-//      int i = 0;
-//
-//      // TODO: go through tree structure to cull portions early
-//      for (final TreeCell cell : segments) {
-//         final BoundingVolume bounds = cell.getBoundingVolume();
-//
-//         if (volume.contains(bounds)) {
-//            cell.forEach((point) -> {
-//               final Tuple3d xyz = point.getXYZ(this.tree, null);
-//
-//               if (volume.contains(xyz, 2)) {
-//                  points.add(xyz);
-//               }
-//            });
-//         }
-//         
-//         progress.setValue(i++);
-//      }
-
-      return points;
+
+      this.classifyCells(root, volume, maxDepth, inside, partial);
+
+      label.setText("Computing Volume Intersection: " + inside.size() + " cells inside, " + partial.size() + " partially covered");
+
+      final Stream<List<Tuple3d>> insidePoints = inside.parallelStream().map((cell) -> TreeRenderable.getPoints(cell, null));
+      final Stream<List<Tuple3d>> partialPoints = partial.parallelStream().map((cell) -> TreeRenderable.getPoints(cell, volume));
+
+      return Stream.concat(insidePoints, partialPoints).flatMap(List::stream).collect(Collectors.toList());
+   }
+
+   /**
+    * Returns the loaded point closest to the camera within the given number of pixels of the given mouse location or
+    * null if there is none.
+    *
+    * @param scene
+    * @param mouseX
+    * @param mouseY
+    *           in window coordinates (origin at the top left)
+    * @param pixelRadius
+    * @return
+    */
+   public RayPick.Hit pick(final Scene scene, final int mouseX, final int mouseY, final double pixelRadius) {
+      final Tuple3d camera = scene.getCameraPosition();
+      final Tuple3d mouseWorld = CameraUtils.gluUnProject(scene, new Tuple3d(mouseX, scene.getHeight() - mouseY, 1.0));
+
+      if ((camera == null) || (mouseWorld == null)) {
+         return null;
+      }
+
+      mouseWorld.add(scene.getOrigin());
+
+      final Vector3d direction = new Vector3d();
+      direction.subtract(mouseWorld, camera);
+      direction.normalize();
+
+      // a pixel covers 2 / (projection[5] * height) meters per meter of distance
+      final double radiusPerMeter = (pixelRadius * 2.0) / (scene.getProjectionMatrix()[5] * scene.getHeight());
+
+      return RayPick.pick(this.tree, camera, direction, 0, radiusPerMeter);
    }
 
    @Override
    public void render(final GL2 gl, final GLU glu, final GLAutoDrawable glDrawable, final Scene scene) {
+      // cells are stored relative to their own local origins so nothing needs to be reloaded when the scene origin moves
       final Tuple3d origin = scene.getOrigin();
 
-      if (origin.distance(this.currentOrigin) > 1) {
-         for (final TreeCell cell : this.tree) {
-            // TODO: add shader + temp origin offset
-            cell.clearData();
+      this.timings.start(TreeRenderable.FRUSTUM_CULLING);
+      final boolean culled = this.culler.cull(scene, (cell, distance, screenRadius) -> TreeRenderable.checkLevelOfDetail(cell, distance, screenRadius, this.levelOfDetail), this.connection.getCompletedCount());
+      this.timings.end(TreeRenderable.FRUSTUM_CULLING);
+
+      if (culled) {
+         this.timings.start(TreeRenderable.DELETE_OUTSIDE);
+         for (final TreeCell cell : this.culler.getOutside()) {
+            this.deleteCachedData(gl, scene, cell);
          }
+         this.timings.end(TreeRenderable.DELETE_OUTSIDE);
 
-         this.currentOrigin.set(origin);
+         this.segments.clear();
+         for (final TreeCell cell : this.culler.getVisible()) {
+            this.segments.add(cell);
+         }
+
+         this.pending.clear();
+         for (final TreeCell cell : this.culler.getPending()) {
+            this.pending.add(cell);
+         }
+         this.pending.sort(TreeRenderable.DEPTH_COMPARATOR);
+
+         // send all of this frame's requests together so siblings can be batched by the loader
+         if (!this.culler.getRequested().isEmpty()) {
+            this.connection.request(this.culler.getRequested());
+         }
       }
 
-      final TreeCell root = this.tree.getCell(null, 0);
+      this.residency.nextFrame(this.culler.getTraversed());
+
+      final CellMemoryManager memory = this.connection.getMemoryManager();
+      memory.nextFrame();
+      // parents that are only split still have to stay loaded for the traversal to reach their children
+      memory.touch(this.culler.getTraversed());
+      memory.maintain();
+      memory.drainEvictions((cell) -> {
+         if (cell.getSegmentPoolIndex() != -1) {
+            this.vboPool.clearSegmentObject(gl, cell);
+            this.residency.removed(cell);
+         }
 
-      this.segments.clear();
-      this.pending.clear();
+         cell.clearData();
+      });
 
-      this.timings.start(TreeRenderable.FRUSTUM_CULLING);
-      this.frustumCulling(gl, scene, false, root);
-      this.timings.end(TreeRenderable.FRUSTUM_CULLING);
+      if (this.prefetcher != null) {
+         this.timings.start(TreeRenderable.PREFETCH);
+         this.prefetcher.prefetch(scene, this.levelOfDetail);
+         this.timings.end(TreeRenderable.PREFETCH);
+      }
 
       this.timings.start(TreeRenderable.UPLOAD_CELLS);
       this.uploadPending(gl, scene);
@@ -237,7 +321,6 @@ public class TreeRenderable extends Renderable {
       this.shader.enable(gl);
 
       final FloatUniform originOffset = this.shader.getFloatUniform("originOffset");
-      originOffset.set(gl, 0, 0, 0); // TODO per cell
 
       final FloatMatrixUniform mvpUniform = this.shader.getFloatMatrixUniform("mvp");
       final Matrix4d p = new Matrix4d(scene.getProjectionMatrix());
@@ -252,7 +335,16 @@ public class TreeRenderable extends Renderable {
       final FloatUniform intensityRange = this.shader.getFloatUniform("intensityRange");
       intensityRange.set(gl, 0, 0); // TODO
 
-      this.vboPool.render(gl, this.segments);
+      // each cell is drawn with the offset from the scene origin to its own local origin
+      for (final TreeCell cell : this.segments) {
+         final Tuple3d localOrigin = cell.getLocalOrigin();
+         originOffset.set(gl, (float) (origin.x - localOrigin.x), (float) (origin.y - localOrigin.y), (float) (origin.z - localOrigin.z));
+
+         this.drawList.clear();
+         this.drawList.add(cell);
+         this.vboPool.render(gl, this.drawList);
+      }
+
       this.shader.disable(gl);
       this.timings.end(TreeRenderable.RENDERING);
 
@@ -262,6 +354,33 @@ public class TreeRenderable extends Renderable {
    public void setLevelOfDetail(final double levelOfDetail) {
       this.levelOfDetail = levelOfDetail;
 
+      if (this.culler != null) {
+         this.culler.invalidate();
+      }
+
+      if (this.scene != null) {
+         this.scene.repaint();
+      }
+   }
+
+   /**
+    * Enables prefetching of cells along the given navigator's camera motion; null disables prefetching.
+    *
+    * @param navigator
+    */
+   public void setNavigator(final SphericalNavigator navigator) {
+      this.prefetcher = (navigator == null) ? null : new TreePrefetcher(this.tree, this.connection, navigator);
+   }
+
+   /**
+    * Sets the maximum number of points to render per frame; cells are refined largest on screen first until the budget is
+    * used. Zero or less uses the fixed level of detail (see {@link #setLevelOfDetail(double)}) instead.
+    *
+    * @param pointBudget
+    */
+   public void setPointBudget(final long pointBudget) {
+      this.culler.setPointBudget(pointBudget);
+
       if (this.scene != null) {
          this.scene.repaint();
       }
@@ -289,150 +408,123 @@ public class TreeRenderable extends Renderable {
       }
 
       this.bounds = new BoundingBox(min, max);
-      //      this.bounds = new BoundingBox(min.subtract(this.currentOrigin), max.subtract(this.currentOrigin));
    }
 
-   private boolean[] checkLevelOfDetail(final GL2 gl, final Scene scene, final TreeCell cell) {
-      if (!cell.isComplete()) {
-         return new boolean[] { false, false };
+   /**
+    * Returns a combination of {@link TreeCuller#RENDER} and {@link TreeCuller#SPLIT} for the given cell based on the
+    * projected size of its bounding sphere (as computed by the {@link TreeCuller}) scaled to the cell's average half
+    * span.
+    *
+    * @param cell
+    * @param distance
+    * @param screenRadius
+    * @param levelOfDetail
+    *           the level of detail multiplier (see {@link #setLevelOfDetail(double)})
+    * @return
+    */
+   public static int checkLevelOfDetail(final TreeCell cell, final double distance, final double screenRadius, final double levelOfDetail) {
+      final double radius = screenRadius * TreeRenderable.HALF_SPAN_PER_RADIUS * levelOfDetail;
+      final double screenArea = Math.PI * radius * radius;
+      int result = 0;
+
+      // camera within the cell's average span of it
+      if ((distance <= (2.0 * cell.getBoundingRadius() * TreeRenderable.HALF_SPAN_PER_RADIUS)) || (screenArea >= TreeRenderable.MIN_SCREEN_RENDER_AREA)) {
+         result |= TreeCuller.RENDER;
+      }
+
+      if (cell.hasChildren() || (screenArea >= TreeRenderable.MIN_SCREEN_SPLIT_AREA)) {
+         result |= TreeCuller.SPLIT;
       }
 
-      final BoundingVolume bounds = cell.getBoundingVolume();
-      final Tuple3d boundsCenter = bounds.getCenter();
-      final Vector3d viewVector = scene.getViewVector();
-      final Vector3d rightVector = scene.getRightVector();
-      final double boundsHalfSpan = bounds.getSpannedDistance(rightVector) / 2.0;
-      rightVector.scale(boundsHalfSpan);
-      rightVector.add(boundsCenter);
+      return result;
+   }
 
-      final double distanceToCamera = scene.getCameraPosition().distance(boundsCenter);
-      final double boundsViewSpan = bounds.getSpannedDistance(viewVector);
+   private void classifyCells(final TreeCell cell, final Volume volume, final int maxDepth, final List<TreeCell> inside, final List<TreeCell> partial) {
+      final int result = volume.classify(cell.getBoundingVolume());
 
-      final Tuple3d cellCenterScreen = CameraUtils.gluProject(scene, boundsCenter);
-      final Tuple3d cellRightScreen = CameraUtils.gluProject(scene, rightVector);
-      boolean render = false;
-      boolean split = false;
+      if (result == Volume.INSIDE) {
+         this.collectCells(cell, maxDepth, inside);
+      } else if (result == Volume.PARTIAL) {
+         if (cell.isComplete()) {
+            partial.add(cell);
+         }
 
-      if ((cellCenterScreen != null) && (cellRightScreen != null)) {
-         final double radius = cellCenterScreen.distance(cellRightScreen) * this.levelOfDetail;
-         final double screenArea = Math.PI * radius * radius;
+         if ((maxDepth < 0) || (cell.path.length() < maxDepth)) {
+            for (final String childPath : cell.getChildList()) {
+               final TreeCell child = this.tree.containsCell(childPath);
 
-         render = (distanceToCamera <= boundsViewSpan) || (screenArea >= TreeRenderable.MIN_SCREEN_RENDER_AREA);
-         split = cell.hasChildren() || (screenArea >= TreeRenderable.MIN_SCREEN_SPLIT_AREA);
+               if (child != null) {
+                  this.classifyCells(child, volume, maxDepth, inside, partial);
+               }
+            }
+         }
       }
-
-      return new boolean[] { render, split };
    }
 
    /**
-    * Deletes all cached data and clears buffer pool location for the given tree cell and any children.
-    *
-    * @param gl
-    * @param scene
-    * @param cell
+    * Adds the given cell and all of its loaded descendants (down to the given depth) to the output.
     */
-   private void deleteCachedData(final GL2 gl, final Scene scene, final TreeCell cell) {
-      this.vboPool.clearSegmentObject(gl, cell);
+   private void collectCells(final TreeCell cell, final int maxDepth, final List<TreeCell> output) {
+      if (cell.isComplete()) {
+         output.add(cell);
+      }
 
-      for (final String childPath : cell.getChildList()) {
-         final TreeCell childCell = this.tree.containsCell(childPath);
+      if ((maxDepth < 0) || (cell.path.length() < maxDepth)) {
+         for (final String childPath : cell.getChildList()) {
+            final TreeCell child = this.tree.containsCell(childPath);
 
-         if (childCell != null) {
-            this.deleteCachedData(gl, scene, childCell);
+            if (child != null) {
+               this.collectCells(child, maxDepth, output);
+            }
          }
       }
-
-      cell.clearData();
    }
 
    /**
-    * Checks frustum and level of detail.
-    *
-    * @param gl
-    * @param scene
-    * @param ignoreFrustum
+    * Returns the points of the given cell that are inside the given volume or all of them if the volume is null.
     */
-   private void frustumCulling(final GL2 gl, final Scene scene, final boolean ignoreFrustum, final TreeCell cell) {
-      boolean shouldIgnoreFrustum = ignoreFrustum;
-
-      try {
-         this.timings.start(TreeRenderable.TEST_FRUSTUM);
-         if (!shouldIgnoreFrustum) {
-            final Plane[] frustum = scene.getFrustumPlanes();
+   private static List<Tuple3d> getPoints(final TreeCell cell, final Volume volume) {
+      final double[] positions = cell.getPositions();
 
-            final BoundingVolume bounds = cell.getBoundingVolume().offset(scene.getOrigin());
-            final FrustumResult result = BoundsUtils.testFrustum(frustum, bounds);
-
-            if (result == FrustumResult.OUT) {
-               this.deleteCachedData(gl, scene, cell);
-               return;
-            }
-
-            shouldIgnoreFrustum = result == FrustumResult.IN;
-         }
-      } finally {
-         this.timings.end(TreeRenderable.TEST_FRUSTUM);
+      if (positions == null) {
+         return Collections.emptyList();
       }
 
-      try {
-         this.timings.start(TreeRenderable.TEST_CHILDREN);
-         if (cell.isComplete()) {
-            if (cell.getSegmentPoolIndex() == -1) {
-               this.pending.add(cell);
-            } else {
-               final boolean[] renderAndSplit = this.checkLevelOfDetail(gl, scene, cell);
-               if (renderAndSplit[0]) {
-                  this.segments.add(cell);
-               }
-
-               if (renderAndSplit[1]) {
-                  for (final String childPath : cell.getChildList()) {
-                     final TreeCell childCell = this.tree.getCell(childPath);
+      final int count = positions.length / 3;
+      final List<Tuple3d> output = new ArrayList<>((volume == null) ? count : 16);
 
-                     this.frustumCulling(gl, scene, shouldIgnoreFrustum, childCell);
-                  }
-               }
-            }
-         } else if (cell.isEmpty()) {
-            this.connection.request(cell);
+      if (volume == null) {
+         for (int i = 0; i < count; i++) {
+            output.add(new Tuple3d(positions[i * 3], positions[(i * 3) + 1], positions[(i * 3) + 2]));
          }
-      } finally {
-         this.timings.end(TreeRenderable.TEST_CHILDREN);
+      } else {
+         volume.select(positions, count, output);
       }
+
+      return output;
    }
 
-   private TreeStructure initializeTree(final String basePath, final ConnectionType connectionType) {
-      DataAttributes attributes = null;
-      String[] children = null;
-      TreeStructure tree = null;
-      int maxPoints = -1;
-
-      try {
-         switch (connectionType) {
-            case FILESYSTEM:
-               children = TreeServerProcessor.getChildren(new File(basePath, "root.txt"));
-               attributes = TreeServerProcessor.getAttributes(new File(basePath, "attributes.csv"));
-               maxPoints = TreeServerProcessor.getMaxPoints(new File(basePath, "root.txt"));
-               break;
-            case HTTP:
-               children = TreeServerProcessor.getChildren(new URL(basePath + "/root.txt"));
-               attributes = TreeServerProcessor.getAttributes(new URL(basePath + "/attributes.csv"));
-               maxPoints = TreeServerProcessor.getMaxPoints(new URL(basePath + "/root.txt"));
-               break;
-         }
-      } catch (final IOException e) {
-         e.printStackTrace();
-      }
+   /**
+    * Deletes all cached data and clears buffer pool location for the given tree cell and any children.
+    *
+    * @param gl
+    * @param scene
+    * @param cell
+    */
+   private void deleteCachedData(final GL2 gl, final Scene scene, final TreeCell cell) {
+      this.vboPool.clearSegmentObject(gl, cell);
+      this.residency.removed(cell);
+      this.connection.getMemoryManager().removed(cell);
+
+      for (final String childPath : cell.getChildList()) {
+         final TreeCell childCell = this.tree.containsCell(childPath);
 
-      if ((attributes != null) && (children != null) && (children.length > 0)) {
-         if (Character.isAlphabetic(children[0].charAt(0))) {
-            tree = new Icosatree(attributes, maxPoints);
-         } else {
-            tree = new Octree(attributes, maxPoints);
+         if (childCell != null) {
+            this.deleteCachedData(gl, scene, childCell);
          }
       }
 
-      return tree;
+      cell.clearData();
    }
 
    /**
@@ -443,6 +535,8 @@ public class TreeRenderable extends Renderable {
     */
    private void uploadPending(final GL2 gl, final Scene scene) {
       final long startTime = System.nanoTime();
+      // evicted cells keep their decoded data and go back to pending once the traversal reaches them again
+      final Consumer<TreeCell> evictor = (cell) -> this.vboPool.clearSegmentObject(gl, cell);
 
       for (final TreeCell pendingCell : this.pending) {
          if ((System.nanoTime() - startTime) >= TreeRenderable.TEN_MILLISECONDS_IN_NANOSECONDS) {
@@ -450,9 +544,24 @@ public class TreeRenderable extends Renderable {
          }
 
          if (pendingCell.isComplete() && (pendingCell.getSegmentPoolIndex() == -1) && (pendingCell.getPointCount() > 0)) {
+            if (!pendingCell.isUploadable()) {
+               // released all of its data while not uploaded; it will be requested again on the next traversal
+               this.connection.getMemoryManager().removed(pendingCell);
+               pendingCell.clearData();
+               continue;
+            }
+
+            if (!this.residency.reserve(evictor)) {
+               // gpu memory budget is filled with cells traversed this frame
+               break;
+            }
+
             this.timings.start(TreeRenderable.PENDING_UPLOADS);
 
-            this.vboPool.setSegmentObject(gl, this.currentOrigin, pendingCell);
+            this.vboPool.setSegmentObject(gl, pendingCell.getLocalOrigin(), pendingCell);
+            this.residency.uploaded(pendingCell);
+            // the vertex buffer now holds the gpu format; it is rebuilt from the raw data if evicted and uploaded again
+            pendingCell.releaseGpuBuffer();
             this.timings.end(TreeRenderable.PENDING_UPLOADS);
          }
       }
@@ -0,0 +1,156 @@
+package com.stephenwranger.thesis.renderables;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.stephenwranger.thesis.data.TreeCell;
+
+/**
+ * Tracks which cells hold a segment of the vertex buffer pool and when each was last traversed so the least recently
+ * used segments can be evicted to stay under a gpu memory budget. Parents that are only split count as used as the
+ * traversal can't reach their children without their segments. Every segment reserves the pool's full segment size
+ * regardless of its point count so memory is counted per segment. Evicted cells keep their decoded data and are simply
+ * uploaded again once the traversal reaches them.
+ */
+public class TreeResidency {
+   public static final long                   GPU_MEMORY_BUDGET_MB = Long.getLong("gpuMemoryBudgetMB", 1024L);
+
+   private static final long                  BYTES_PER_MB         = 1024L * 1024L;
+
+   // access ordered so iteration starts at the least recently traversed cell
+   private final LinkedHashMap<TreeCell, Long> resident            = new LinkedHashMap<>(256, 0.75f, true);
+   private final Set<TreeCell>                 evicted             = new HashSet<>();
+   private final long                          segmentBytes;
+
+   private long                                budget;
+   private long                                frame               = 0;
+   private long                                uploadCount         = 0;
+   private long                                evictionCount       = 0;
+   private long                                reuploadCount       = 0;
+
+   /**
+    * @param segmentBytes
+    *           the gpu memory reserved by a single segment of the pool
+    */
+   public TreeResidency(final long segmentBytes) {
+      this.segmentBytes = segmentBytes;
+      this.budget = TreeResidency.GPU_MEMORY_BUDGET_MB * TreeResidency.BYTES_PER_MB;
+   }
+
+   /**
+    * Starts a new frame and marks the given cells as used in it; they will not be evicted during this frame.
+    *
+    * @param traversed
+    *           every cell the culler visited this frame, including parents that were only split
+    */
+   public void nextFrame(final Collection<TreeCell> traversed) {
+      this.frame++;
+
+      for (final TreeCell cell : traversed) {
+         if (this.resident.containsKey(cell)) {
+            this.resident.put(cell, this.frame);
+         }
+      }
+   }
+
+   /**
+    * Evicts the least recently used segments (not traversed this frame) until there is room for one more segment.
+    *
+    * @param evictor
+    *           releases the given cell's segment from the pool
+    * @return true if there is room for another segment; false if the budget is used up by segments traversed this frame
+    */
+   public boolean reserve(final Consumer<TreeCell> evictor) {
+      final Iterator<Entry<TreeCell, Long>> iterator = this.resident.entrySet().iterator();
+
+      while ((this.getResidentBytes() + this.segmentBytes) > this.budget) {
+         if (!iterator.hasNext()) {
+            return false;
+         }
+
+         final Entry<TreeCell, Long> eldest = iterator.next();
+
+         if (eldest.getValue() == this.frame) {
+            return false;
+         }
+
+         final TreeCell cell = eldest.getKey();
+         iterator.remove();
+         this.evicted.add(cell);
+         this.evictionCount++;
+
+         evictor.accept(cell);
+      }
+
+      return true;
+   }
+
+   /**
+    * Records that the given cell was uploaded into a segment of the pool.
+    *
+    * @param cell
+    */
+   public void uploaded(final TreeCell cell) {
+      this.uploadCount++;
+
+      if (this.evicted.remove(cell)) {
+         this.reuploadCount++;
+      }
+
+      this.resident.put(cell, this.frame);
+   }
+
+   /**
+    * Records that the given cell's segment (and data) was released for some other reason than eviction (eg, culling).
+    *
+    * @param cell
+    */
+   public void removed(final TreeCell cell) {
+      this.resident.remove(cell);
+      this.evicted.remove(cell);
+   }
+
+   public long getBudget() {
+      return this.budget;
+   }
+
+   public void setBudget(final long budget) {
+      this.budget = budget;
+   }
+
+   public int getResidentCount() {
+      return this.resident.size();
+   }
+
+   public long getResidentBytes() {
+      return this.resident.size() * this.segmentBytes;
+   }
+
+   public long getUploadCount() {
+      return this.uploadCount;
+   }
+
+   public long getEvictionCount() {
+      return this.evictionCount;
+   }
+
+   /**
+    * Returns the number of uploads of cells that had previously been evicted.
+    *
+    * @return
+    */
+   public long getReuploadCount() {
+      return this.reuploadCount;
+   }
+
+   @Override
+   public String toString() {
+      return "Resident Segments: " + this.getResidentCount() + " (" + (this.getResidentBytes() / TreeResidency.BYTES_PER_MB) + " / " + (this.budget / TreeResidency.BYTES_PER_MB) + " MB)\nUploads: "
+            + this.uploadCount + ", Evictions: " + this.evictionCount + ", Re-uploads: " + this.reuploadCount;
+   }
+}
@@ -0,0 +1,450 @@
+package com.stephenwranger.thesis.renderables;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.stephenwranger.graphics.bounds.BoundingBox;
+import com.stephenwranger.graphics.math.Tuple3d;
+import com.stephenwranger.thesis.data.CellMemoryManager;
+import com.stephenwranger.thesis.data.LoaderStatistics;
+import com.stephenwranger.thesis.data.TreeCell;
+import com.stephenwranger.thesis.data.TreeServerConnection;
+import com.stephenwranger.thesis.data.TreeServerProcessor.ConnectionType;
+import com.stephenwranger.thesis.data.TreeStructure;
+
+/**
+ * Headless replay of the {@link TreeRenderable} traversal and loading logic along a camera path; no gpu or display is
+ * needed. Each frame runs the {@link TreeCuller} with the renderer's level of detail (or point budget), sends the
+ * requests through a real {@link TreeServerConnection} and marks loaded cells as uploaded, then writes one csv row with
+ * the cells selected, points drawn, bytes fetched and uploaded, and how long the current camera pose took to fully
+ * refine. Uploads are not time limited as they are in the renderer but are subject to the same {@link TreeResidency}
+ * gpu memory budget; prefetching is not simulated.
+ * <p>
+ * The camera path is either a file with one pose per line (<code>eyeX eyeY eyeZ targetX targetY targetZ upX upY
+ * upZ</code>; commas or whitespace, <code>#</code> comments) or one of the scripted paths <code>orbit</code> or
+ * <code>zoom</code> around the root cell's points. After the last pose the camera is held until the view is fully
+ * refined (or the settle timeout passes).
+ */
+public class TreeSimulator {
+   private static final String USAGE                = "java TreeSimulator <tree_path> <FILESYSTEM|HTTP> <camera_path_file|orbit|zoom> [output_csv]";
+   private static final String HEADER               = "pose,frame,timeMillis,cellsSelected,pointsDrawn,cellsRequested,cellsPending,bytesFetched,bytesUploaded,refined,refineMillis";
+
+   public static final int     WIDTH                = Integer.getInteger("simulatorWidth", 1920);
+   public static final int     HEIGHT               = Integer.getInteger("simulatorHeight", 1080);
+   public static final double  FOV_DEGREES          = Double.parseDouble(System.getProperty("simulatorFov", "45.0"));
+   public static final int     FRAME_MILLIS         = Integer.getInteger("simulatorFrameMillis", 16);
+   public static final int     SCRIPTED_FRAMES      = Integer.getInteger("simulatorFrames", 300);
+   public static final double  LEVEL_OF_DETAIL      = Double.parseDouble(System.getProperty("simulatorLevelOfDetail", "1.0"));
+   public static final long    POINT_BUDGET         = Long.getLong("simulatorPointBudget", 0L);
+   /** if set, every pose is held until fully refined instead of moving on each frame */
+   public static final boolean SETTLE_EACH_POSE     = Boolean.getBoolean("simulatorSettle");
+   public static final int     SETTLE_TIMEOUT       = Integer.getInteger("simulatorSettleTimeoutMillis", 30000);
+
+   private static final double NEAR                 = 0.1;
+
+   private final TreeStructure        tree;
+   private final TreeServerConnection connection;
+   private final TreeCuller           culler;
+   private final TreeResidency        residency;
+   private final Tuple3d              origin;
+   private final double               rootRadius;
+   private final double[]             modelView            = new double[16];
+   private final double[]             projection           = new double[16];
+   private final double[]             frustum              = new double[24];
+   private final double[]             clip                 = new double[16];
+
+   private int                        nextPoolIndex        = 0;
+   private long                       bytesUploaded        = 0;
+
+   public TreeSimulator(final String basePath, final ConnectionType connectionType) {
+      this.tree = TreeServerConnection.initializeTree(basePath, connectionType);
+
+      if (this.tree == null) {
+         throw new RuntimeException("Could not read tree at " + basePath);
+      }
+
+      this.connection = new TreeServerConnection(this.tree, basePath, connectionType);
+      this.culler = new TreeCuller(this.tree);
+      this.culler.setPointBudget(TreeSimulator.POINT_BUDGET);
+      this.residency = new TreeResidency((long) (this.tree.maxPoints == -1 ? 50000 : this.tree.maxPoints) * TreeRenderable.BYTES_PER_VERTEX);
+
+      final TreeCell root = this.tree.getCell(null, 0);
+      this.origin = new Tuple3d(root.getBoundingVolume().getCenter());
+      this.rootRadius = root.getBoundingRadius();
+   }
+
+   /**
+    * Replays the given camera path and writes one csv row per frame to the given writer.
+    *
+    * @param path
+    *           the camera poses as (eye, target, up) triples
+    * @param output
+    */
+   public void run(final List<Tuple3d[]> path, final PrintWriter output) {
+      final LoaderStatistics statistics = this.connection.getStatistics();
+      final long startTime = System.nanoTime();
+      long bytesFetched = statistics.getBytesRead();
+      int frame = 0;
+      int refinedPoses = 0;
+      long totalRefineMillis = 0;
+      long maxRefineMillis = 0;
+
+      output.println(TreeSimulator.HEADER);
+
+      for (int pose = 0; pose < path.size(); pose++) {
+         final Tuple3d[] camera = path.get(pose);
+         final boolean settle = TreeSimulator.SETTLE_EACH_POSE || (pose == (path.size() - 1));
+         final long poseTime = System.nanoTime();
+         boolean isRefined = false;
+
+         do {
+            final long frameTime = System.nanoTime();
+            isRefined = this.frame(camera[0], camera[1], camera[2]);
+
+            final long fetched = statistics.getBytesRead();
+            final long refineMillis = (System.nanoTime() - poseTime) / 1000000L;
+            long pointsDrawn = 0;
+
+            for (final TreeCell cell : this.culler.getVisible()) {
+               pointsDrawn += cell.getPointCount();
+            }
+
+            output.println(pose + "," + frame + "," + ((frameTime - startTime) / 1000000L) + "," + this.culler.getVisible().size() + "," + pointsDrawn + "," + this.culler.getRequested().size() + ","
+                  + this.culler.getPending().size() + "," + (fetched - bytesFetched) + "," + this.bytesUploaded + "," + isRefined + "," + (isRefined ? Long.toString(refineMillis) : ""));
+
+            bytesFetched = fetched;
+            this.bytesUploaded = 0;
+            frame++;
+
+            if (isRefined) {
+               refinedPoses++;
+               totalRefineMillis += refineMillis;
+               maxRefineMillis = Math.max(maxRefineMillis, refineMillis);
+            } else if (settle && (refineMillis >= TreeSimulator.SETTLE_TIMEOUT)) {
+               break;
+            }
+
+            TreeSimulator.sleep(TreeSimulator.FRAME_MILLIS - ((System.nanoTime() - frameTime) / 1000000L));
+         } while (settle && !isRefined);
+      }
+
+      output.println("# frames:                  " + frame);
+      output.println("# poses refined:           " + refinedPoses + " / " + path.size());
+      output.println("# mean time to refine (ms): " + ((refinedPoses == 0) ? 0 : (totalRefineMillis / refinedPoses)));
+      output.println("# max time to refine (ms):  " + maxRefineMillis);
+      output.println("# total bytes read:        " + statistics.getBytesRead());
+      output.println("# cells loaded:            " + statistics.getCompleted());
+      output.println("# fetch latency p50/p99:   " + statistics.getFetchLatencyMillis(50) + " / " + statistics.getFetchLatencyMillis(99) + " ms");
+
+      for (final String line : (this.residency + "\n" + this.connection.getMemoryManager()).split("\n")) {
+         output.println("# " + line);
+      }
+      output.flush();
+   }
+
+   public void close() {
+      this.connection.close();
+   }
+
+   /**
+    * Runs a single frame for the given camera and returns true if nothing is left to load or upload for it.
+    */
+   private boolean frame(final Tuple3d eye, final Tuple3d target, final Tuple3d up) {
+      this.setCamera(eye, target, up);
+
+      final boolean culled = this.culler.cull(this.origin, this.modelView, this.projection, this.frustum, eye, TreeSimulator.HEIGHT,
+            (cell, distance, screenRadius) -> TreeRenderable.checkLevelOfDetail(cell, distance, screenRadius, TreeSimulator.LEVEL_OF_DETAIL), this.connection.getCompletedCount());
+
+      if (culled) {
+         for (final TreeCell cell : this.culler.getOutside()) {
+            this.deleteCachedData(cell);
+         }
+
+         if (!this.culler.getRequested().isEmpty()) {
+            this.connection.request(this.culler.getRequested());
+         }
+      }
+
+      this.residency.nextFrame(this.culler.getTraversed());
+
+      final CellMemoryManager memory = this.connection.getMemoryManager();
+      memory.nextFrame();
+      memory.touch(this.culler.getTraversed());
+      memory.maintain();
+      memory.drainEvictions((cell) -> {
+         cell.setSegmentLocation(-1, -1);
+         this.residency.removed(cell);
+         cell.clearData();
+      });
+
+      boolean hasPending = false;
+
+      for (final TreeCell cell : this.culler.getPending()) {
+         if (cell.isComplete() && (cell.getSegmentPoolIndex() == -1) && (cell.getPointCount() > 0)) {
+            hasPending = true;
+
+            if (!cell.isUploadable()) {
+               memory.removed(cell);
+               cell.clearData();
+               continue;
+            }
+
+            if (!this.residency.reserve((evicted) -> evicted.setSegmentLocation(-1, -1))) {
+               break;
+            }
+
+            cell.setSegmentLocation(this.nextPoolIndex++, 0);
+            this.residency.uploaded(cell);
+            cell.releaseGpuBuffer();
+            this.bytesUploaded += (long) cell.getVertexCount() * TreeRenderable.BYTES_PER_VERTEX;
+         }
+      }
+
+      return !hasPending && this.culler.getRequested().isEmpty();
+   }
+
+   private void deleteCachedData(final TreeCell cell) {
+      cell.setSegmentLocation(-1, -1);
+      this.residency.removed(cell);
+      this.connection.getMemoryManager().removed(cell);
+
+      for (final String childPath : cell.getChildList()) {
+         final TreeCell childCell = this.tree.containsCell(childPath);
+
+         if (childCell != null) {
+            this.deleteCachedData(childCell);
+         }
+      }
+
+      cell.clearData();
+   }
+
+   /**
+    * Computes the column major look-at model view (relative to the origin), perspective projection, and the frustum
+    * planes of their product.
+    */
+   private void setCamera(final Tuple3d eye, final Tuple3d target, final Tuple3d up) {
+      final double ex = eye.x - this.origin.x;
+      final double ey = eye.y - this.origin.y;
+      final double ez = eye.z - this.origin.z;
+
+      double fx = target.x - eye.x;
+      double fy = target.y - eye.y;
+      double fz = target.z - eye.z;
+      final double fLength = Math.sqrt((fx * fx) + (fy * fy) + (fz * fz));
+      fx /= fLength;
+      fy /= fLength;
+      fz /= fLength;
+
+      double sx = (fy * up.z) - (fz * up.y);
+      double sy = (fz * up.x) - (fx * up.z);
+      double sz = (fx * up.y) - (fy * up.x);
+      final double sLength = Math.sqrt((sx * sx) + (sy * sy) + (sz * sz));
+      sx /= sLength;
+      sy /= sLength;
+      sz /= sLength;
+
+      final double ux = (sy * fz) - (sz * fy);
+      final double uy = (sz * fx) - (sx * fz);
+      final double uz = (sx * fy) - (sy * fx);
+
+      final double[] mv = this.modelView;
+      mv[0] = sx;
+      mv[4] = sy;
+      mv[8] = sz;
+      mv[12] = -((sx * ex) + (sy * ey) + (sz * ez));
+      mv[1] = ux;
+      mv[5] = uy;
+      mv[9] = uz;
+      mv[13] = -((ux * ex) + (uy * ey) + (uz * ez));
+      mv[2] = -fx;
+      mv[6] = -fy;
+      mv[10] = -fz;
+      mv[14] = (fx * ex) + (fy * ey) + (fz * ez);
+      mv[3] = 0;
+      mv[7] = 0;
+      mv[11] = 0;
+      mv[15] = 1;
+
+      final double far = Math.sqrt((ex * ex) + (ey * ey) + (ez * ez)) + this.rootRadius;
+      final double f = 1.0 / Math.tan(Math.toRadians(TreeSimulator.FOV_DEGREES) / 2.0);
+      final double[] p = this.projection;
+      Arrays.fill(p, 0);
+      p[0] = f / ((double) TreeSimulator.WIDTH / TreeSimulator.HEIGHT);
+      p[5] = f;
+      p[10] = (far + TreeSimulator.NEAR) / (TreeSimulator.NEAR - far);
+      p[11] = -1;
+      p[14] = (2.0 * far * TreeSimulator.NEAR) / (TreeSimulator.NEAR - far);
+
+      // rows of projection * model view; planes are row3 +/- row0 (left/right), row1 (bottom/top), row2 (near/far)
+      final double[] clip = this.clip;
+
+      for (int column = 0; column < 4; column++) {
+         for (int row = 0; row < 4; row++) {
+            double sum = 0;
+
+            for (int k = 0; k < 4; k++) {
+               sum += p[(k * 4) + row] * mv[(column * 4) + k];
+            }
+
+            clip[(column * 4) + row] = sum;
+         }
+      }
+
+      for (int i = 0; i < 6; i++) {
+         final int row = i / 2;
+         final double sign = ((i % 2) == 0) ? 1.0 : -1.0;
+
+         for (int column = 0; column < 4; column++) {
+            this.frustum[(i * 4) + column] = clip[(column * 4) + 3] + (sign * clip[(column * 4) + row]);
+         }
+      }
+   }
+
+   /**
+    * Reads a camera path file with one (eye, target, up) pose per line.
+    *
+    * @param file
+    * @return
+    * @throws IOException
+    */
+   public static List<Tuple3d[]> readPath(final File file) throws IOException {
+      final List<Tuple3d[]> path = new ArrayList<>();
+
+      try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
+         String line = null;
+
+         while ((line = reader.readLine()) != null) {
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+               continue;
+            }
+
+            final String[] split = line.split("[\\s,]+");
+            final double[] values = new double[9];
+
+            for (int i = 0; i < 9; i++) {
+               values[i] = Double.parseDouble(split[i]);
+            }
+
+            path.add(new Tuple3d[] { new Tuple3d(values[0], values[1], values[2]), new Tuple3d(values[3], values[4], values[5]), new Tuple3d(values[6], values[7], values[8]) });
+         }
+      }
+
+      return path;
+   }
+
+   /**
+    * Loads the root cell and builds an orbit (at three times the radius of the root's points, 30 degrees above them)
+    * or a zoom (from four times to one twentieth of that radius straight down onto them) of the given number of frames.
+    *
+    * @param type
+    *           either "orbit" or "zoom"
+    * @param frames
+    * @return
+    */
+   public List<Tuple3d[]> createPath(final String type, final int frames) {
+      final TreeCell root = this.tree.getCell(null, 0);
+      final long startTime = System.currentTimeMillis();
+      this.connection.request(root);
+
+      while (!root.isComplete() && ((System.currentTimeMillis() - startTime) < TreeSimulator.SETTLE_TIMEOUT)) {
+         TreeSimulator.sleep(TreeSimulator.FRAME_MILLIS);
+      }
+
+      if (!root.isComplete()) {
+         throw new RuntimeException("Timed out loading root cell");
+      }
+
+      final BoundingBox pointBounds = root.getPointBounds();
+      final Tuple3d min = pointBounds.getMin();
+      final Tuple3d max = pointBounds.getMax();
+      final Tuple3d center = new Tuple3d((min.x + max.x) / 2.0, (min.y + max.y) / 2.0, (min.z + max.z) / 2.0);
+      final double radius = Math.max(1.0, min.distance(max) / 2.0);
+
+      // 'up' points away from the tree's center (eg, away from the earth for an icosatree) when the two differ
+      final double[] up = TreeSimulator.normalize(center.x - this.origin.x, center.y - this.origin.y, center.z - this.origin.z, new double[] { 0, 0, 1 });
+      // a and b complete an orthonormal basis with up; a is perpendicular to whichever of x or y is further from up
+      final double[] a = (Math.abs(up[0]) < 0.9) ? TreeSimulator.normalize(0, up[2], -up[1], null) : TreeSimulator.normalize(-up[2], 0, up[0], null);
+      final double[] b = new double[] { (up[1] * a[2]) - (up[2] * a[1]), (up[2] * a[0]) - (up[0] * a[2]), (up[0] * a[1]) - (up[1] * a[0]) };
+      final Tuple3d upTuple = new Tuple3d(up[0], up[1], up[2]);
+      final Tuple3d aTuple = new Tuple3d(a[0], a[1], a[2]);
+      final List<Tuple3d[]> path = new ArrayList<>();
+
+      for (int i = 0; i < frames; i++) {
+         final double t = (frames == 1) ? 0 : (double) i / (frames - 1);
+         final Tuple3d eye;
+         final Tuple3d cameraUp;
+
+         if ("zoom".equals(type)) {
+            final double distance = radius * 4.0 * Math.pow(0.05 / 4.0, t);
+            eye = new Tuple3d(center.x + (up[0] * distance), center.y + (up[1] * distance), center.z + (up[2] * distance));
+            cameraUp = aTuple;
+         } else if ("orbit".equals(type)) {
+            final double angle = t * 2.0 * Math.PI;
+            final double horizontal = radius * 3.0 * Math.cos(Math.toRadians(30));
+            final double vertical = radius * 3.0 * Math.sin(Math.toRadians(30));
+            final double cos = Math.cos(angle) * horizontal;
+            final double sin = Math.sin(angle) * horizontal;
+            eye = new Tuple3d(center.x + (a[0] * cos) + (b[0] * sin) + (up[0] * vertical), center.y + (a[1] * cos) + (b[1] * sin) + (up[1] * vertical),
+                  center.z + (a[2] * cos) + (b[2] * sin) + (up[2] * vertical));
+            cameraUp = upTuple;
+         } else {
+            throw new RuntimeException("Unknown camera path: " + type);
+         }
+
+         path.add(new Tuple3d[] { eye, center, cameraUp });
+      }
+
+      return path;
+   }
+
+   private static double[] normalize(final double x, final double y, final double z, final double[] fallback) {
+      final double length = Math.sqrt((x * x) + (y * y) + (z * z));
+
+      return (length < 1e-9) ? fallback : new double[] { x / length, y / length, z / length };
+   }
+
+   private static void sleep(final long milliseconds) {
+      if (milliseconds > 0) {
+         try {
+            Thread.sleep(milliseconds);
+         } catch (final InterruptedException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   public static void main(final String[] args) {
+      TreeSimulator simulator = null;
+
+      try {
+         final String basePath = args[0];
+         final ConnectionType connectionType = ConnectionType.valueOf(args[1]);
+         final String pathName = args[2];
+         simulator = new TreeSimulator(basePath, connectionType);
+
+         final File pathFile = new File(pathName);
+         final List<Tuple3d[]> path = pathFile.isFile() ? TreeSimulator.readPath(pathFile) : simulator.createPath(pathName, TreeSimulator.SCRIPTED_FRAMES);
+
+         try (final PrintWriter output = (args.length > 3) ? new PrintWriter(new FileWriter(args[3])) : new PrintWriter(System.out)) {
+            simulator.run(path, output);
+         }
+      } catch (final Exception e) {
+         System.err.println(TreeSimulator.USAGE);
+         e.printStackTrace();
+      } finally {
+         if (simulator != null) {
+            simulator.close();
+         }
+      }
+   }
+}
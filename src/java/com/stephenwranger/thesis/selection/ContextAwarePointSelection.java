@@ -49,6 +49,9 @@ import com.stephenwranger.thesis.geospatial.WGS84;
 import com.stephenwranger.thesis.renderables.TreeRenderable;
 
 public class ContextAwarePointSelection implements PostProcessor, MouseListener, MouseMotionListener, MouseWheelListener {
+   // screen distance within which a nearer projected point hides a farther one
+   private static final double    OCCLUSION_RADIUS_PIXELS  = 1.1;
+
    private final Scene            scene;
    private final TreeRenderable   tree;
    private final PointRenderable  pointRenderer;
@@ -530,38 +533,22 @@ public class ContextAwarePointSelection implements PostProcessor, MouseListener,
    }
 
    private void pruneObstructed(final Collection<Tuple3d> points, final JProgressBar progress) {
+      final List<Tuple3d> candidates = new ArrayList<>(points);
+      final ObstructionIndex index = new ObstructionIndex(this.scene.getCameraPosition(), candidates, this.obstructedAngleThreshold);
       final List<Tuple3d> pass = new ArrayList<>();
-      int i = 0;
       
-      for (final Tuple3d point : points) {
-         if (!isObstructed(point, points)) {
-            pass.add(point);
+      for (int i = 0; i < candidates.size(); i++) {
+         if (!index.isObstructed(i)) {
+            pass.add(candidates.get(i));
          }
          
-         progress.setValue(i++);
+         progress.setValue(i);
       }
 
       points.clear();
       points.addAll(pass);
    }
 
-   private boolean isObstructed(final Tuple3d point, final Collection<Tuple3d> points) {
-      final Tuple3d cameraPosition = this.scene.getCameraPosition();
-      final Vector3d toCamera = Vector3d.getVector(point, cameraPosition, false);
-
-      for (final Tuple3d other : points) {
-         if (point != other && point.distanceSquared(cameraPosition) > other.distanceSquared(cameraPosition)) {
-            final Vector3d otherToCamera = Vector3d.getVector(other, cameraPosition, false);
-
-            if (toCamera.angleDegrees(otherToCamera) < this.obstructedAngleThreshold) {
-               return true;
-            }
-         }
-      }
-
-      return false;
-   }
-
    private void pruneOrthonormal(final Collection<Tuple3d> points, final JProgressBar progress) {
       final int k = Math.max(3, this.k);
       final List<Tuple3d> toRemove = new ArrayList<>();
@@ -673,9 +660,12 @@ public class ContextAwarePointSelection implements PostProcessor, MouseListener,
          progress.setValue(0);
          System.out.println("checking occlusion");
          label.setText("Checking 2D point occlusion...");
+         
+         final List<Tuple3d> projected = new ArrayList<>(projectedPoints.keySet());
+         final ScreenOcclusionGrid occlusion = new ScreenOcclusionGrid(projected, ContextAwarePointSelection.OCCLUSION_RADIUS_PIXELS);
    
-         for (final Tuple3d xyDepth : projectedPoints.keySet()) {
-            if (!ContextAwarePointSelection.isOccluded(xyDepth, projectedPoints.keySet())) {
+         for (final Tuple3d xyDepth : projected) {
+            if (!occlusion.isOccluded(i)) {
                visiblePoints.add(xyDepth);
             }
             progress.setValue(i++);
@@ -797,16 +787,4 @@ public class ContextAwarePointSelection implements PostProcessor, MouseListener,
 
       return false;
    }
-
-   private static boolean isOccluded(final Tuple3d xyDepth, final Collection<Tuple3d> points) {
-      for (final Tuple3d xyd : points) {
-         if (xyDepth != xyd) {
-            if ((xyDepth.z > xyd.z) && (xyd.xy().distance(xyDepth.xy()) < 1.1)) {
-               return true;
-            }
-         }
-      }
-
-      return false;
-   }
 }
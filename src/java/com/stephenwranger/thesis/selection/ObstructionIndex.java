@@ -0,0 +1,152 @@
+package com.stephenwranger.thesis.selection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+
+/**
+ * Finds points hidden behind other points as seen from the eye: a point is obstructed if a point closer to the eye is
+ * within a threshold angle of it. Points are binned by their unit direction from the eye in a grid whose cell size is
+ * the chord length of the threshold angle so any two directions within the threshold fall into neighbouring cells; each
+ * cell is sorted by distance from the eye so a point is only tested against the nearer points of its own and the
+ * neighbouring cells.
+ */
+public class ObstructionIndex {
+   private final double           x, y, z;
+   private final double           cosThreshold;
+   private final double           cellSize;
+   private final double[]         directions;
+   private final double[]         distances;
+   private final int[]            keys;
+   // point indices grouped by cell and sorted by distance within each cell
+   private final int[]            order;
+   // cell key to the range of the cell's points within the order
+   private final Map<Long, int[]> cells = new HashMap<>();
+
+   /**
+    * @param eye
+    *           the position the points are seen from
+    * @param points
+    * @param thresholdDegrees
+    *           the angle within which a nearer point obstructs a farther one
+    */
+   public ObstructionIndex(final Tuple3d eye, final List<Tuple3d> points, final double thresholdDegrees) {
+      final int count = points.size();
+
+      this.x = eye.x;
+      this.y = eye.y;
+      this.z = eye.z;
+      this.cosThreshold = Math.cos(Math.toRadians(thresholdDegrees));
+      this.cellSize = Math.max(1e-9, 2.0 * Math.sin(Math.toRadians(thresholdDegrees) * 0.5));
+      this.directions = new double[count * 3];
+      this.distances = new double[count];
+      this.keys = new int[count * 3];
+      this.order = new int[count];
+
+      for (int i = 0; i < count; i++) {
+         final Tuple3d point = points.get(i);
+         final double dx = point.x - this.x;
+         final double dy = point.y - this.y;
+         final double dz = point.z - this.z;
+         final double distance = Math.sqrt((dx * dx) + (dy * dy) + (dz * dz));
+         final double scale = (distance == 0) ? 0 : 1.0 / distance;
+
+         this.directions[i * 3] = dx * scale;
+         this.directions[(i * 3) + 1] = dy * scale;
+         this.directions[(i * 3) + 2] = dz * scale;
+         this.distances[i] = distance;
+         this.keys[i * 3] = (int) Math.floor(this.directions[i * 3] / this.cellSize);
+         this.keys[(i * 3) + 1] = (int) Math.floor(this.directions[(i * 3) + 1] / this.cellSize);
+         this.keys[(i * 3) + 2] = (int) Math.floor(this.directions[(i * 3) + 2] / this.cellSize);
+      }
+
+      // sorted by distance (at float precision) with the index in the lower bits; positive floats sort as integers
+      final long[] byDistance = new long[count];
+
+      for (int i = 0; i < count; i++) {
+         byDistance[i] = ((long) Float.floatToIntBits((float) this.distances[i]) << 32) | i;
+      }
+
+      Arrays.sort(byDistance);
+
+      // counting sort into cells keeps the distance order within each cell
+      for (int i = 0; i < count; i++) {
+         this.cells.computeIfAbsent(this.getKey(i), (key) -> new int[2])[1]++;
+      }
+
+      int start = 0;
+
+      for (final int[] range : this.cells.values()) {
+         range[0] = start;
+         start += range[1];
+         range[1] = range[0];
+      }
+
+      for (final long entry : byDistance) {
+         final int index = (int) entry;
+
+         this.order[this.cells.get(this.getKey(index))[1]++] = index;
+      }
+   }
+
+   public int size() {
+      return this.distances.length;
+   }
+
+   /**
+    * Returns true if any point closer to the eye is within the threshold angle of the point at the given index (in the
+    * list this index was created with).
+    *
+    * @param index
+    * @return
+    */
+   public boolean isObstructed(final int index) {
+      final int i3 = index * 3;
+      final double distance = this.distances[index];
+
+      for (int i = -1; i <= 1; i++) {
+         for (int j = -1; j <= 1; j++) {
+            for (int k = -1; k <= 1; k++) {
+               final int[] range = this.cells.get(ObstructionIndex.getKey(this.keys[i3] + i, this.keys[i3 + 1] + j, this.keys[i3 + 2] + k));
+
+               if (range == null) {
+                  continue;
+               }
+
+               for (int n = range[0]; n < range[1]; n++) {
+                  final int other = this.order[n];
+                  final int o3 = other * 3;
+
+                  // sorted by float distance; everything after this is farther away
+                  if ((float) this.distances[other] > (float) distance) {
+                     break;
+                  } else if (this.distances[other] >= distance) {
+                     continue;
+                  }
+
+                  final double dot = (this.directions[i3] * this.directions[o3]) + (this.directions[i3 + 1] * this.directions[o3 + 1]) + (this.directions[i3 + 2] * this.directions[o3 + 2]);
+
+                  if (dot > this.cosThreshold) {
+                     return true;
+                  }
+               }
+            }
+         }
+      }
+
+      return false;
+   }
+
+   private long getKey(final int index) {
+      return ObstructionIndex.getKey(this.keys[index * 3], this.keys[(index * 3) + 1], this.keys[(index * 3) + 2]);
+   }
+
+   private static long getKey(final int x, final int y, final int z) {
+      // 21 bits per axis; cells that wrap around only add candidates as angles are still checked; mixed so
+      // Long.hashCode doesn't collapse neighbouring cells onto the same buckets
+      return ((((long) x & 0x1FFFFFL) << 42) | (((long) y & 0x1FFFFFL) << 21) | ((long) z & 0x1FFFFFL)) * 0x9E3779B97F4A7C15L;
+   }
+}
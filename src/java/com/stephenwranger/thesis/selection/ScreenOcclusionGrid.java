@@ -0,0 +1,162 @@
+package com.stephenwranger.thesis.selection;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.stephenwranger.graphics.math.Tuple3d;
+
+/**
+ * Finds projected points hidden behind other projected points on screen: a point (x, y in pixels and depth) is occluded
+ * if a point with a smaller depth is within a pixel radius of it. Points are binned into a screen grid whose cells are
+ * at least that radius wide, each cell sorted by depth like a list of splats in a z-buffer, so a point is only tested
+ * against the nearer points of its own and the eight neighbouring cells. Cells grow if the points are spread so far
+ * (eg, projected from behind the eye) that the grid would have more cells than {@link #MAX_CELLS_PER_POINT} per point.
+ */
+public class ScreenOcclusionGrid {
+   private static final int MAX_CELLS_PER_POINT = 4;
+
+   private final double     radiusSquared;
+   private final double     cellWidth, cellHeight;
+   private final double     minX, minY;
+   private final int        width, height;
+   private final double[]   xs;
+   private final double[]   ys;
+   private final double[]   depths;
+   // point indices grouped by cell and sorted by depth within each cell
+   private final int[]      order;
+   // start of each cell's points within the order (one more than there are cells)
+   private final int[]      cellStarts;
+
+   /**
+    * @param projected
+    *           screen x, y (pixels) and depth of each point
+    * @param radius
+    *           the pixel distance within which a nearer point occludes a farther one
+    */
+   public ScreenOcclusionGrid(final List<Tuple3d> projected, final double radius) {
+      final int count = projected.size();
+      double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+      this.radiusSquared = radius * radius;
+      this.xs = new double[count];
+      this.ys = new double[count];
+      this.depths = new double[count];
+      this.order = new int[count];
+
+      for (int i = 0; i < count; i++) {
+         final Tuple3d xyDepth = projected.get(i);
+
+         this.xs[i] = xyDepth.x;
+         this.ys[i] = xyDepth.y;
+         this.depths[i] = xyDepth.z;
+         minX = Math.min(minX, xyDepth.x);
+         minY = Math.min(minY, xyDepth.y);
+         maxX = Math.max(maxX, xyDepth.x);
+         maxY = Math.max(maxY, xyDepth.y);
+      }
+
+      if (count == 0) {
+         minX = minY = maxX = maxY = 0;
+      }
+
+      // any cell at least as wide and tall as the radius keeps every occluder within the neighbouring cells; each axis
+      // is clamped on its own so long, thin or non-finite extents can't overflow the cell count
+      final double maxCells = Math.min(((double) count * ScreenOcclusionGrid.MAX_CELLS_PER_POINT) + 1, Integer.MAX_VALUE - 8);
+      final double spanX = maxX - minX;
+      final double spanY = maxY - minY;
+      final double cellSize = Math.max(radius, Math.sqrt(((spanX + radius) * (spanY + radius)) / maxCells));
+      this.minX = minX;
+      this.minY = minY;
+      this.width = Math.max(1, (int) Math.min(maxCells, spanX / cellSize));
+      this.height = Math.max(1, (int) Math.min(maxCells / this.width, spanY / cellSize));
+      this.cellWidth = Math.max(radius, spanX / this.width);
+      this.cellHeight = Math.max(radius, spanY / this.height);
+      this.cellStarts = new int[(this.width * this.height) + 1];
+
+      // sorted by depth rank with the index in the lower bits so everything stays primitive
+      final double[] sortedDepths = this.depths.clone();
+      final long[] byDepth = new long[count];
+
+      Arrays.sort(sortedDepths);
+
+      for (int i = 0; i < count; i++) {
+         byDepth[i] = ((long) Arrays.binarySearch(sortedDepths, this.depths[i]) << 32) | i;
+      }
+
+      Arrays.sort(byDepth);
+
+      // counting sort into cells keeps the depth order within each cell
+      for (int i = 0; i < count; i++) {
+         this.cellStarts[this.getCell(i) + 1]++;
+      }
+
+      for (int i = 1; i < this.cellStarts.length; i++) {
+         this.cellStarts[i] += this.cellStarts[i - 1];
+      }
+
+      final int[] next = Arrays.copyOf(this.cellStarts, this.cellStarts.length - 1);
+
+      for (final long entry : byDepth) {
+         final int index = (int) entry;
+
+         this.order[next[this.getCell(index)]++] = index;
+      }
+   }
+
+   public int size() {
+      return this.depths.length;
+   }
+
+   /**
+    * Returns true if any point with a smaller depth is within the radius of the point at the given index (in the list
+    * this grid was created with).
+    *
+    * @param index
+    * @return
+    */
+   public boolean isOccluded(final int index) {
+      final double x = this.xs[index];
+      final double y = this.ys[index];
+      final double depth = this.depths[index];
+      final int column = this.getColumn(x);
+      final int row = this.getRow(y);
+
+      for (int j = Math.max(0, row - 1); j <= Math.min(this.height - 1, row + 1); j++) {
+         for (int i = Math.max(0, column - 1); i <= Math.min(this.width - 1, column + 1); i++) {
+            final int cell = (j * this.width) + i;
+
+            for (int n = this.cellStarts[cell]; n < this.cellStarts[cell + 1]; n++) {
+               final int other = this.order[n];
+
+               // sorted by depth; everything after this is at least as deep
+               if (this.depths[other] >= depth) {
+                  break;
+               }
+
+               final double dx = this.xs[other] - x;
+               final double dy = this.ys[other] - y;
+
+               if (((dx * dx) + (dy * dy)) < this.radiusSquared) {
+                  return true;
+               }
+            }
+         }
+      }
+
+      return false;
+   }
+
+   private int getCell(final int index) {
+      return (this.getRow(this.ys[index]) * this.width) + this.getColumn(this.xs[index]);
+   }
+
+   // clamped as the max edge (and any NaN or infinite coordinate) would otherwise fall outside the grid
+   private int getColumn(final double x) {
+      return Math.min(this.width - 1, Math.max(0, (int) ((x - this.minX) / this.cellWidth)));
+   }
+
+   private int getRow(final double y) {
+      return Math.min(this.height - 1, Math.max(0, (int) ((y - this.minY) / this.cellHeight)));
+   }
+}
@@ -14,10 +14,36 @@ import com.stephenwranger.graphics.math.intersection.IntersectionUtils;
 import com.stephenwranger.graphics.math.intersection.LineSegment;
 import com.stephenwranger.graphics.utils.TupleMath;
 
+/**
+ * Screen space selection polygon. The camera (model view projection, scene origin and viewport) is captured when the
+ * volume is created so {@link #classify(BoundingVolume)} and {@link #select(double[], int, List)} are unaffected by
+ * later camera movement and can be called from any thread.
+ */
 public class Volume {
+   /** the bounds project entirely outside of the polygon (or behind the camera) */
+   public static final int         OUTSIDE = 0;
+   /** the bounds project entirely inside of the polygon */
+   public static final int         INSIDE  = 1;
+   /** the bounds may be partially covered by the polygon; points need to be tested individually */
+   public static final int         PARTIAL = 2;
+
    private final Scene             scene;
    private final Tuple3d           origin;
    private final List<LineSegment> polygon = new ArrayList<>();
+
+   // camera snapshot; mvp is column major and relative to the scene origin
+   private final double[]          mvp     = new double[16];
+   private final Tuple3d           sceneOrigin;
+   private final double            width;
+   private final double            height;
+
+   // polygon vertices in screen space (origin top left) and their bounds
+   private final double[]          polygonX;
+   private final double[]          polygonY;
+   private final double            minX;
+   private final double            minY;
+   private final double            maxX;
+   private final double            maxY;
    //   private final Tuple3d[]    worldPoints;
    //   private final Triangle3d[] triangles;
 
@@ -33,6 +59,46 @@ public class Volume {
          this.polygon.add(new LineSegment(p1, p2));
       }
 
+      final double[] modelView = scene.getModelViewMatrix();
+      final double[] projection = scene.getProjectionMatrix();
+
+      for (int column = 0; column < 4; column++) {
+         for (int row = 0; row < 4; row++) {
+            double sum = 0;
+
+            for (int k = 0; k < 4; k++) {
+               sum += projection[(k * 4) + row] * modelView[(column * 4) + k];
+            }
+
+            this.mvp[(column * 4) + row] = sum;
+         }
+      }
+
+      this.sceneOrigin = new Tuple3d(scene.getOrigin());
+      this.width = scene.getWidth();
+      this.height = scene.getHeight();
+
+      this.polygonX = new double[length];
+      this.polygonY = new double[length];
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+
+      for (int i = 0; i < length; i++) {
+         this.polygonX[i] = screenSpaceBounds[i].x;
+         this.polygonY[i] = screenSpaceBounds[i].y;
+         minX = Math.min(minX, this.polygonX[i]);
+         minY = Math.min(minY, this.polygonY[i]);
+         maxX = Math.max(maxX, this.polygonX[i]);
+         maxY = Math.max(maxY, this.polygonY[i]);
+      }
+
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+
       //      final Tuple3d center = new Tuple3d();
       //      final Tuple3d sceneOrigin = scene.getOrigin();
       //      final int length = screenSpaceBounds.length;
@@ -70,6 +136,165 @@ public class Volume {
 
    }
 
+   /**
+    * Classifies the given bounds by projecting the corners of their axis aligned box; the result is conservative in
+    * that {@link #INSIDE} and {@link #OUTSIDE} are only returned if certain.
+    *
+    * @param bounds
+    * @return one of {@link #OUTSIDE}, {@link #INSIDE}, or {@link #PARTIAL}
+    */
+   public int classify(final BoundingVolume bounds) {
+      final BoundingBox aabb = (bounds instanceof BoundingBox) ? (BoundingBox) bounds : new BoundingBox(bounds);
+      final double[] m = this.mvp;
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      boolean allInside = true;
+      int behind = 0;
+
+      for (final Tuple3d corner : aabb.getCorners()) {
+         final double x = corner.x - this.sceneOrigin.x;
+         final double y = corner.y - this.sceneOrigin.y;
+         final double z = corner.z - this.sceneOrigin.z;
+         final double w = (m[3] * x) + (m[7] * y) + (m[11] * z) + m[15];
+
+         if (w <= 0) {
+            behind++;
+            continue;
+         }
+
+         final double screenX = (((((m[0] * x) + (m[4] * y) + (m[8] * z) + m[12]) / w) + 1.0) * 0.5) * this.width;
+         final double screenY = ((1.0 - (((m[1] * x) + (m[5] * y) + (m[9] * z) + m[13]) / w)) * 0.5) * this.height;
+
+         minX = Math.min(minX, screenX);
+         minY = Math.min(minY, screenY);
+         maxX = Math.max(maxX, screenX);
+         maxY = Math.max(maxY, screenY);
+         allInside = allInside && this.containsScreen(screenX, screenY);
+      }
+
+      if (behind == 8) {
+         return Volume.OUTSIDE;
+      } else if (behind > 0) {
+         // straddles the camera plane; the projected corners don't bound the projection
+         return Volume.PARTIAL;
+      } else if (!this.overlapsScreen(minX, minY, maxX, maxY)) {
+         return Volume.OUTSIDE;
+      } else if (allInside && !this.isEdgeInRectangle(minX, minY, maxX, maxY)) {
+         return Volume.INSIDE;
+      }
+
+      return Volume.PARTIAL;
+   }
+
+   /**
+    * Adds every one of the given points that projects inside the polygon to the output.
+    *
+    * @param positions
+    *           x, y, z of each point in absolute coordinates
+    * @param count
+    *           number of points in positions
+    * @param output
+    */
+   public void select(final double[] positions, final int count, final List<Tuple3d> output) {
+      final double[] m = this.mvp;
+      final double ox = this.sceneOrigin.x;
+      final double oy = this.sceneOrigin.y;
+      final double oz = this.sceneOrigin.z;
+
+      for (int i = 0; i < count; i++) {
+         final int offset = i * 3;
+         final double x = positions[offset] - ox;
+         final double y = positions[offset + 1] - oy;
+         final double z = positions[offset + 2] - oz;
+         final double w = (m[3] * x) + (m[7] * y) + (m[11] * z) + m[15];
+
+         if (w > 0) {
+            final double screenX = (((((m[0] * x) + (m[4] * y) + (m[8] * z) + m[12]) / w) + 1.0) * 0.5) * this.width;
+            final double screenY = ((1.0 - (((m[1] * x) + (m[5] * y) + (m[9] * z) + m[13]) / w)) * 0.5) * this.height;
+
+            if (this.containsScreen(screenX, screenY)) {
+               output.add(new Tuple3d(positions[offset], positions[offset + 1], positions[offset + 2]));
+            }
+         }
+      }
+   }
+
+   /**
+    * Even-odd point in polygon test in screen space.
+    */
+   private boolean containsScreen(final double x, final double y) {
+      if ((x < this.minX) || (x > this.maxX) || (y < this.minY) || (y > this.maxY)) {
+         return false;
+      }
+
+      final int length = this.polygonX.length;
+      boolean inside = false;
+
+      for (int i = 0, j = length - 1; i < length; j = i++) {
+         final double yi = this.polygonY[i];
+         final double yj = this.polygonY[j];
+
+         if (((yi > y) != (yj > y)) && (x < ((((this.polygonX[j] - this.polygonX[i]) * (y - yi)) / (yj - yi)) + this.polygonX[i]))) {
+            inside = !inside;
+         }
+      }
+
+      return inside;
+   }
+
+   /**
+    * Returns true if the given screen space rectangle intersects the polygon.
+    */
+   private boolean overlapsScreen(final double minX, final double minY, final double maxX, final double maxY) {
+      if ((maxX < this.minX) || (minX > this.maxX) || (maxY < this.minY) || (minY > this.maxY)) {
+         return false;
+      }
+
+      // rectangle inside of polygon or polygon crossing the rectangle
+      return this.containsScreen((minX + maxX) / 2.0, (minY + maxY) / 2.0) || this.isEdgeInRectangle(minX, minY, maxX, maxY);
+   }
+
+   /**
+    * Returns true if any polygon edge touches the given screen space rectangle.
+    */
+   private boolean isEdgeInRectangle(final double minX, final double minY, final double maxX, final double maxY) {
+      final int length = this.polygonX.length;
+
+      for (int i = 0, j = length - 1; i < length; j = i++) {
+         final double x1 = this.polygonX[j];
+         final double y1 = this.polygonY[j];
+         final double x2 = this.polygonX[i];
+         final double y2 = this.polygonY[i];
+
+         if ((Math.max(x1, x2) < minX) || (Math.min(x1, x2) > maxX) || (Math.max(y1, y2) < minY) || (Math.min(y1, y2) > maxY)) {
+            continue;
+         }
+
+         if (((x1 >= minX) && (x1 <= maxX) && (y1 >= minY) && (y1 <= maxY)) || ((x2 >= minX) && (x2 <= maxX) && (y2 >= minY) && (y2 <= maxY))) {
+            return true;
+         }
+
+         // the segment's bounds overlap the rectangle but neither end is inside; it crosses if the rectangle's corners
+         // are not all on the same side of it
+         final double c1 = Volume.side(x1, y1, x2, y2, minX, minY);
+         final double c2 = Volume.side(x1, y1, x2, y2, maxX, minY);
+         final double c3 = Volume.side(x1, y1, x2, y2, maxX, maxY);
+         final double c4 = Volume.side(x1, y1, x2, y2, minX, maxY);
+
+         if (!(((c1 > 0) && (c2 > 0) && (c3 > 0) && (c4 > 0)) || ((c1 < 0) && (c2 < 0) && (c3 < 0) && (c4 < 0)))) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   private static double side(final double x1, final double y1, final double x2, final double y2, final double x, final double y) {
+      return ((x2 - x1) * (y - y1)) - ((y2 - y1) * (x - x1));
+   }
+
    public boolean contains(final BoundingVolume bounds) {
       final BoundingBox aabb = new BoundingBox(bounds);
       final List<Tuple2d> screenPoints = new ArrayList<>();
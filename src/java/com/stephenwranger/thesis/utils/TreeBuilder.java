@@ -11,12 +11,15 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.JOptionPane;
 
 import com.stephenwranger.graphics.utils.TimeUtils;
 import com.stephenwranger.thesis.data.Attribute;
+import com.stephenwranger.thesis.data.CellSummary;
 import com.stephenwranger.thesis.data.DataAttributes;
 import com.stephenwranger.thesis.data.Point;
 import com.stephenwranger.thesis.data.TreeCell;
@@ -143,24 +146,11 @@ public class TreeBuilder {
       
       for(final TreeCell treeCell : this.tree) {
          final String path = treeCell.getPath();
-         File datFile = null;
-         File metaFile = null;
+         final File datFile = getCellFile(outputDirectory, path, ".dat");
+         final File metaFile = getCellFile(outputDirectory, path, ".txt");
          
          if(path.isEmpty()) {
-            datFile = new File(outputDirectory, "/root.dat");
-            metaFile = new File(outputDirectory, "/root.txt");
-            
             TreeImporter.exportAttributes(this.attributes, outputDirectory);
-         } else {
-            final String[] split = treeCell.getPath().substring(0, treeCell.getPath().length()).split("");
-            final char childIndex = treeCell.getPath().charAt(treeCell.getPath().length()-1);
-            final String dirPath = String.join("/", split);
-            final String datName = childIndex + ".dat";
-            final String metaName = childIndex + ".txt";
-            final File dir = new File(outputDirectory, dirPath);
-            dir.mkdirs();
-            datFile = new File(dir, datName);
-            metaFile = new File(dir, metaName);
          }
          
          try(final BufferedWriter fout = new BufferedWriter(new FileWriter(metaFile))) {
@@ -200,10 +190,88 @@ public class TreeBuilder {
       final long elapsed = (System.nanoTime() - startTime);
       printStats(count, cellCount, elapsed);
       
+      this.exportSummaries(outputDirectory);
+      
       final long endTime = System.nanoTime();
       System.out.println(TimeUtils.formatNanoseconds(endTime - startTime));
    }
    
+   /**
+    * Writes the {@link CellSummary} of every cell next to its data. Cells are summarized deepest level first so each
+    * cell's subtree summary can be merged from its children's; only the summaries of the level below are kept.
+    * 
+    * @param outputDirectory
+    */
+   private void exportSummaries(final File outputDirectory) {
+      System.out.println("exporting cell summaries...");
+      
+      final List<TreeCell> cells = new ArrayList<>();
+      
+      for(final TreeCell treeCell : this.tree) {
+         cells.add(treeCell);
+      }
+      
+      Map<String, CellSummary> childSummaries = new HashMap<>();
+      Map<String, CellSummary> summaries = new HashMap<>();
+      int depth = -1;
+      
+      // cells are sorted by depth; walk them backwards
+      for(int i = cells.size() - 1; i >= 0; i--) {
+         final TreeCell treeCell = cells.get(i);
+         
+         if(treeCell.path.length() != depth) {
+            childSummaries = summaries;
+            summaries = new HashMap<>();
+            depth = treeCell.path.length();
+         }
+         
+         final CellSummary summary = new CellSummary(this.attributes);
+         
+         for(final Point p : treeCell) {
+            summary.add(p);
+         }
+         
+         for(final String childPath : treeCell.getChildList()) {
+            final CellSummary childSummary = childSummaries.get(childPath);
+            
+            if(childSummary != null) {
+               summary.addChild(childSummary);
+            }
+         }
+         
+         summaries.put(treeCell.path, summary);
+         
+         final File summaryFile = getCellFile(outputDirectory, treeCell.path, CellSummary.EXTENSION);
+         
+         try(final BufferedWriter fout = new BufferedWriter(new FileWriter(summaryFile))) {
+            summary.write(fout);
+         } catch(final IOException e) {
+            throw new RuntimeException("Could not write tree cell summary: " + summaryFile.getAbsolutePath(), e);
+         }
+      }
+   }
+   
+   /**
+    * Returns the file for the given cell and extension, creating its directory if needed.
+    * 
+    * @param outputDirectory
+    * @param path
+    * @param extension
+    * @return
+    */
+   private static File getCellFile(final File outputDirectory, final String path, final String extension) {
+      if(path.isEmpty()) {
+         return new File(outputDirectory, "/root" + extension);
+      } else {
+         final String[] split = path.split("");
+         final char childIndex = path.charAt(path.length()-1);
+         final File dir = new File(outputDirectory, String.join("/", split));
+         dir.mkdirs();
+         
+         return new File(dir, childIndex + extension);
+      }
+   }
+   
    private int[] getPointCountStats() {
       int total = 0;
       int minCount = Integer.MAX_VALUE;
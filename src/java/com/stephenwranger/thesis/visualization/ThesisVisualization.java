@@ -55,6 +55,7 @@ import com.stephenwranger.thesis.data.TreeStructure;
 import com.stephenwranger.thesis.geospatial.Earth;
 import com.stephenwranger.thesis.geospatial.SphericalNavigator;
 import com.stephenwranger.thesis.icosatree.Icosatree;
+import com.stephenwranger.thesis.query.RayPick;
 import com.stephenwranger.thesis.renderables.TreeRenderable;
 import com.stephenwranger.thesis.selection.ContextAwarePointSelection;
 
@@ -91,6 +92,7 @@ public class ThesisVisualization extends JFrame {
       final File attributeFile = new File(basePath, "attributes.csv");
       final TreeRenderable tree = (attributeFile.isFile()) ? new TreeRenderable(basePath, connectionType) : null;
       tree.setLevelOfDetail(1);
+      tree.setNavigator(navigator);
       this.scene.addRenderable(tree);
 
       final ContextAwarePointSelection pointSelector = new ContextAwarePointSelection(this.scene, tree);
@@ -106,6 +108,19 @@ public class ThesisVisualization extends JFrame {
          this.addSpinner(options, "Split Ratio (screen area)", tree.getLevelOfDetail(), 0.1, Double.MAX_VALUE, 0.1, (value) -> {
             tree.setLevelOfDetail(value.doubleValue());
          });
+
+         this.addSpinner(options, "GPU Memory Budget (MB)", tree.getResidency().getBudget() / (1024L * 1024L), 1L, Long.MAX_VALUE / (1024L * 1024L), 64L, (value) -> {
+            tree.getResidency().setBudget(value.longValue() * 1024L * 1024L);
+         });
+
+         this.addSpinner(options, "Cell Memory Budget (MB)", tree.getMemoryManager().getBudget() / (1024L * 1024L), 1L, Long.MAX_VALUE / (1024L * 1024L), 256L, (value) -> {
+            tree.getMemoryManager().setBudget(value.longValue() * 1024L * 1024L);
+         });
+
+         // 0 disables the budget and uses the split ratio above
+         this.addSpinner(options, "Point Budget (0 = off)", tree.getPointBudget(), 0L, Long.MAX_VALUE, 100000L, (value) -> {
+            tree.setPointBudget(value.longValue());
+         });
       }
 
       // used for orthonormal check to prune any outliers
@@ -237,7 +252,7 @@ public class ThesisVisualization extends JFrame {
 
             if ((last[0]) < (time - 1000000000)) {
                last[0] = time;
-               timingsArea.setText("Point Count: " + tree.getPointsRendered() + "\nCells Rendered: " + tree.getCellsRendered() + "\n" + timings.toString());
+               timingsArea.setText("Point Count: " + tree.getPointsRendered() + "\nCells Rendered: " + tree.getCellsRendered() + "\n" + tree.getResidency() + "\n" + tree.getMemoryManager() + "\n" + timings.toString());
                timingsArea.setCaretPosition(0);
             }
          });
@@ -256,6 +271,14 @@ public class ThesisVisualization extends JFrame {
                drawEarthCheckBox.doClick();
             } else if (event.getKeyCode() == KeyEvent.VK_L) {
                ThesisVisualization.this.earth.setLightingEnabled(!ThesisVisualization.this.earth.isLightingEnabled());
+            } else if (event.getKeyCode() == KeyEvent.VK_P) {
+               // prints the point under the mouse
+               final Point mouse = ThesisVisualization.this.scene.getMousePosition();
+
+               if (mouse != null) {
+                  final RayPick.Hit hit = tree.pick(ThesisVisualization.this.scene, mouse.x, mouse.y, 4.0);
+                  System.out.println((hit == null) ? "no point picked" : hit + "\n" + hit.point);
+               }
             }
          }
       });